@@ -8,6 +8,7 @@ import org.kabieror.elwasys.raspiclient.configuration.WashguardConfiguration;
 import org.kabieror.elwasys.raspiclient.executions.DevicePowerManager;
 import org.kabieror.elwasys.raspiclient.executions.ExecutionManager;
 import org.kabieror.elwasys.raspiclient.executions.FhemException;
+import org.kabieror.elwasys.raspiclient.executions.TaskFailures;
 import org.kabieror.elwasys.raspiclient.io.CardReader;
 import org.kabieror.elwasys.raspiclient.ui.AbstractMainFormController;
 import org.slf4j.LoggerFactory;
@@ -15,8 +16,11 @@ import org.slf4j.LoggerFactory;
 import java.io.IOException;
 import java.sql.SQLException;
 import java.time.LocalDateTime;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Vector;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
 
 public class ElwaManager {
 
@@ -129,24 +133,51 @@ public class ElwaManager {
             LocationOccupiedException, FhemException, NoDataFoundException, AlreadyRunningException {
         this.logger.info("Starting up managers");
         SingleInstanceManager.instance.start(this.configurationManager.getSingleInstancePort());
-        this.dataManager = new DataManager(this.configurationManager);
-        this.locationManager = new LocationManager(this.configurationManager);
 
-        // Lade Ort
-        this.thisLocation = this.dataManager.getLocation(this.configurationManager.getLocationName());
+        // Baue die Verbindungen zum FHEM-Server parallel zur Anbindung an die
+        // Datenbank auf
+        final FutureTask<DevicePowerManager> devicePowerManagerTask =
+                new FutureTask<>(() -> new DevicePowerManager(this.configurationManager));
+        new Thread(devicePowerManagerTask, "ElwaManager.DevicePowerManagerStartup").start();
 
-        this.devicePowerManager = new DevicePowerManager(this.configurationManager);
+        try {
+            this.dataManager = new DataManager(this.configurationManager);
+            this.locationManager = new LocationManager(this.configurationManager);
+
+            // Lade Ort
+            this.thisLocation = this.dataManager.getLocation(this.configurationManager.getLocationName());
+        } catch (final Exception e) {
+            // Warte auf den Verbindungsaufbau, damit dieser nicht unbemerkt
+            // weiterläuft
+            try {
+                devicePowerManagerTask.get();
+            } catch (final ExecutionException e1) {
+                this.logger.debug("Device power manager failed to start as well.", e1.getCause());
+            }
+            throw e;
+        }
+
+        try {
+            this.devicePowerManager = devicePowerManagerTask.get();
+        } catch (final ExecutionException e) {
+            throw TaskFailures.rethrow(e.getCause(), FhemException.class, InterruptedException.class);
+        }
         this.executionManager = new ExecutionManager();
+
+        // Empfange nur die Ereignisse der verwalteten Geräte
+        this.devicePowerManager.updateEventFilter(this.getManagedDevices());
         this.mainFormController.initiate();
 
         // Setze unterbrochene Ausführungen fort
+        final List<Execution> interrupted = new ArrayList<>();
         for (Device d : this.dataManager.getDevices()) {
             Execution e = this.dataManager.getRunningExecution(d);
             if (e != null) {
                 // Unterbrochene Ausführung gefunden
-                this.executionManager.startExecution(e);
+                interrupted.add(e);
             }
         }
+        this.executionManager.resumeExecutions(interrupted);
     }
 
     /**
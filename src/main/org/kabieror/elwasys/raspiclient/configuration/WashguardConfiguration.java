@@ -11,6 +11,8 @@ import java.io.InputStream;
 import java.nio.file.Files;
 import java.nio.file.StandardOpenOption;
 import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
 
 /**
  * Diese Klasse verwaltet die Konfiguration
@@ -23,7 +25,38 @@ public class WashguardConfiguration extends ConfigurationManager {
     private static final String DEFAULTS_FILE_NAME =
             "/org/kabieror/elwasys/raspiclient/resources/defaultconfig.properties";
 
+    /**
+     * Die Schnittstelle des FHEM-Servers über Telnet.
+     */
+    public static final String FHEM_BACKEND_TELNET = "telnet";
+    /**
+     * Die Schnittstelle des FHEM-Servers über FHEMWEB.
+     */
+    public static final String FHEM_BACKEND_HTTP = "http";
+    /**
+     * Der Name des FHEM-Servers, falls nur einer konfiguriert ist.
+     */
+    public static final String DEFAULT_FHEM_ENDPOINT = "default";
+    /**
+     * Automatisches Ende, sobald die Leistung unter der Schwelle des Geräts liegt.
+     */
+    public static final String AUTO_END_THRESHOLD = "threshold";
+    /**
+     * Automatisches Ende mit einer unteren und einer oberen Schwelle.
+     */
+    public static final String AUTO_END_HYSTERESIS = "hysteresis";
+    /**
+     * Automatisches Ende, sobald der gleitende Mittelwert der Leistung unter der Schwelle liegt.
+     */
+    public static final String AUTO_END_MOVING_AVERAGE = "average";
+    /**
+     * Automatisches Ende, sobald die Energie im zurückliegenden Zeitfenster unter der Schwelle liegt.
+     */
+    public static final String AUTO_END_ENERGY_WINDOW = "energy";
+
     private final File uidFile = new File(System.getProperty("user.dir") + DS + ".client-uid");
+    private final File notificationOutboxFile = new File(System.getProperty("user.dir") + DS + ".notification-outbox");
+    private final File executionJournalFile = new File(System.getProperty("user.dir") + DS + ".execution-journal");
     private final Logger logger = LoggerFactory.getLogger(this.getClass());
     private String uid = null;
     private Integer singleInstancePort;
@@ -47,23 +80,243 @@ public class WashguardConfiguration extends ConfigurationManager {
         return WashguardConfiguration.class.getResourceAsStream(DEFAULTS_FILE_NAME);
     }
 
+    /**
+     * Gibt die Namen der FHEM-Server zurück, auf welche die Geräte verteilt
+     * sind. Der erste ist für alle Geräte zuständig, die keinem Server
+     * ausdrücklich zugeordnet sind.
+     *
+     * @return Die Namen der FHEM-Server, mindestens {@link #DEFAULT_FHEM_ENDPOINT}.
+     */
+    public List<String> getFhemEndpoints() {
+        final List<String> res = splitList(this.props.getProperty("fhem.endpoints"));
+        if (res.isEmpty()) {
+            res.add(DEFAULT_FHEM_ENDPOINT);
+        }
+        return res;
+    }
+
+    /**
+     * Gibt die Namen der Schalter und Leistungsmesser zurück, welche über den
+     * gegebenen FHEM-Server angesprochen werden.
+     *
+     * @param endpoint Der Name des FHEM-Servers.
+     * @return Die Namen im FHEM-Server.
+     */
+    public List<String> getFhemEndpointDevices(String endpoint) {
+        return splitList(this.getFhemProperty(endpoint, "devices"));
+    }
+
     /**
      * Gibt die Adresse, unter welcher der zu verwendende FHEM-Server erreichbar
      * ist.
      *
+     * @param endpoint Der Name des FHEM-Servers.
      * @return Die Adresse, unter welcher der zu verwendende FHEM-Server erreichbar ist.
      */
-    public String getFhemConnectionString() {
-        return this.props.getProperty("fhem.server");
+    public String getFhemConnectionString(String endpoint) {
+        return this.getFhemProperty(endpoint, "server");
     }
 
     /**
      * Gibt den TCP-Port zurück, auf welchem der FHEM-Server hört.
      *
+     * @param endpoint Der Name des FHEM-Servers.
      * @return Der TCP-Port, auf welchem der FHEM-Server hört.
      */
-    public int getFhemPort() {
-        return Integer.parseInt(this.props.getProperty("fhem.port"));
+    public int getFhemPort(String endpoint) {
+        return Integer.parseInt(this.getFhemProperty(endpoint, "port"));
+    }
+
+    /**
+     * Gibt die Schnittstelle zurück, über welche mit dem FHEM-Server
+     * kommuniziert wird.
+     *
+     * @param endpoint Der Name des FHEM-Servers.
+     * @return {@link #FHEM_BACKEND_TELNET} oder {@link #FHEM_BACKEND_HTTP}.
+     */
+    public String getFhemBackend(String endpoint) {
+        final String backend = this.getFhemProperty(endpoint, "backend");
+        if (FHEM_BACKEND_HTTP.equals(backend)) {
+            return FHEM_BACKEND_HTTP;
+        }
+        if (backend != null && !backend.isEmpty() && !FHEM_BACKEND_TELNET.equals(backend)) {
+            this.logger.warn("The configuration value fhem.backend of the fhem server '" + endpoint +
+                    "' has an invalid value. Using telnet instead.");
+        }
+        return FHEM_BACKEND_TELNET;
+    }
+
+    /**
+     * Gibt den TCP-Port zurück, auf welchem FHEMWEB hört.
+     *
+     * @param endpoint Der Name des FHEM-Servers.
+     * @return Der TCP-Port, auf welchem FHEMWEB hört.
+     */
+    public int getFhemWebPort(String endpoint) {
+        int port;
+        try {
+            port = Integer.parseInt(this.getFhemProperty(endpoint, "webPort"));
+        } catch (final NumberFormatException e) {
+            this.logger.warn("The configuration value fhem.webPort of the fhem server '" + endpoint +
+                    "' has an invalid format. Using 8083 instead.");
+            return 8083;
+        }
+        return port;
+    }
+
+    /**
+     * Liest eine Einstellung eines FHEM-Servers. Ist sie für den Server nicht
+     * als fhem.[Server].[Name] angegeben, gilt der Wert von fhem.[Name].
+     */
+    private String getFhemProperty(String endpoint, String key) {
+        final String value = this.props.getProperty("fhem." + endpoint + "." + key);
+        if (value != null && !value.isEmpty()) {
+            return value;
+        }
+        return this.props.getProperty("fhem." + key);
+    }
+
+    private static List<String> splitList(String value) {
+        final List<String> res = new ArrayList<>();
+        if (value == null) {
+            return res;
+        }
+        for (final String part : value.split(",")) {
+            if (!part.trim().isEmpty()) {
+                res.add(part.trim());
+            }
+        }
+        return res;
+    }
+
+    /**
+     * Gibt das Höchstalter eines zuletzt bekannten Schaltzustands zurück, bis zu
+     * welchem er ohne erneute Anfrage an den FHEM-Server verwendet wird.
+     *
+     * @return Das Höchstalter eines zuletzt bekannten Schaltzustands.
+     */
+    public Duration getFhemStateMaxAge() {
+        long secs;
+        try {
+            secs = Long.parseLong(this.props.getProperty("fhem.stateMaxAge"));
+        } catch (final NumberFormatException e) {
+            this.logger.warn("The configuration value fhem.stateMaxAge has an invalid format. Using 30 seconds " +
+                    "instead.");
+            return Duration.ofSeconds(30);
+        }
+        return Duration.ofSeconds(secs);
+    }
+
+    /**
+     * Gibt die Anzahl der Leistungsmessungen zurück, die je Leistungsmesser aufbewahrt werden.
+     *
+     * @return Die Anzahl der aufbewahrten Leistungsmessungen.
+     */
+    public int getPowerHistorySize() {
+        int size;
+        try {
+            size = Integer.parseInt(this.props.getProperty("fhem.powerHistorySize"));
+        } catch (final NumberFormatException e) {
+            size = 0;
+        }
+        if (size <= 0) {
+            this.logger.warn("The configuration value fhem.powerHistorySize has an invalid format. Using 2048 " +
+                    "instead.");
+            return 2048;
+        }
+        return size;
+    }
+
+    /**
+     * Gibt das Verfahren zurück, mit welchem das Ende eines Programms anhand der Leistungsmessungen erkannt wird.
+     *
+     * @param programId Die Id des Programms.
+     * @return {@link #AUTO_END_THRESHOLD}, {@link #AUTO_END_HYSTERESIS}, {@link #AUTO_END_MOVING_AVERAGE} oder
+     * {@link #AUTO_END_ENERGY_WINDOW}.
+     */
+    public String getAutoEndDetector(int programId) {
+        String detector = this.props.getProperty("autoEnd.detector." + programId);
+        if (detector == null || detector.isEmpty()) {
+            detector = this.props.getProperty("autoEnd.detector");
+        }
+        if (AUTO_END_HYSTERESIS.equals(detector) || AUTO_END_MOVING_AVERAGE.equals(detector) ||
+                AUTO_END_ENERGY_WINDOW.equals(detector)) {
+            return detector;
+        }
+        if (detector != null && !detector.isEmpty() && !AUTO_END_THRESHOLD.equals(detector)) {
+            this.logger.warn("The configuration value autoEnd.detector of program " + programId +
+                    " has an invalid value. Using threshold instead.");
+        }
+        return AUTO_END_THRESHOLD;
+    }
+
+    /**
+     * Gibt das Verhältnis der oberen zur unteren Schwelle des automatischen Endes mit Hysterese zurück.
+     *
+     * @return Das Vielfache der Schwelle des Geräts, ab welchem es wieder als tätig gilt.
+     */
+    public double getAutoEndHysteresisFactor() {
+        double factor;
+        try {
+            factor = Double.parseDouble(this.props.getProperty("autoEnd.hysteresisFactor"));
+        } catch (final NumberFormatException | NullPointerException e) {
+            this.logger.warn("The configuration value autoEnd.hysteresisFactor has an invalid format. Using 2 " +
+                    "instead.");
+            return 2;
+        }
+        return factor;
+    }
+
+    /**
+     * Gibt die Zeitkonstante des gleitenden Mittelwerts für das automatische Ende zurück.
+     *
+     * @return Die Zeitkonstante des gleitenden Mittelwerts.
+     */
+    public Duration getAutoEndAverageTime() {
+        long secs;
+        try {
+            secs = Long.parseLong(this.props.getProperty("autoEnd.averageTime"));
+        } catch (final NumberFormatException e) {
+            this.logger.warn("The configuration value autoEnd.averageTime has an invalid format. Using 60 seconds " +
+                    "instead.");
+            return Duration.ofSeconds(60);
+        }
+        return Duration.ofSeconds(secs);
+    }
+
+    /**
+     * Gibt die Länge des Zeitfensters zurück, in welchem die Energie für das automatische Ende gemessen wird.
+     *
+     * @return Die Länge des Zeitfensters.
+     */
+    public Duration getAutoEndEnergyWindow() {
+        long secs;
+        try {
+            secs = Long.parseLong(this.props.getProperty("autoEnd.energyWindow"));
+        } catch (final NumberFormatException e) {
+            this.logger.warn("The configuration value autoEnd.energyWindow has an invalid format. Using 300 seconds " +
+                    "instead.");
+            return Duration.ofSeconds(300);
+        }
+        return Duration.ofSeconds(secs);
+    }
+
+    /**
+     * Gibt die größte Lücke zwischen zwei Leistungsmessungen zurück, über welche die zuvor gemessene Leistung in die
+     * aufgenommene Energie einer Ausführung eingerechnet wird.
+     *
+     * @return Die größte Lücke zwischen zwei Leistungsmessungen.
+     */
+    public Duration getEnergyMaxGap() {
+        long secs;
+        try {
+            secs = Long.parseLong(this.props.getProperty("energy.maxGap"));
+        } catch (final NumberFormatException e) {
+            this.logger.warn("The configuration value energy.maxGap has an invalid format. Using 600 seconds " +
+                    "instead.");
+            return Duration.ofSeconds(600);
+        }
+        return Duration.ofSeconds(secs);
     }
 
     /**
@@ -198,6 +451,44 @@ public class WashguardConfiguration extends ConfigurationManager {
         return url;
     }
 
+    /**
+     * Gibt die Datei zurück, in welcher die noch nicht versendeten Benachrichtigungen aufbewahrt werden.
+     *
+     * @return Die Datei der ausstehenden Benachrichtigungen.
+     */
+    public File getNotificationOutboxFile() {
+        return this.notificationOutboxFile;
+    }
+
+    /**
+     * Gibt die Datei des Journals zurück, in welchem Start und Ende der Ausführungen festgehalten werden, bevor sie in
+     * die Datenbank übernommen sind.
+     *
+     * @return Die Datei des Journals der Ausführungen.
+     */
+    public File getExecutionJournalFile() {
+        return this.executionJournalFile;
+    }
+
+    /**
+     * Gibt die Ids der Ausführungen zurück, deren zu spät gespeichertes Ende von Hand korrigiert und abgerechnet wurde.
+     * Sie werden beim Start aus dem Journal der Ausführungen entfernt.
+     *
+     * @return Die Ids der korrigierten Ausführungen.
+     */
+    public List<Integer> getCorrectedExecutions() {
+        final List<Integer> res = new ArrayList<>();
+        for (final String id : splitList(this.props.getProperty("executions.corrected"))) {
+            try {
+                res.add(Integer.parseInt(id));
+            } catch (final NumberFormatException e) {
+                this.logger.warn("The configuration value executions.corrected contains the invalid id " + id +
+                        ". Ignoring it.");
+            }
+        }
+        return res;
+    }
+
     /**
      * Gibt die eindeutige ID dieses Clients zurück.
      *
@@ -0,0 +1,35 @@
+package org.kabieror.elwasys.raspiclient.executions;
+
+/**
+ * Erkennt anhand der Leistungsmessungen einer laufenden Ausführung, ob das Gerät fertig ist.
+ * <p>
+ * Die Messungen werden einzeln in zeitlicher Reihenfolge übergeben. Jede Implementierung verarbeitet eine Messung mit
+ * konstantem Aufwand, unabhängig von der Anzahl der bisherigen Messungen. Eine Instanz gehört zu genau einer
+ * Ausführung und wird nicht von mehreren Threads gleichzeitig verwendet.
+ *
+ * @author Oliver Kabierschke
+ */
+public interface AutoEndDetector {
+
+    /**
+     * Verarbeitet eine Leistungsmessung.
+     *
+     * @param timeNanos Der Zeitpunkt der Messung nach {@link System#nanoTime()}.
+     * @param power     Die gemessene Leistung in Watt.
+     * @return True, falls das Gerät nach dieser Messung als untätig gilt. Bleibt es bis zum frühesten automatischen
+     * Ende untätig, wird die Ausführung beendet.
+     */
+    boolean onSample(long timeNanos, double power);
+
+    /**
+     * Gibt zurück, wann das Gerät als untätig gelten wird, falls keine weitere Messung eintrifft und die zuletzt
+     * gemessene Leistung daher weiter anliegt. Leistungsmesser melden oft nur bei Änderungen, sodass ein Verfahren, das
+     * über die Zeit mittelt, sonst nach dem Abschalten des Geräts nie untätig würde.
+     *
+     * @return Die Dauer ab der letzten Messung in Nanosekunden, 0 falls das Gerät bereits als untätig gilt, oder -1,
+     * falls es ohne weitere Messungen nicht untätig wird.
+     */
+    default long getIdleDelayNanos() {
+        return -1;
+    }
+}
@@ -1,52 +1,57 @@
 package org.kabieror.elwasys.raspiclient.executions;
 
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
 import org.kabieror.elwasys.common.Device;
 import org.kabieror.elwasys.common.Execution;
 import org.kabieror.elwasys.raspiclient.application.ElwaManager;
 import org.kabieror.elwasys.raspiclient.application.ICloseListener;
 import org.kabieror.elwasys.raspiclient.application.Main;
 import org.kabieror.elwasys.raspiclient.configuration.WashguardConfiguration;
-import org.kabieror.elwasys.raspiclient.io.TelnetClient;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
 import java.time.Duration;
-import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
 import java.util.concurrent.TimeUnit;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.concurrent.TimeoutException;
 
 /**
  * Dieser Manager schaltet den Strom von Geräten frei und unterbricht ihn.
+ * <p>
+ * Die Geräte können auf mehrere FHEM-Server verteilt sein. Jeder Server hat
+ * eigene Verbindungen, deren Störungen sich nicht auf die übrigen auswirken.
+ * Die Namen der Schalter und Leistungsmesser müssen über alle Server hinweg
+ * eindeutig sein.
  *
  * @author Oliver Kabierschke
  */
 @SuppressWarnings("FieldCanBeLocal")
 public class DevicePowerManager implements ICloseListener {
 
-    /**
-     * Sperre für die gleichzeitige Ausführung von Telnet-Anfragen.
-     */
-    private final static Integer TELNET_LOCK = 0;
     private final Logger logger = LoggerFactory.getLogger(this.getClass());
     /**
-     * The pattern which indicates power events.
+     * Die bereits aus Ereignissen bekannten Namen im FHEM-Server. Damit wird
+     * für jeden Namen nur einmal ein String erzeugt.
      */
-    private final Pattern eventsPowerPattern = Pattern.compile("\\s([^\\s]+)\\spower:\\s(\\d+(\\.\\d+)?)");
+    private final FhemNameIndex<String> eventNames = new FhemNameIndex<>();
     /**
      * Die Konfiguration des Programms
      */
     private final WashguardConfiguration config;
-    /**
-     * Process a full connection check at most once per 20 seconds.
-     */
-    private final Duration fullConnectionCheckDelay = Duration.ofSeconds(20);
-    /**
-     * The default time to wait for an answer from the fhem server in
-     * milliseconds.
-     */
-    private final int defaultTimeout = 5000;
     /**
      * The delay between two status checks after the change of the device power
      * state.
@@ -58,37 +63,67 @@ public class DevicePowerManager implements ICloseListener {
      */
     private final int checkStatusRetryCount = 50;
     /**
-     * Der Telnet-Client, über welchen mit dem FHEM-Server kommuniziert werden
-     * kann.
+     * The time the fhem server and the switch may need to actuate a new power
+     * state, in addition to the round-trip time of the confirming event.
      */
-    private TelnetClient telnetFhem;
+    private final Duration switchingTime = Duration.ofSeconds(3);
     /**
-     * Der Telnet-Client, über welchen events vom FHEM-Server empfangen werden.
+     * Die ausstehenden Bestätigungen neuer Schaltzustände, nach dem Namen des
+     * Schalters.
      */
-    private TelnetClient telnetFhemEvents;
+    private final Map<String, StateConfirmation> pendingConfirmations = new ConcurrentHashMap<>();
     /**
-     * Thread, welcher auf Events vom FHEM-Server wartet.
+     * Der zuletzt bekannte Zustand aller Schalter und Leistungsmesser.
      */
-    private Thread eventsReceiverThread;
+    private final DeviceStateStore stateStore;
     /**
-     * Die Anzahl an Zeilen, welche beim Kommando "version" zu erwarten sind.
-     * Wird bei der Verbindungsprüfung verwendet.
+     * Die Verbindungen zu den FHEM-Servern, nach dem Namen des Servers in der
+     * Konfiguration.
      */
-    private int versionLinesToExpect = 0;
+    private final Map<String, IFhemBackend> backends = new LinkedHashMap<>();
     /**
-     * The date of the last full connection check.
+     * Die Namen der FHEM-Server nach den Namen der Schalter und
+     * Leistungsmesser, welche ihnen ausdrücklich zugeordnet sind.
      */
-    private LocalDateTime lastFullConnectionCheck;
+    private final Map<String, String> endpointsByFhemName = new HashMap<>();
     /**
-     * The minimum time to wait for an answer from the fhem server.
+     * Der Name des FHEM-Servers, über welchen alle übrigen Geräte geschaltet
+     * werden.
      */
-    private Duration minimumTimeout = Duration.ZERO;
+    private final String defaultEndpoint;
+    /**
+     * Die regulären Ausdrücke, auf deren Geräte die Ereignisse der einzelnen
+     * Verbindungen beschränkt sind. Fehlt eine Verbindung, empfängt sie alle
+     * Ereignisse.
+     */
+    private final Map<IFhemBackend, String> eventFilters = new HashMap<>();
+    /**
+     * Sperre für die Änderung der Filter der Ereignisse.
+     */
+    private final Object eventFilterLock = new Object();
 
     public DevicePowerManager(WashguardConfiguration config) throws InterruptedException, FhemException {
         this.config = config;
+        this.stateStore = new DeviceStateStore(config.getPowerHistorySize());
+        final List<String> endpoints = config.getFhemEndpoints();
+        this.defaultEndpoint = endpoints.get(0);
+        for (final String endpoint : endpoints) {
+            for (final String name : config.getFhemEndpointDevices(endpoint)) {
+                this.endpointsByFhemName.put(name, endpoint);
+            }
+        }
         if (!Main.dry) {
-            this.openFhemConnection();
-            this.openFhemEventsConnection(true);
+            for (final String endpoint : endpoints) {
+                this.backends.put(endpoint, createBackend(config, endpoint));
+            }
+            try {
+                this.startBackends();
+            } catch (final FhemException | InterruptedException | RuntimeException e) {
+                for (final IFhemBackend backend : this.backends.values()) {
+                    backend.shutdown();
+                }
+                throw e;
+            }
             ElwaManager.instance.listenToCloseEvent(this);
         } else {
             this.logger
@@ -98,213 +133,269 @@ public class DevicePowerManager implements ICloseListener {
     }
 
     /**
-     * Startet eine neue Telnet-Sitzung mit dem Fhem-Server.
+     * Erstellt die Verbindung zu einem FHEM-Server über die für ihn
+     * konfigurierte Schnittstelle.
      */
-    private void openFhemConnection() throws InterruptedException, FhemException {
-        if (this.telnetFhem != null && this.telnetFhem.isAlive()) {
-            this.telnetFhem.shutdown();
-        }
-        this.logger.info("Starting new connection to fhem server on " + this.config.getFhemConnectionString() + ":" +
-                this.config.getFhemPort());
-        this.telnetFhem = new TelnetClient(this.config.getFhemConnectionString(), this.config.getFhemPort());
-        try {
-            this.telnetFhem.openConnection(5000);
-        } catch (IOException e) {
-            throw new FhemException("Konnte nicht mit dem FHEM-Server verbinden.", e);
-        }
-        try {
-            Thread.sleep(1000);
-        } catch (final InterruptedException e) {
-            e.printStackTrace();
+    private static IFhemBackend createBackend(WashguardConfiguration config, String endpoint) {
+        if (WashguardConfiguration.FHEM_BACKEND_HTTP.equals(config.getFhemBackend(endpoint))) {
+            return new FhemWebBackend(config.getFhemConnectionString(endpoint), config.getFhemWebPort(endpoint));
         }
-        // Check connection
-        try {
-            this.telnetFhem.sendCommand("version");
-            final LocalDateTime startWait = LocalDateTime.now();
-            String response = this.telnetFhem.waitForResponse(5, TimeUnit.SECONDS);
-            String lastResponse = response;
-            int sumWaitDuration = 0;
-            int countResponses = 0;
-            while (lastResponse != null) {
-                final Duration duration = Duration.between(startWait, LocalDateTime.now());
-                sumWaitDuration += duration.getNano();
-                if (this.minimumTimeout.minus(duration).isNegative()) {
-                    // Update minimum wait duration, if the measured duration is
-                    // greather.
-                    this.minimumTimeout = duration;
-                }
-                countResponses++;
+        return new FhemTelnetBackend(config.getFhemConnectionString(endpoint), config.getFhemPort(endpoint));
+    }
 
-                // Wait for next response
-                final int avgWaitDuration = sumWaitDuration / countResponses;
-                lastResponse = this.telnetFhem.waitForResponse(avgWaitDuration * 10, TimeUnit.NANOSECONDS);
-                if (lastResponse != null && !lastResponse.isEmpty()) {
-                    response += "\n" + lastResponse;
+    /**
+     * Baut die Verbindungen zu allen FHEM-Servern gleichzeitig auf.
+     *
+     * @throws FhemException Falls die Verbindung zu einem der Server nicht aufgebaut werden konnte.
+     */
+    private void startBackends() throws FhemException, InterruptedException {
+        final Map<String, FutureTask<Void>> tasks = new LinkedHashMap<>();
+        for (final Map.Entry<String, IFhemBackend> entry : this.backends.entrySet()) {
+            final FutureTask<Void> task = new FutureTask<>(() -> {
+                entry.getValue().start(this.newEventListener());
+                return null;
+            });
+            tasks.put(entry.getKey(), task);
+            new Thread(task, "DevicePowerManager.Connect-" + entry.getKey()).start();
+        }
+        Throwable failure = null;
+        for (final Map.Entry<String, FutureTask<Void>> entry : tasks.entrySet()) {
+            try {
+                entry.getValue().get();
+            } catch (final ExecutionException e) {
+                this.logger.error("Could not connect to the fhem server '" + entry.getKey() + "'.", e.getCause());
+                if (failure == null) {
+                    failure = e.getCause();
                 }
             }
-            if (response == null || !response.contains("fhem.pl")) {
-                // No response received.
-                this.logger.error("The fhem server did not send a matching response. Expected 'fhem.pl' but got:\n" +
-                        response);
-                throw new FhemException("Der FHEM-Server hat unerwartet geantwortet.");
-            }
-            this.logger.trace("Expecting " + countResponses + " lines from the version command.");
-            this.versionLinesToExpect = countResponses;
-            this.lastFullConnectionCheck = LocalDateTime.now();
-        } catch (IOException e) {
-            throw new FhemException("Konnte nicht mit dem FHEM-Server kommunizieren.", e);
+        }
+        if (failure != null) {
+            throw TaskFailures.rethrow(failure, FhemException.class, InterruptedException.class);
         }
     }
 
     /**
-     * Startet eine neue Telnet-Sitzung mit dem FHEM-Server, auf welchem Events
-     * empfangen werden.
+     * Gibt den Namen des FHEM-Servers zurück, über welchen ein Gerät
+     * geschaltet wird. Befehle an verschiedene FHEM-Server sind voneinander
+     * unabhängig.
      *
-     * @throws FhemException
+     * @param device Das Gerät oder null für Befehle, die kein einzelnes Gerät betreffen.
+     * @return Den Namen des FHEM-Servers in der Konfiguration.
      */
-    private void openFhemEventsConnection(boolean newReceiverThread) throws FhemException {
-        if (this.telnetFhemEvents != null && this.telnetFhemEvents.isAlive()) {
-            this.telnetFhemEvents.shutdown();
-        }
-        if (newReceiverThread && this.eventsReceiverThread != null && this.eventsReceiverThread.isAlive()) {
-            this.eventsReceiverThread.interrupt();
+    String getFhemEndpoint(Device device) {
+        if (device == null) {
+            return this.defaultEndpoint;
         }
+        return this.getFhemEndpoint(device.getFhemSwitchName());
+    }
 
-        try {
-            this.logger
-                    .info("Starting new events connection to fhem server on " + this.config.getFhemConnectionString() +
-                            ":" + this.config.getFhemPort());
-            this.telnetFhemEvents = new TelnetClient(this.config.getFhemConnectionString(), this.config.getFhemPort());
-            this.telnetFhemEvents.openConnection(5000);
+    /**
+     * Gibt den Namen des FHEM-Servers zurück, auf welchem ein Schalter oder
+     * Leistungsmesser eingerichtet ist.
+     *
+     * @param fhemName Der Name des Schalters oder Leistungsmessers im FHEM-Server.
+     * @return Den Namen des FHEM-Servers in der Konfiguration.
+     */
+    private String getFhemEndpoint(String fhemName) {
+        final String endpoint = this.endpointsByFhemName.get(fhemName);
+        return endpoint != null ? endpoint : this.defaultEndpoint;
+    }
 
-            if (!this.checkConnection(this.telnetFhemEvents, true)) {
-                throw new IOException("The opened events connection to the fhem server is not valid.");
-            }
+    /**
+     * Gibt die Verbindung zu dem FHEM-Server zurück, über welchen ein Gerät
+     * geschaltet wird.
+     */
+    private IFhemBackend getBackend(Device device) {
+        return this.backends.get(this.getFhemEndpoint(device));
+    }
 
-            this.telnetFhemEvents.sendCommand("inform on");
-        } catch (IOException e) {
-            throw new FhemException("Konnte keine Events-Verbindung zum FHEM-Server aufbauen.", e);
-        }
-
-        if (newReceiverThread || this.eventsReceiverThread == null || !this.eventsReceiverThread.isAlive()) {
-            this.eventsReceiverThread = new Thread(() -> {
-                eventLoop:
-                while (!Thread.interrupted()) {
-                    // If no event is received for 5 minutes, open a new connection.
-                    String event = null;
-                    try {
-                        event = this.telnetFhemEvents.waitForResponse(5, TimeUnit.MINUTES);
-                    } catch (final IOException e) {
-                        this.logger.error("Error while waiting for events.", e);
-                    } catch (final InterruptedException e) {
-                        // Terminate thread.
-                        break;
-                    }
-                    if (event != null) {
-                        this.onEventReceived(event);
-                    } else {
-                        this.logger.warn("Telnet session for receiving events is broken or dead. " +
-                                "A new connection is being opened.");
-                        while (!Thread.interrupted()) {
-                            // Try opening a new event connection once per five
-                            // seconds.
-                            try {
-                                this.openFhemEventsConnection(false);
-                                break;
-                            } catch (final FhemException e) {
-                                this.logger.error("Could not open a new events connection.", e);
-                                try {
-                                    Thread.sleep(5000);
-                                } catch (final InterruptedException e1) {
-                                    break eventLoop;
-                                }
-                            }
-                        }
-                    }
+    /**
+     * Beschränkt die Events-Sitzung auf die Ereignisse der gegebenen Geräte
+     * und der Geräte laufender Ausführungen. Der FHEM-Server sendet dann nur
+     * noch deren Ereignisse. Ändern sich die Geräte nicht, geschieht nichts.
+     *
+     * @param devices Die verwalteten Geräte.
+     */
+    public void updateEventFilter(Collection<Device> devices) {
+        if (Main.dry) {
+            return;
+        }
+        final Map<IFhemBackend, SortedSet<String>> names = new HashMap<>();
+        for (final IFhemBackend backend : this.backends.values()) {
+            names.put(backend, new TreeSet<>());
+        }
+        for (final Device d : devices) {
+            this.addFhemNames(names, d);
+        }
+        final ExecutionManager executionManager = ElwaManager.instance.getExecutionManager();
+        if (executionManager != null) {
+            for (final Execution e : executionManager.getRunningExecutions()) {
+                this.addFhemNames(names, e.getDevice());
+            }
+        }
+        synchronized (this.eventFilterLock) {
+            for (final Map.Entry<String, IFhemBackend> entry : this.backends.entrySet()) {
+                final IFhemBackend backend = entry.getValue();
+                final String filter = buildEventFilter(names.get(backend));
+                final String current = this.eventFilters.get(backend);
+                if (filter == null ? current == null : filter.equals(current)) {
+                    continue;
                 }
-            });
-            this.eventsReceiverThread.start();
+                this.eventFilters.put(backend, filter);
+                this.logger.info("Subscribing to the events of " + names.get(backend).size() +
+                        " devices on the fhem server '" + entry.getKey() + "'.");
+                backend.setEventFilter(filter);
+            }
         }
     }
 
     /**
-     * Wir aufgerufen, sobald vom fhem Server ein Ereignis empfangen worden ist.
-     *
-     * @param event Das Ereignis.
+     * Fügt den Schalter und den Leistungsmesser eines Geräts zu den Namen
+     * des FHEM-Servers hinzu, auf dem sie jeweils eingerichtet sind. Beide
+     * können auf verschiedenen Servern liegen.
      */
-    private void onEventReceived(String event) {
-        this.logger.trace("Event received: " + event);
-        final Matcher powerMatcher = this.eventsPowerPattern.matcher(event);
-
-        if (powerMatcher.find()) {
-            for (final Execution execution : ElwaManager.instance.getExecutionManager().getRunningExecutions()) {
-                if (powerMatcher.group(1).equals(execution.getDevice().getFhemPowerName())) {
-                    ElwaManager.instance.getExecutionManager()
-                            .onPowerMeasurementAvailable(execution, Double.parseDouble(powerMatcher.group(2)));
-                }
+    private void addFhemNames(Map<IFhemBackend, SortedSet<String>> names, Device device) {
+        for (final String name : new String[]{device.getFhemSwitchName(), device.getFhemPowerName()}) {
+            if (name != null && !name.isEmpty()) {
+                names.get(this.backends.get(this.getFhemEndpoint(name))).add(name);
             }
         }
     }
 
     /**
-     * Checks the connection to the Fhem-Server. If it is not alive, an
-     * IOException is being thrown.
+     * Erstellt den regulären Ausdruck für den Befehl "inform on", welcher die
+     * Ereignisse der gegebenen Geräte zulässt. FHEM prüft ihn sowohl gegen
+     * den Gerätenamen als auch gegen "Gerätename:Ereignis".
      *
-     * @return True, if the connection is alive.
+     * @param names Die Namen der Geräte im FHEM-Server.
+     * @return Den Ausdruck oder null, falls keine Namen angegeben sind.
      */
-    private boolean checkConnection(TelnetClient telnet, boolean forceFullCheck) {
-        Boolean res = null;
-        final LocalDateTime checkStart = LocalDateTime.now();
-        try {
-            if (telnet == null || !telnet.isAlive()) {
-                return false;
-            }
-            if (!forceFullCheck && this.lastFullConnectionCheck != null &&
-                    Duration.between(this.lastFullConnectionCheck, LocalDateTime.now())
-                            .minus(this.fullConnectionCheckDelay).isNegative()) {
-                this.logger.trace("Fast connection check returns true.");
-                return true;
+    static String buildEventFilter(Collection<String> names) {
+        if (names.isEmpty()) {
+            return null;
+        }
+        final StringBuilder res = new StringBuilder("^(");
+        boolean first = true;
+        for (final String name : names) {
+            if (!first) {
+                res.append('|');
             }
-            this.logger.trace("Full connection check started.");
-            telnet.emptyResponseBuffer();
-            telnet.sendCommand("version");
-            this.logger.trace("Waiting for anwser");
-            String answer = telnet.waitForResponse(5, TimeUnit.SECONDS);
-
-            // Retrieve remaining response lines
-            for (int i = 1; i < this.versionLinesToExpect; i++) {
-                String newAnswer = telnet.waitForResponse(5, TimeUnit.SECONDS);
-                answer += "\n" + newAnswer;
-                if (newAnswer == null) {
-                    // A response is missing.
-                    this.logger
-                            .warn("The server did not send a matching response. Expected " + this.versionLinesToExpect +
-                                    " lines but got " + i + ".");
-                    res = false;
-                    break;
+            first = false;
+            for (int i = 0; i < name.length(); i++) {
+                final char c = name.charAt(i);
+                if (!Character.isLetterOrDigit(c) && c != '_') {
+                    res.append('\\');
                 }
+                res.append(c);
             }
-            if (res == null) {
-                res = answer != null && answer.contains("fhem.pl");
+        }
+        return res.append(")(:|$)").toString();
+    }
+
+    /**
+     * Erstellt einen Empfänger für die Ereignisse einer Verbindung. Jeder
+     * Empfänger zerlegt die Ereignisse mit einem eigenen Zerleger, da er nur
+     * vom Empfangs-Thread seiner Verbindung aufgerufen wird.
+     */
+    private IFhemEventListener newEventListener() {
+        final FhemEventTokenizer tokenizer = new FhemEventTokenizer();
+        return event -> this.onEventReceived(event, tokenizer);
+    }
+
+    /**
+     * Wir aufgerufen, sobald vom fhem Server ein Ereignis empfangen worden ist.
+     * Läuft auf dem Empfangs-Thread und erzeugt für bekannte Namen keine
+     * Objekte.
+     *
+     * @param event Das Ereignis. Nur während des Aufrufs gültig.
+     * @param t     Der Zerleger der Verbindung, über welche das Ereignis empfangen wurde.
+     */
+    private void onEventReceived(CharSequence event, FhemEventTokenizer t) {
+        if (this.logger.isTraceEnabled()) {
+            this.logger.trace("Event received: " + event);
+        }
+        switch (t.parse(event)) {
+            case POWER:
+                final long timeNanos = System.nanoTime();
+                this.stateStore.updatePower(this.internName(event, t.nameStart, t.nameEnd), timeNanos, t.power);
+                // Der Ausführungsmanager wird erst nach dieser Klasse erstellt
+                final ExecutionManager executionManager = ElwaManager.instance.getExecutionManager();
+                if (executionManager != null) {
+                    executionManager.offerPowerMeasurement(event, t.nameStart, t.nameEnd, timeNanos, t.power);
+                }
+                break;
+            case STATE:
+                final String switchName = this.internName(event, t.nameStart, t.nameEnd);
+                this.stateStore.updateSwitchState(switchName, t.state);
+                final StateConfirmation confirmation = this.pendingConfirmations.get(switchName);
+                if (confirmation != null && t.state == confirmation.targetState) {
+                    confirmation.future.complete(null);
+                }
+                break;
+            default:
+                break;
+        }
+    }
+
+    /**
+     * Gibt den Namen im gegebenen Ausschnitt als String zurück. Ein String wird
+     * nur beim ersten Auftreten eines Namens erzeugt.
+     */
+    private String internName(CharSequence chars, int start, int end) {
+        String name = this.eventNames.get(chars, start, end);
+        if (name == null) {
+            name = chars.subSequence(start, end).toString();
+            this.eventNames.put(name, name);
+        }
+        return name;
+    }
+
+    /**
+     * Gibt den zuletzt bekannten Zustand aller Schalter und Leistungsmesser
+     * zurück.
+     *
+     * @return Den Speicher der zuletzt bekannten Zustände.
+     */
+    public DeviceStateStore getStateStore() {
+        return this.stateStore;
+    }
+
+    /**
+     * Gibt die geglättete Antwortzeit des langsamsten FHEM-Servers zurück.
+     *
+     * @return Die Antwortzeit oder null, falls noch keine gemessen wurde.
+     */
+    public Duration getFhemRoundTripTime() {
+        Duration res = null;
+        for (final IFhemBackend backend : this.backends.values()) {
+            final Duration rtt = backend.getRoundTripTime();
+            if (rtt != null && (res == null || rtt.compareTo(res) > 0)) {
+                res = rtt;
             }
-        } catch (final IOException | InterruptedException e) {
-            this.logger.warn("Error while checking the connection.", e);
-            res = false;
         }
-        this.logger.trace("Connection check returns " + res + " after " +
-                Duration.between(checkStart, LocalDateTime.now()).toMillis() + "ms");
-        this.lastFullConnectionCheck = LocalDateTime.now();
         return res;
     }
 
     /**
-     * Checks the connection to the Fhem-Server. If it is not alive, an
-     * IOException is being thrown.
+     * Wartet auf die Antwort eines Befehls.
      *
-     * @return True, if the connection is alive.
+     * @param future        Die ausstehende Antwort.
+     * @param timeoutMillis Die maximale Wartezeit in Millisekunden.
+     * @return Die Antwort.
+     * @throws IOException Falls der Befehl fehlgeschlagen ist oder nicht rechtzeitig beantwortet wurde.
      */
-    private boolean checkConnection() {
-        return Main.dry || this.checkConnection(this.telnetFhem, false);
+    static <T> T await(CompletableFuture<T> future, long timeoutMillis) throws IOException, InterruptedException {
+        try {
+            return future.get(timeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (final ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException("Fehler bei der Kommunikation mit dem FHEM-Server.", e.getCause());
+        } catch (final TimeoutException e) {
+            future.cancel(false);
+            throw new IOException("Der FHEM-Server hat nicht rechtzeitig geantwortet.", e);
+        }
     }
 
     /**
@@ -313,95 +404,122 @@ public class DevicePowerManager implements ICloseListener {
     @Override
     public void onClose(boolean restart) {
         this.logger.debug("Shutting down DevicePowerManager");
-        if (this.telnetFhem != null && this.telnetFhem.isAlive()) {
-            this.telnetFhem.shutdown();
-        }
-        this.eventsReceiverThread.interrupt();
-        if (this.telnetFhemEvents != null && this.telnetFhemEvents.isAlive()) {
-            this.telnetFhemEvents.shutdown();
+        for (final IFhemBackend backend : this.backends.values()) {
+            backend.shutdown();
         }
     }
 
     /**
-     * Switches the power of a device on.
+     * Switches the power of a device on. Commands for different devices are
+     * sent concurrently over the connection to the fhem server.
      *
      * @param device The device to switch on.
      * @throws InterruptedException
      */
     void setDevicePowerState(Device device, DevicePowerState newState)
             throws IOException, InterruptedException, FhemException {
-        synchronized (TELNET_LOCK) {
-            if (newState != DevicePowerState.ON && newState != DevicePowerState.OFF) {
-                throw new IllegalArgumentException("Der neue Zustand eines Geräts muss entweder ON oder OFF sein.");
+        if (newState != DevicePowerState.ON && newState != DevicePowerState.OFF) {
+            throw new IllegalArgumentException("Der neue Zustand eines Geräts muss entweder ON oder OFF sein.");
+        }
+        if (Main.dry) {
+            return;
+        }
+        // Warte auf das Ereignis, welches den neuen Zustand bestätigt
+        final StateConfirmation confirmation = new StateConfirmation(newState);
+        this.pendingConfirmations.put(device.getFhemSwitchName(), confirmation);
+        try {
+            this.setDevicePowerState(device, newState, confirmation);
+        } finally {
+            this.pendingConfirmations.remove(device.getFhemSwitchName(), confirmation);
+        }
+    }
+
+    private void setDevicePowerState(Device device, DevicePowerState newState, StateConfirmation confirmation)
+            throws IOException, InterruptedException, FhemException {
+        // Setze Zustand
+        final String switchName = device.getFhemSwitchName();
+        final String stateName = newState.name().toLowerCase();
+
+        // Check response from server. If it is empty, the command has been
+        // executed.
+        final IFhemBackend backend = this.getBackend(device);
+        String res;
+        try {
+            res = backend.setState(switchName, stateName)
+                    .get(FhemBackendDefaults.SET_REPLY_TIMEOUT.toMillis(), TimeUnit.MILLISECONDS);
+        } catch (final ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
             }
-            if (Main.dry) {
+            throw new IOException("Fehler bei der Kommunikation mit dem FHEM-Server.", e.getCause());
+        } catch (final TimeoutException e) {
+            // Der Befehl kann dennoch ausgeführt worden sein. Prüfe den Zustand.
+            this.logger.warn("[" + device.getName() + "] No reply to the set command. Checking the power state.");
+            res = "";
+        }
+        if (!res.isEmpty()) {
+            throw new IOException("Konnte die Stromversorgung des Geräts " + device.getName() +
+                    " nicht setzen. Antwort des FHEM-Servers: '" + res + "'");
+        } else {
+            try {
+                // Das Ereignis folgt der Antwort auf den Befehl über dieselbe
+                // Strecke, zuzüglich der Schaltzeit im FHEM-Server.
+                confirmation.future.get(2 * backend.getTimeoutMillis() + this.switchingTime.toMillis(),
+                        TimeUnit.MILLISECONDS);
+                this.logger.trace("[" + device.getName() + "] New power state confirmed by event.");
                 return;
-            }
-            if (!this.checkConnection()) {
-                this.openFhemConnection();
+            } catch (final ExecutionException | TimeoutException e) {
+                this.logger.debug("[" + device.getName() + "] No event confirmed the new power state. " +
+                        "Polling the state now.");
             }
 
-            // Setze Zustand
-            this.telnetFhem.emptyResponseBuffer();
-            String setCommand = "set " + device.getFhemSwitchName() + " " + newState.name().toLowerCase();
-            this.telnetFhem.sendCommand(setCommand);
-
-            // Check response from server. If it is empty, the command has been
-            // executed.
-            final String res = this.telnetFhem
-                    .waitForResponse(this.minimumTimeout.multipliedBy(2).getNano(), TimeUnit.NANOSECONDS);
-            if (res != null && !res.isEmpty()) {
-                throw new IOException("Konnte die Stromversorgung des Geräts " + device.getName() +
-                        " nicht setzen. Antwort des FHEM-Servers: '" + res + "'");
-            } else {
-                // Ensure that the action has been successful
-                DevicePowerState actualState = DevicePowerState.UNKNOWN;
-                for (int i = 0; i < this.checkStatusRetryCount; i++) {
-                    // Repeat checking the state for a fixed count of repetitions
-                    // before throwing an exception
-                    try {
-                        Thread.sleep(this.checkStatusDelay);
-                    } catch (final InterruptedException e1) {
-                        this.logger.warn("Interrupted while checking the power state.", e1);
-                        throw new IOException("Unterbrechung während dem prüfen des neuen Zustands.", e1);
-                    }
+            // Ensure that the action has been successful
+            DevicePowerState actualState = DevicePowerState.UNKNOWN;
+            for (int i = 0; i < this.checkStatusRetryCount; i++) {
+                // Repeat checking the state for a fixed count of repetitions
+                // before throwing an exception
+                try {
+                    Thread.sleep(this.checkStatusDelay);
+                } catch (final InterruptedException e1) {
+                    this.logger.warn("Interrupted while checking the power state.", e1);
+                    throw new IOException("Unterbrechung während dem prüfen des neuen Zustands.", e1);
+                }
 
-                    // Check the state
-                    actualState = this.getState(device);
-                    if (actualState == newState) {
-                        break;
-                    }
-                    if (actualState == DevicePowerState.ON || actualState == DevicePowerState.OFF) {
-                        // Server hat den Befehl nicht empfangen. Wiederhole ihn.
-                        this.telnetFhem.sendCommand(setCommand);
-                    }
-                    // If the state is not the intended one, continue checking.
+                // Check the state
+                actualState = await(this.getStateAsync(device), backend.getTimeoutMillis());
+                if (actualState == newState) {
+                    break;
+                }
+                if (actualState == DevicePowerState.ON || actualState == DevicePowerState.OFF) {
+                    // Server hat den Befehl nicht empfangen. Wiederhole ihn.
+                    backend.setState(switchName, stateName);
                 }
-                if (actualState != newState) {
-                    // If the state is not the intended one, throw an exception.
-                    String stateString;
-                    try {
-                        stateString = this.getRawState(device);
-                        if (stateString == null || stateString.isEmpty()) {
-                            stateString = "";
-                        } else {
-                            stateString = " Sein aktueller Zustand: " + stateString + ".";
-                        }
-                    } catch (final IOException e) {
+                // If the state is not the intended one, continue checking.
+            }
+            if (actualState != newState) {
+                // If the state is not the intended one, throw an exception.
+                String stateString;
+                try {
+                    stateString = this.getRawState(device);
+                    if (stateString == null || stateString.isEmpty()) {
                         stateString = "";
+                    } else {
+                        stateString = " Sein aktueller Zustand: " + stateString + ".";
                     }
-                    this.logger
-                            .error("Could not set the power state of device " + device.getName() + "." + stateString);
-                    throw new IOException(
-                            "Konnte die Stromversorgung des Geräts " + device.getName() + " nicht setzen." +
-                                    stateString);
+                } catch (final IOException e) {
+                    stateString = "";
                 }
+                this.logger.error("Could not set the power state of device " + device.getName() + "." + stateString);
+                throw new IOException(
+                        "Konnte die Stromversorgung des Geräts " + device.getName() + " nicht setzen." + stateString);
             }
         }
     }
 
     /**
-     * Looks up the power state of a device.
+     * Looks up the power state of a device. If the last known state is not
+     * older than the configured maximum age, it is returned without asking
+     * the fhem server.
      *
      * @param device Der Gerät, dessen Status geholt werden soll.
      * @return The power state of the device.
@@ -410,26 +528,147 @@ public class DevicePowerManager implements ICloseListener {
         if (Main.dry) {
             return DevicePowerState.UNKNOWN;
         }
+        final DevicePowerState known = this.stateStore.getSwitchState(device, this.config.getFhemStateMaxAge());
+        if (known != null) {
+            return known;
+        }
+        return await(this.getStateAsync(device), this.getBackend(device).getTimeoutMillis());
+    }
+
+    /**
+     * Fragt den Zustand eines Geräts ab, ohne auf die Antwort zu warten.
+     *
+     * @param device Der Gerät, dessen Status geholt werden soll.
+     * @return Den künftigen Zustand des Geräts.
+     */
+    CompletableFuture<DevicePowerState> getStateAsync(Device device)
+            throws InterruptedException, FhemException, IOException {
+        if (Main.dry) {
+            return CompletableFuture.completedFuture(DevicePowerState.UNKNOWN);
+        }
+        return this.getBackend(device).getState(device.getFhemSwitchName()).thenApply(res -> {
+            final DevicePowerState state = parseState(res);
+            this.stateStore.updateSwitchState(device.getFhemSwitchName(), state);
+            return state;
+        });
+    }
 
-        synchronized (TELNET_LOCK) {
-            if (!this.checkConnection()) {
-                this.openFhemConnection();
+    /**
+     * Fragt den Zustand mehrerer Geräte mit einer einzigen Anfrage ab. Geräte,
+     * deren zuletzt bekannter Zustand nicht älter als das konfigurierte
+     * Höchstalter ist, werden nicht abgefragt.
+     *
+     * @param devices Die Geräte, deren Status geholt werden soll.
+     * @return Den Zustand jedes übergebenen Geräts.
+     */
+    Map<Device, DevicePowerState> getStates(Collection<Device> devices)
+            throws InterruptedException, FhemException, IOException {
+        final Map<Device, DevicePowerState> res = new HashMap<>();
+        if (Main.dry) {
+            for (final Device d : devices) {
+                res.put(d, DevicePowerState.UNKNOWN);
+            }
+            return res;
+        }
+
+        final Map<IFhemBackend, List<String>> names = new LinkedHashMap<>();
+        for (final Device d : devices) {
+            final DevicePowerState known = this.stateStore.getSwitchState(d, this.config.getFhemStateMaxAge());
+            if (known != null) {
+                res.put(d, known);
+                continue;
+            }
+            names.computeIfAbsent(this.getBackend(d), b -> new ArrayList<>()).add(d.getFhemSwitchName());
+        }
+        if (names.isEmpty()) {
+            return res;
+        }
+
+        // Alle FHEM-Server gleichzeitig abfragen. Ist einer gestört, bleibt
+        // der Zustand seiner Geräte unbekannt.
+        final Map<IFhemBackend, CompletableFuture<String>> responses = new LinkedHashMap<>();
+        Exception failure = null;
+        for (final Map.Entry<IFhemBackend, List<String>> entry : names.entrySet()) {
+            try {
+                responses.put(entry.getKey(), entry.getKey().getStates(entry.getValue()));
+            } catch (final IOException | FhemException e) {
+                this.logger.warn("Could not query the states of " + entry.getValue() + ".", e);
+                failure = e;
+            }
+        }
+        final Map<String, DevicePowerState> statesByName = new HashMap<>();
+        for (final Map.Entry<IFhemBackend, CompletableFuture<String>> entry : responses.entrySet()) {
+            try {
+                statesByName.putAll(parseJsonList(await(entry.getValue(), entry.getKey().getTimeoutMillis())));
+            } catch (final IOException e) {
+                this.logger.warn("Could not query the states of " + names.get(entry.getKey()) + ".", e);
+                failure = e;
+            }
+        }
+        if (statesByName.isEmpty() && failure != null) {
+            if (failure instanceof FhemException) {
+                throw (FhemException) failure;
+            }
+            throw (IOException) failure;
+        }
+
+        for (final Device d : devices) {
+            if (res.containsKey(d)) {
+                continue;
+            }
+            final DevicePowerState state = statesByName.get(d.getFhemSwitchName());
+            if (state != null) {
+                this.stateStore.updateSwitchState(d.getFhemSwitchName(), state);
             }
-            this.telnetFhem.emptyResponseBuffer();
-            this.telnetFhem.sendCommand("get " + device.getFhemSwitchName() + " param state");
-            final String stateString = this.telnetFhem.waitForResponse(this.defaultTimeout, TimeUnit.MILLISECONDS);
-            switch (stateString) {
-                case "on":
-                    return DevicePowerState.ON;
-                case "off":
-                    return DevicePowerState.OFF;
-                case "set_on":
-                    return DevicePowerState.SET_ON;
-                case "set_off":
-                    return DevicePowerState.SET_OFF;
-                default:
-                    return DevicePowerState.UNKNOWN;
+            res.put(d, state != null ? state : DevicePowerState.UNKNOWN);
+        }
+        return res;
+    }
+
+    /**
+     * Liest die Zustände aus der Antwort des Befehls jsonlist2.
+     *
+     * @param response Die Antwort des FHEM-Servers.
+     * @return Die Zustände nach dem Namen des Schalters.
+     * @throws IOException Falls die Antwort nicht gelesen werden kann.
+     */
+    private static Map<String, DevicePowerState> parseJsonList(String response) throws IOException {
+        final Map<String, DevicePowerState> res = new HashMap<>();
+        try {
+            final JSONArray results = new JSONObject(response).getJSONArray("Results");
+            for (int i = 0; i < results.length(); i++) {
+                final JSONObject result = results.getJSONObject(i);
+                String value = null;
+                final JSONObject readings = result.optJSONObject("Readings");
+                if (readings != null && readings.optJSONObject("state") != null) {
+                    value = readings.optJSONObject("state").optString("Value", null);
+                }
+                if (value == null && result.optJSONObject("Internals") != null) {
+                    value = result.optJSONObject("Internals").optString("STATE", null);
+                }
+                res.put(result.getString("Name"), value != null ? parseState(value) : DevicePowerState.UNKNOWN);
             }
+        } catch (final JSONException e) {
+            throw new IOException("Die Antwort des FHEM-Servers konnte nicht gelesen werden: '" + response + "'", e);
+        }
+        return res;
+    }
+
+    /**
+     * Wandelt die Antwort des FHEM-Servers in einen Zustand um.
+     */
+    private static DevicePowerState parseState(String stateString) {
+        switch (stateString.trim()) {
+            case "on":
+                return DevicePowerState.ON;
+            case "off":
+                return DevicePowerState.OFF;
+            case "set_on":
+                return DevicePowerState.SET_ON;
+            case "set_off":
+                return DevicePowerState.SET_OFF;
+            default:
+                return DevicePowerState.UNKNOWN;
         }
     }
 
@@ -444,12 +683,21 @@ public class DevicePowerManager implements ICloseListener {
             return "unknown";
         }
 
-        if (!this.checkConnection()) {
-            this.openFhemConnection();
+        final IFhemBackend backend = this.getBackend(device);
+        return await(backend.getState(device.getFhemSwitchName()), backend.getTimeoutMillis());
+    }
+
+    /**
+     * Eine ausstehende Bestätigung eines neuen Schaltzustands durch ein
+     * Ereignis des FHEM-Servers.
+     */
+    private static class StateConfirmation {
+        private final DevicePowerState targetState;
+        private final CompletableFuture<Void> future = new CompletableFuture<>();
+
+        StateConfirmation(DevicePowerState targetState) {
+            this.targetState = targetState;
         }
-        this.telnetFhem.emptyResponseBuffer();
-        this.telnetFhem.sendCommand("get " + device.getFhemSwitchName() + " param state");
-        return this.telnetFhem.waitForResponse(this.defaultTimeout, TimeUnit.MILLISECONDS);
     }
 
     enum DevicePowerState {
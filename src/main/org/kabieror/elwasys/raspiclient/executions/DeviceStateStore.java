@@ -0,0 +1,240 @@
+package org.kabieror.elwasys.raspiclient.executions;
+
+import org.kabieror.elwasys.common.Device;
+
+import java.time.Duration;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Speichert den zuletzt bekannten Schaltzustand und die zuletzt gemessene Leistung der vom FHEM-Server verwalteten
+ * Schalter und Leistungsmesser.
+ * <p>
+ * Der Speicher wird aus den Ereignissen des FHEM-Servers und den Ergebnissen von Befehlen gespeist. Lesezugriffe
+ * erfolgen ohne Sperre auf einem unveränderlichen Stand, welcher bei jeder Änderung durch einen neuen Stand mit
+ * höherer Versionsnummer ersetzt wird.
+ * <p>
+ * Die Leistungsmessungen werden je Leistungsmesser in einem {@link PowerSampleRing} aufbewahrt. Sie sind nicht Teil
+ * des unveränderlichen Stands, sodass die häufigen Messungen ihn nicht jedes Mal kopieren.
+ *
+ * @author Oliver Kabierschke
+ */
+public class DeviceStateStore {
+
+    private final AtomicReference<Snapshot> current;
+
+    /**
+     * Die letzten Leistungsmessungen nach dem Namen des Leistungsmessers im FHEM-Server.
+     */
+    private final Map<String, PowerSampleRing> powerHistory = new ConcurrentHashMap<>();
+
+    private final int powerHistoryCapacity;
+
+    /**
+     * Erstellt einen leeren Speicher.
+     *
+     * @param powerHistoryCapacity Die Anzahl der Leistungsmessungen, die je Leistungsmesser aufbewahrt werden.
+     */
+    public DeviceStateStore(int powerHistoryCapacity) {
+        this.powerHistoryCapacity = powerHistoryCapacity;
+        this.current = new AtomicReference<>(new Snapshot(this, 0, Collections.emptyMap()));
+    }
+
+    /**
+     * Gibt den aktuellen Stand des Speichers zurück.
+     *
+     * @return Den aktuellen Stand.
+     */
+    public Snapshot snapshot() {
+        return this.current.get();
+    }
+
+    /**
+     * Gibt den zuletzt bekannten Zustand eines Geräts zurück.
+     *
+     * @param device Das Gerät.
+     * @return Den zuletzt bekannten Zustand des Geräts.
+     */
+    public DeviceState get(Device device) {
+        return this.current.get().get(device);
+    }
+
+    /**
+     * Gibt die letzten Leistungsmessungen eines Geräts zurück.
+     *
+     * @param device Das Gerät.
+     * @return Die letzten Leistungsmessungen oder null, falls das Gerät keinen Leistungsmesser hat oder noch keine
+     * Messung empfangen wurde.
+     */
+    public PowerSampleRing getPowerHistory(Device device) {
+        return device.getFhemPowerName() == null ? null : this.powerHistory.get(device.getFhemPowerName());
+    }
+
+    /**
+     * Gibt den zuletzt bekannten Schaltzustand eines Geräts zurück, falls dieser nicht älter als die angegebene Zeit
+     * ist.
+     *
+     * @param device Das Gerät.
+     * @param maxAge Das maximale Alter des Schaltzustands.
+     * @return Den Schaltzustand oder null, falls keiner bekannt oder dieser zu alt ist.
+     */
+    DevicePowerManager.DevicePowerState getSwitchState(Device device, Duration maxAge) {
+        final DeviceState state = this.get(device);
+        if (state.getSwitchState() == null || state.getSwitchStateAge().compareTo(maxAge) > 0) {
+            return null;
+        }
+        return state.getSwitchState();
+    }
+
+    /**
+     * Speichert einen neuen Schaltzustand.
+     *
+     * @param switchName Der Name des Schalters im FHEM-Server.
+     * @param state      Der neue Schaltzustand.
+     */
+    void updateSwitchState(String switchName, DevicePowerManager.DevicePowerState state) {
+        final long now = System.nanoTime();
+        Snapshot s;
+        Snapshot updated;
+        do {
+            s = this.current.get();
+            updated = s.with(switchName, new Entry(state, now));
+        } while (!this.current.compareAndSet(s, updated));
+    }
+
+    /**
+     * Speichert einen neuen Messwert der Leistung.
+     *
+     * @param powerName Der Name des Leistungsmessers im FHEM-Server.
+     * @param timeNanos Der Zeitpunkt des Empfangs nach {@link System#nanoTime()}.
+     * @param power     Die gemessene Leistung in Watt.
+     */
+    void updatePower(String powerName, long timeNanos, double power) {
+        PowerSampleRing ring = this.powerHistory.get(powerName);
+        if (ring == null) {
+            ring = this.powerHistory.computeIfAbsent(powerName, k -> new PowerSampleRing(this.powerHistoryCapacity));
+        }
+        ring.add(timeNanos, (float) power);
+    }
+
+    /**
+     * Ein unveränderlicher Stand des Speichers.
+     */
+    public static final class Snapshot {
+        private final DeviceStateStore store;
+        private final long version;
+        private final Map<String, Entry> entries;
+
+        private Snapshot(DeviceStateStore store, long version, Map<String, Entry> entries) {
+            this.store = store;
+            this.version = version;
+            this.entries = entries;
+        }
+
+        /**
+         * Gibt die Versionsnummer dieses Stands zurück. Sie wird mit jeder Änderung erhöht.
+         */
+        public long getVersion() {
+            return this.version;
+        }
+
+        /**
+         * Gibt den Zustand eines Geräts in diesem Stand zurück.
+         *
+         * @param device Das Gerät.
+         * @return Den Zustand des Geräts.
+         */
+        public DeviceState get(Device device) {
+            return new DeviceState(this.entries.get(device.getFhemSwitchName()), this.store.getPowerHistory(device));
+        }
+
+        private Snapshot with(String name, Entry entry) {
+            final Map<String, Entry> copy = new HashMap<>(this.entries);
+            copy.put(name, entry);
+            return new Snapshot(this.store, this.version + 1, Collections.unmodifiableMap(copy));
+        }
+    }
+
+    /**
+     * Der zuletzt bekannte Zustand eines Geräts. Die Leistung wird bei jeder Abfrage aus den aufbewahrten Messungen
+     * gelesen.
+     */
+    public static final class DeviceState {
+        private final Entry switchEntry;
+        private final PowerSampleRing powerHistory;
+
+        private DeviceState(Entry switchEntry, PowerSampleRing powerHistory) {
+            this.switchEntry = switchEntry;
+            this.powerHistory = powerHistory;
+        }
+
+        /**
+         * Gibt den zuletzt bekannten Schaltzustand zurück oder null, falls keiner bekannt ist.
+         */
+        DevicePowerManager.DevicePowerState getSwitchState() {
+            return this.switchEntry != null ? this.switchEntry.switchState : null;
+        }
+
+        /**
+         * Gibt das Alter des Schaltzustands zurück.
+         */
+        public Duration getSwitchStateAge() {
+            return this.switchEntry != null && this.switchEntry.switchState != null ?
+                    Duration.ofNanos(System.nanoTime() - this.switchEntry.switchNanos) : null;
+        }
+
+        /**
+         * Gibt zurück, ob eine Leistungsmessung bekannt ist.
+         */
+        public boolean hasPower() {
+            return this.powerHistory != null && this.powerHistory.size() > 0;
+        }
+
+        /**
+         * Gibt die zuletzt gemessene Leistung in Watt zurück oder NaN, falls keine bekannt ist.
+         */
+        public double getPower() {
+            return this.powerHistory != null ? this.powerHistory.getLatestPower() : Double.NaN;
+        }
+
+        /**
+         * Gibt die durchschnittliche Leistung im gegebenen Zeitraum vor dem aktuellen Zeitpunkt in Watt zurück oder
+         * NaN, falls keine Leistung bekannt ist.
+         *
+         * @param window Der Zeitraum, z.B. die letzte Minute.
+         */
+        public double getAveragePower(Duration window) {
+            return this.powerHistory != null ? this.powerHistory.getAveragePower(window) : Double.NaN;
+        }
+
+        /**
+         * Gibt das Alter der zuletzt gemessenen Leistung zurück.
+         */
+        public Duration getPowerAge() {
+            return this.powerHistory != null ? this.powerHistory.getLatestAge() : null;
+        }
+
+        /**
+         * Gibt die letzten Leistungsmessungen zurück oder null, falls keine bekannt sind.
+         */
+        public PowerSampleRing getPowerHistory() {
+            return this.powerHistory;
+        }
+    }
+
+    /**
+     * Ein Eintrag zu einem Namen im FHEM-Server.
+     */
+    private static final class Entry {
+        private final DevicePowerManager.DevicePowerState switchState;
+        private final long switchNanos;
+
+        Entry(DevicePowerManager.DevicePowerState switchState, long switchNanos) {
+            this.switchState = switchState;
+            this.switchNanos = switchNanos;
+        }
+    }
+}
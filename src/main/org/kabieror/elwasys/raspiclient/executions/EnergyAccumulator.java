@@ -0,0 +1,92 @@
+package org.kabieror.elwasys.raspiclient.executions;
+
+import java.time.Duration;
+
+/**
+ * Summiert die von einem Gerät während einer Ausführung aufgenommene Energie aus den einzelnen Leistungsmessungen.
+ * <p>
+ * Zwischen zwei Messungen wird die zuvor gemessene Leistung angenommen, da die Leistungsmesser nur bei Änderungen
+ * melden. Jede Messung wird mit konstantem Aufwand verarbeitet. Liegen zwei Messungen weiter als die größte erlaubte
+ * Lücke auseinander, etwa weil die Verbindung zum FHEM-Server unterbrochen war, wird nur die größte erlaubte Lücke
+ * gezählt und der Rest als nicht erfasste Zeit ausgewiesen. Messungen mit einem früheren Zeitpunkt als die vorherige,
+ * wie sie nach einem Neuaufbau der Verbindung eintreffen können, werden nicht gezählt.
+ *
+ * @author Oliver Kabierschke
+ */
+public class EnergyAccumulator {
+
+    private final long maxGapNanos;
+
+    private boolean hasSample = false;
+    private boolean finished = false;
+    private long lastNanos;
+    private double lastPower;
+
+    /**
+     * Die bisher aufgenommene Energie in Wattsekunden.
+     */
+    private double energy = 0;
+    private long uncoveredNanos = 0;
+
+    /**
+     * @param maxGap Die größte Lücke zwischen zwei Messungen, über welche die zuvor gemessene Leistung gezählt wird.
+     */
+    public EnergyAccumulator(Duration maxGap) {
+        this.maxGapNanos = maxGap.toNanos();
+    }
+
+    /**
+     * Verarbeitet eine Leistungsmessung.
+     *
+     * @param timeNanos Der Zeitpunkt der Messung nach {@link System#nanoTime()}.
+     * @param power     Die gemessene Leistung in Watt.
+     */
+    public synchronized void add(long timeNanos, double power) {
+        if (this.finished || Double.isNaN(power) || power < 0) {
+            return;
+        }
+        if (this.hasSample) {
+            final long dt = timeNanos - this.lastNanos;
+            if (dt < 0) {
+                return;
+            }
+            final long counted = Math.min(dt, this.maxGapNanos);
+            this.energy += this.lastPower * counted / 1e9;
+            this.uncoveredNanos += dt - counted;
+        }
+        this.hasSample = true;
+        this.lastNanos = timeNanos;
+        this.lastPower = power;
+    }
+
+    /**
+     * Schließt die Summe zum gegebenen Zeitpunkt ab. Bis dahin wird die zuletzt gemessene Leistung angenommen.
+     * Danach werden keine Messungen mehr gezählt, auch nicht bei wiederholtem Abschließen.
+     *
+     * @param timeNanos Der Zeitpunkt nach {@link System#nanoTime()}, z.B. das Ausschalten des Geräts.
+     */
+    public synchronized void finish(long timeNanos) {
+        if (this.hasSample) {
+            this.add(timeNanos, this.lastPower);
+        }
+        this.finished = true;
+    }
+
+    /**
+     * Gibt die bisher aufgenommene Energie zurück.
+     *
+     * @return Die Energie in Kilowattstunden.
+     */
+    public synchronized double getKilowattHours() {
+        return this.energy / 3.6e6;
+    }
+
+    /**
+     * Gibt die Zeit zurück, für welche wegen zu großer Lücken zwischen den Messungen keine Energie gezählt wurde.
+     *
+     * @return Die nicht erfasste Zeit.
+     */
+    public synchronized Duration getUncoveredTime() {
+        return Duration.ofNanos(this.uncoveredNanos);
+    }
+}
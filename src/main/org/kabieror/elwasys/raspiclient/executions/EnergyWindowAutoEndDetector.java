@@ -0,0 +1,152 @@
+package org.kabieror.elwasys.raspiclient.executions;
+
+import java.time.Duration;
+
+/**
+ * Das Gerät gilt als untätig, solange die im zurückliegenden Zeitfenster aufgenommene Energie unter der Energie liegt,
+ * die es bei der Schwellleistung aufgenommen hätte.
+ * <p>
+ * Zwischen zwei Messungen wird die zuvor gemessene Leistung angenommen, da die Leistungsmesser nur bei Änderungen
+ * melden. Die Energie im Zeitfenster ergibt sich aus der Differenz der aufsummierten Energie zum jetzigen Zeitpunkt und
+ * zum Beginn des Zeitfensters. Dafür werden die Messungen des Zeitfensters in Feldern primitiver Typen aufbewahrt, aus
+ * welchen jede Messung genau einmal wieder entfernt wird.
+ *
+ * @author Oliver Kabierschke
+ */
+class EnergyWindowAutoEndDetector implements AutoEndDetector {
+
+    private final double threshold;
+    private final long windowNanos;
+
+    /**
+     * Die Messungen im Zeitfenster als Ringpuffer: Zeitpunkt, Leistung und die bis zur Messung aufsummierte Energie in
+     * Wattsekunden.
+     */
+    private long[] nanos = new long[64];
+    private double[] watts = new double[64];
+    private double[] energy = new double[64];
+    private int head = 0;
+    private int size = 0;
+
+    /**
+     * Die Energie im Zeitfenster abzüglich der Energie bei Schwellleistung in Wattsekunden, zum Zeitpunkt der letzten
+     * Messung.
+     */
+    private double excess;
+
+    /**
+     * @param threshold Die Leistung in Watt, unter deren Energie im Zeitfenster das Gerät als untätig gilt.
+     * @param window    Die Länge des Zeitfensters.
+     */
+    EnergyWindowAutoEndDetector(double threshold, Duration window) {
+        this.threshold = threshold;
+        this.windowNanos = Math.max(1, window.toNanos());
+    }
+
+    @Override
+    public boolean onSample(long timeNanos, double power) {
+        double total = 0;
+        if (this.size > 0) {
+            final int last = this.index(this.size - 1);
+            total = this.energy[last] + this.watts[last] * Math.max(0, timeNanos - this.nanos[last]) / 1e9;
+        }
+        this.append(timeNanos, power, total);
+
+        // Entferne Messungen, welche vollständig vor dem Zeitfenster liegen. Die älteste verbleibende Messung reicht
+        // bis in das Zeitfenster hinein.
+        final long windowStart = timeNanos - this.windowNanos;
+        while (this.size > 1 && this.nanos[this.index(1)] - windowStart <= 0) {
+            this.head = (this.head + 1) % this.nanos.length;
+            this.size--;
+        }
+
+        // Energie zu Beginn des Zeitfensters, bzw. der ersten Messung, falls noch nicht so lange gemessen wird
+        final long firstNanos = this.nanos[this.head];
+        final double startEnergy;
+        final double covered;
+        if (firstNanos - windowStart < 0) {
+            startEnergy = this.energy[this.head] + this.watts[this.head] * (windowStart - firstNanos) / 1e9;
+            covered = this.windowNanos / 1e9;
+        } else {
+            startEnergy = this.energy[this.head];
+            covered = (timeNanos - firstNanos) / 1e9;
+        }
+        this.excess = total - startEnergy - this.threshold * covered;
+        return this.excess <= 0;
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * Ohne weitere Messungen verläuft die überschüssige Energie zwischen den Zeitpunkten, an denen eine Messung aus dem
+     * Zeitfenster fällt, linear. Sie wird an diesen Zeitpunkten berechnet, bis sie nicht mehr positiv ist.
+     */
+    @Override
+    public long getIdleDelayNanos() {
+        if (this.size == 0) {
+            return -1;
+        }
+        if (this.excess <= 0) {
+            return 0;
+        }
+        final int last = this.index(this.size - 1);
+        final long lastNanos = this.nanos[last];
+        final double lastPower = this.watts[last];
+        if (lastPower > this.threshold) {
+            return -1;
+        }
+        final double thresholdEnergy = this.threshold * this.windowNanos / 1e9;
+        long previousOffset = 0;
+        double previousExcess = this.excess;
+        for (int i = 0; i < this.size; i++) {
+            final int idx = this.index(i);
+            final long offset = this.nanos[idx] + this.windowNanos - lastNanos;
+            if (offset <= 0) {
+                continue;
+            }
+            // Der Beginn des Zeitfensters liegt genau auf dieser Messung
+            final double excess =
+                    this.energy[last] + lastPower * offset / 1e9 - this.energy[idx] - thresholdEnergy;
+            if (excess <= 0) {
+                return previousOffset +
+                        (long) Math.ceil((offset - previousOffset) * previousExcess / (previousExcess - excess));
+            }
+            previousOffset = offset;
+            previousExcess = excess;
+        }
+        // Nach Ablauf des Zeitfensters seit der letzten Messung ist das Gerät untätig
+        return this.windowNanos;
+    }
+
+    private void append(long timeNanos, double power, double total) {
+        if (this.size == this.nanos.length) {
+            this.grow();
+        }
+        final int idx = this.index(this.size);
+        this.nanos[idx] = timeNanos;
+        this.watts[idx] = power;
+        this.energy[idx] = total;
+        this.size++;
+    }
+
+    private void grow() {
+        final int capacity = this.nanos.length * 2;
+        final long[] n = new long[capacity];
+        final double[] w = new double[capacity];
+        final double[] e = new double[capacity];
+        for (int i = 0; i < this.size; i++) {
+            final int idx = this.index(i);
+            n[i] = this.nanos[idx];
+            w[i] = this.watts[idx];
+            e[i] = this.energy[idx];
+        }
+        this.nanos = n;
+        this.watts = w;
+        this.energy = e;
+        this.head = 0;
+    }
+
+    private int index(int position) {
+        return (this.head + position) % this.nanos.length;
+    }
+}
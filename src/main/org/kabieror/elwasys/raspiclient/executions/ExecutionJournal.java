@@ -0,0 +1,303 @@
+package org.kabieror.elwasys.raspiclient.executions;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * Ein lokales Journal der Übergänge im Lebenszyklus von Ausführungen.
+ * <p>
+ * Jeder Übergang wird als Datensatz fester Länge mit Prüfsumme an die Datei angehängt und mit
+ * {@link FileChannel#force(boolean)} auf den Datenträger geschrieben, bevor {@link #append} zurückkehrt. Beim Öffnen
+ * werden alle vollständigen Datensätze eingelesen; ein bei einem Absturz nur teilweise geschriebener Datensatz am Ende
+ * wird abgeschnitten. Sind alle Ausführungen im Journal abgeschlossen, wird die Datei geleert. Bleiben Ausführungen
+ * lange offen, wird die Datei ab einer bestimmten Größe mit den Übergängen der offenen Ausführungen neu geschrieben.
+ *
+ * @author Oliver Kabierschke
+ */
+class ExecutionJournal {
+
+    /**
+     * Typ (1 Byte), Id der Ausführung (4 Bytes), Zeitpunkt (8 Bytes) und Prüfsumme (4 Bytes).
+     */
+    private static final int RECORD_SIZE = 17;
+
+    /**
+     * Die Größe, ab welcher die Datei neu geschrieben wird, falls sie nicht geleert werden kann.
+     */
+    private static final long COMPACT_SIZE = 1024L * RECORD_SIZE;
+
+    private final Logger logger = LoggerFactory.getLogger(this.getClass());
+
+    private final File file;
+
+    private FileChannel channel;
+
+    private final ByteBuffer record = ByteBuffer.allocate(RECORD_SIZE);
+
+    private final CRC32 crc = new CRC32();
+
+    /**
+     * Die Übergänge der nicht abgeschlossenen Ausführungen als Bitmaske, nach der Id der Ausführung.
+     */
+    private final Map<Integer, Integer> open = new HashMap<>();
+
+    /**
+     * Die Zeitpunkte der festgehaltenen Enden der nicht abgeschlossenen Ausführungen in Millisekunden seit 1970, nach
+     * der Id der Ausführung.
+     */
+    private final Map<Integer, Long> stopTimes = new HashMap<>();
+
+    /**
+     * Öffnet das Journal und liest die darin festgehaltenen Übergänge ein.
+     *
+     * @param file Die Datei des Journals.
+     * @throws IOException Falls die Datei nicht geöffnet oder gelesen werden kann.
+     */
+    ExecutionJournal(File file) throws IOException {
+        this.file = file;
+        this.channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        this.recover();
+    }
+
+    /**
+     * Hält einen Übergang dauerhaft fest.
+     *
+     * @param transition  Der Übergang.
+     * @param executionId Die Id der Ausführung.
+     * @throws IOException Falls der Übergang nicht geschrieben werden konnte.
+     */
+    synchronized void append(Transition transition, int executionId) throws IOException {
+        final long millis = System.currentTimeMillis();
+        this.encode(transition, executionId, millis);
+
+        final long position = this.channel.size();
+        try {
+            while (this.record.hasRemaining()) {
+                this.channel.write(this.record, position + this.record.position());
+            }
+            this.channel.force(false);
+        } catch (final IOException e) {
+            // Einen teilweise geschriebenen Datensatz nicht stehen lassen
+            this.channel.truncate(position);
+            throw e;
+        }
+        this.apply(transition, executionId, millis);
+
+        if (this.open.isEmpty()) {
+            this.channel.truncate(0);
+            this.channel.force(false);
+        } else if (position + RECORD_SIZE >= COMPACT_SIZE && this.countOpenRecords() * 2L * RECORD_SIZE <= position) {
+            try {
+                this.compact();
+            } catch (final IOException e) {
+                // Der Übergang ist trotzdem festgehalten
+                this.logger.warn("Could not compact the execution journal " + this.file.getPath(), e);
+            }
+        }
+    }
+
+    /**
+     * Prüft, ob ein Übergang einer nicht abgeschlossenen Ausführung festgehalten ist.
+     *
+     * @param transition  Der Übergang.
+     * @param executionId Die Id der Ausführung.
+     * @return True, falls der Übergang festgehalten ist.
+     */
+    synchronized boolean contains(Transition transition, int executionId) {
+        final Integer flags = this.open.get(executionId);
+        return flags != null && (flags & transition.bit()) != 0;
+    }
+
+    /**
+     * Gibt den festgehaltenen Zeitpunkt des Endes einer nicht abgeschlossenen Ausführung zurück.
+     *
+     * @param executionId Die Id der Ausführung.
+     * @return Der Zeitpunkt in Millisekunden seit 1970 oder null, falls kein Ende festgehalten ist.
+     */
+    synchronized Long getStopTime(int executionId) {
+        return this.stopTimes.get(executionId);
+    }
+
+    /**
+     * Gibt die Ausführungen zurück, welche gestartet, aber noch nicht abgeschlossen sind.
+     *
+     * @return Die Ids der Ausführungen.
+     */
+    synchronized List<Integer> getUnsettled() {
+        return new ArrayList<>(this.open.keySet());
+    }
+
+    /**
+     * Schließt die Datei des Journals.
+     */
+    synchronized void close() {
+        try {
+            this.channel.close();
+        } catch (final IOException e) {
+            this.logger.warn("Could not close the execution journal " + this.file.getPath(), e);
+        }
+    }
+
+    private void encode(Transition transition, int executionId, long millis) {
+        this.record.clear();
+        this.record.put((byte) transition.ordinal());
+        this.record.putInt(executionId);
+        this.record.putLong(millis);
+        this.crc.reset();
+        this.crc.update(this.record.array(), 0, RECORD_SIZE - 4);
+        this.record.putInt((int) this.crc.getValue());
+        this.record.flip();
+    }
+
+    private int countOpenRecords() {
+        int count = 0;
+        for (final int flags : this.open.values()) {
+            count += Integer.bitCount(flags);
+        }
+        return count;
+    }
+
+    /**
+     * Schreibt die Übergänge der offenen Ausführungen in eine neue Datei und ersetzt die bisherige Datei durch sie.
+     * Bis die neue Datei vollständig geschrieben ist, bleibt die bisherige unverändert.
+     */
+    private void compact() throws IOException {
+        final File tmp = new File(this.file.getPath() + ".tmp");
+        final FileChannel compacted = FileChannel.open(tmp.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            for (final Map.Entry<Integer, Integer> entry : this.open.entrySet()) {
+                for (final Transition transition : Transition.values()) {
+                    if ((entry.getValue() & transition.bit()) == 0) {
+                        continue;
+                    }
+                    final Long stopTime = this.stopTimes.get(entry.getKey());
+                    this.encode(transition, entry.getKey(),
+                            transition == Transition.STOP && stopTime != null ? stopTime : System.currentTimeMillis());
+                    while (this.record.hasRemaining()) {
+                        compacted.write(this.record);
+                    }
+                }
+            }
+            compacted.force(false);
+            // Der geöffnete Kanal gehört danach zu der ersetzten Datei
+            Files.move(tmp.toPath(), this.file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } catch (final IOException e) {
+            compacted.close();
+            tmp.delete();
+            throw e;
+        }
+        final FileChannel previous = this.channel;
+        this.channel = compacted;
+        try {
+            previous.close();
+        } catch (final IOException e) {
+            this.logger.warn("Could not close the previous execution journal.", e);
+        }
+        this.logger.info("Compacted the execution journal to " + this.countOpenRecords() + " records.");
+    }
+
+    private void apply(Transition transition, int executionId, long millis) {
+        if (transition == Transition.PAYMENT_APPLIED || transition == Transition.ABANDONED) {
+            this.open.remove(executionId);
+            this.stopTimes.remove(executionId);
+        } else {
+            this.open.merge(executionId, transition.bit(), (a, b) -> a | b);
+            if (transition == Transition.STOP) {
+                this.stopTimes.put(executionId, millis);
+            }
+        }
+    }
+
+    /**
+     * Liest die vollständigen Datensätze ein und schneidet die Datei nach dem letzten ab.
+     */
+    private void recover() throws IOException {
+        final long size = this.channel.size();
+        long position = 0;
+        int count = 0;
+        while (position + RECORD_SIZE <= size) {
+            this.record.clear();
+            while (this.record.hasRemaining()) {
+                if (this.channel.read(this.record, position + this.record.position()) < 0) {
+                    break;
+                }
+            }
+            this.crc.reset();
+            this.crc.update(this.record.array(), 0, RECORD_SIZE - 4);
+            this.record.flip();
+            final int type = this.record.get();
+            final int executionId = this.record.getInt();
+            final long millis = this.record.getLong();
+            if (this.record.getInt() != (int) this.crc.getValue() || type < 0 ||
+                    type >= Transition.values().length) {
+                break;
+            }
+            this.apply(Transition.values()[type], executionId, millis);
+            position += RECORD_SIZE;
+            count++;
+        }
+        if (position < size) {
+            this.logger.warn("The execution journal " + this.file.getPath() + " has an incomplete record at " +
+                    position + ". Discarding " + (size - position) + " bytes.");
+            this.channel.truncate(position);
+            this.channel.force(false);
+        }
+        if (count > 0) {
+            this.logger.info("Read " + count + " records from the execution journal. " + this.open.size() +
+                    " executions are not settled.");
+        }
+    }
+
+    /**
+     * Die Übergänge im Lebenszyklus einer Ausführung. Die Reihenfolge bestimmt die Kennung im Journal und darf nicht
+     * verändert werden.
+     */
+    enum Transition {
+        /**
+         * Die Ausführung wurde gestartet und das Gerät wird eingeschaltet.
+         */
+        START,
+        /**
+         * Die Ausführung wurde beendet und das Gerät ist ausgeschaltet.
+         */
+        STOP,
+        /**
+         * Das Ende der Ausführung ist in der Datenbank gespeichert.
+         */
+        STOP_APPLIED,
+        /**
+         * Die Ausführung ist bezahlt. Damit ist sie abgeschlossen.
+         */
+        PAYMENT_APPLIED,
+        /**
+         * Die Ausführung wird nicht weiter verfolgt, etwa weil das Gerät nicht eingeschaltet werden konnte, sie laut
+         * der Datenbank nicht mehr läuft oder ihr Ende von Hand korrigiert wurde.
+         */
+        ABANDONED,
+        /**
+         * Das Ende wurde so spät in der Datenbank gespeichert, dass die Ausführung zu lange abgerechnet würde. Sie wird
+         * nicht bezahlt und bleibt offen, bis ihr Ende von Hand korrigiert ist.
+         */
+        CORRECTION_PENDING;
+
+        int bit() {
+            return 1 << this.ordinal();
+        }
+    }
+}
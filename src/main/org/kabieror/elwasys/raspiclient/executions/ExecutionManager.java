@@ -1,13 +1,5 @@
 package org.kabieror.elwasys.raspiclient.executions;
 
-import com.mashape.unirest.http.HttpResponse;
-import com.mashape.unirest.http.JsonNode;
-import com.mashape.unirest.http.Unirest;
-import com.mashape.unirest.http.exceptions.UnirestException;
-import net.pushover.client.*;
-import org.apache.commons.mail.EmailException;
-import org.json.JSONArray;
-import org.json.JSONObject;
 import org.kabieror.elwasys.common.Device;
 import org.kabieror.elwasys.common.Execution;
 import org.kabieror.elwasys.common.NoDataFoundException;
@@ -17,22 +9,28 @@ import org.kabieror.elwasys.raspiclient.configuration.WashguardConfiguration;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.File;
 import java.io.IOException;
 import java.nio.charset.Charset;
 import java.security.InvalidParameterException;
 import java.sql.SQLException;
+import java.time.Duration;
+import java.time.Instant;
 import java.time.LocalDateTime;
+import java.time.ZoneId;
 import java.time.format.DateTimeFormatter;
 import java.time.format.FormatStyle;
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.Vector;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
-import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
-import java.util.stream.Collectors;
 
 /**
  * Dieser Manager verwaltet laufende Ausführungsaufträge.
@@ -55,16 +53,58 @@ public class ExecutionManager implements ICloseListener {
     private final ScheduledExecutorService executorService;
 
     /**
-     * Alle geplanten Operationen, die zum Ende einer Programmausführung
-     * ausgeführt werden
+     * Löst das Ende von Programmausführungen und geplante automatische
+     * Beendigungen aus.
      */
-    private final Map<Execution, ExecutionFinisher> executionFinishers = new HashMap<>();
+    private final HashedTimerWheel timers;
 
     /**
-     * Alle geplanten Beendigungen von Ausführungen aufgrund von geringer
-     * Leistung.
+     * Versendet die Benachrichtigungen über beendete Ausführungen.
      */
-    private final Map<Execution, ScheduledFuture> plannedStops = new HashMap<>();
+    private final NotificationOutbox notifications;
+
+    /**
+     * Hält Start und Ende der Ausführungen lokal fest, bevor sie in die
+     * Datenbank übernommen sind. Null, falls das Journal nicht geöffnet
+     * werden konnte.
+     */
+    private final ExecutionJournal journal;
+
+    /**
+     * Die Ids der beendeten Ausführungen, die gerade im Hintergrund in die
+     * Datenbank übernommen werden.
+     */
+    private final Set<Integer> replaying = ConcurrentHashMap.newKeySet();
+
+    /**
+     * Der größte Abstand zwischen zwei Versuchen, eine beendete Ausführung in
+     * die Datenbank zu übernehmen.
+     */
+    private final Duration maxReplayBackoff = Duration.ofMinutes(5);
+
+    /**
+     * Die Verzögerung, ab welcher ein im Hintergrund gespeichertes Ende von
+     * Hand korrigiert werden muss, bevor die Ausführung abgerechnet wird.
+     */
+    private final Duration lateStopTolerance = Duration.ofMinutes(1);
+
+    /**
+     * Die laufenden und noch nicht abgeschlossenen Ausführungen nach Gerät
+     * und nach dem Namen des Leistungsmessers ihres Geräts im FHEM-Server.
+     */
+    private final ExecutionRegistry<RunningExecution> executions = new ExecutionRegistry<>();
+
+    /**
+     * Der Abstand, in dem eingegangene Leistungsmessungen verarbeitet werden.
+     */
+    private final Duration powerDrainInterval = Duration.ofSeconds(1);
+
+    /**
+     * Planen die Befehle an die FHEM-Server nach Gerät und Dringlichkeit, nach
+     * dem Namen des FHEM-Servers. Jeder Server hat eigene Ausführende, sodass
+     * ein langsamer Server die Befehle an die übrigen nicht aufhält.
+     */
+    private final Map<String, FhemCommandScheduler> commandSchedulers = new ConcurrentHashMap<>();
 
      /**
      * Erstellt eine Instanz des Ausführungsmanager
@@ -74,38 +114,77 @@ public class ExecutionManager implements ICloseListener {
         this.finishListeners = new Vector<>();
         this.errorListeners = new Vector<>();
         this.executorService = Executors.newScheduledThreadPool(4);
+        this.timers = new HashedTimerWheel(Duration.ofMillis(100), 512, this.executorService);
+        this.notifications =
+                new NotificationOutbox(ElwaManager.instance.getConfigurationManager().getNotificationOutboxFile());
+
+        final File journalFile = ElwaManager.instance.getConfigurationManager().getExecutionJournalFile();
+        ExecutionJournal journal = null;
+        try {
+            journal = new ExecutionJournal(journalFile);
+        } catch (final IOException e) {
+            this.logger.error("Could not open the execution journal " + journalFile.getPath() +
+                    ". Executions are written to the database directly.", e);
+        }
+        this.journal = journal;
 
         ElwaManager.instance.listenToCloseEvent(this);
 
         this.executorService.scheduleAtFixedRate(() -> {
             // Plane Sicherung vor externer Aktivierung der Stromzufuhr von Geräten
             try {
-                for (Device d : ElwaManager.instance.getManagedDevices()) {
-                    this.logger.trace(String.format("[%1s] Checking power state", d.getName()));
+                final List<Device> managedDevices = ElwaManager.instance.getManagedDevices();
+
+                // Folge Änderungen der verwalteten Geräte mit dem Abonnement der Ereignisse
+                ElwaManager.instance.getDevicePowerManager().updateEventFilter(managedDevices);
+
+                final List<Device> idleDevices = new ArrayList<>();
+                for (Device d : managedDevices) {
+                    if (d.getCurrentExecution() == null) {
+                        idleDevices.add(d);
+                    }
+                }
+                this.logger.trace("Checking power state of " + idleDevices.size() + " idle devices");
+
+                // Frage den Zustand aller freien Geräte mit einer Anfrage ab
+                final Map<Device, DevicePowerManager.DevicePowerState> states;
+                try {
+                    states = this.getCommandScheduler(null)
+                            .execute(null, FhemCommandScheduler.Priority.BACKGROUND,
+                                    () -> ElwaManager.instance.getDevicePowerManager().getStates(idleDevices));
+                } catch (InterruptedException | FhemException | IOException e1) {
+                    this.logger.error("Could not check power states.", e1);
+                    return;
+                }
+
+                for (Device d : idleDevices) {
+                    if (states.get(d) != DevicePowerManager.DevicePowerState.ON) {
+                        continue;
+                    }
+                    // Der Befehl wird unter der Sperre des Geräts eingereiht,
+                    // sodass ein später gestartetes Programm ihn nicht
+                    // überholen kann. Auf ihn gewartet wird ohne Sperre.
+                    final CompletableFuture<Void> powerOff;
                     synchronized (d) {
-                        if (d.getCurrentExecution() == null) {
-                            // Stelle sicher, dass die Stromzufuhr des Geräts aus ist.
-                            DevicePowerManager.DevicePowerState state;
-                            try {
-                                state = ElwaManager.instance.getDevicePowerManager().getState(d);
-                            } catch (InterruptedException | FhemException | IOException e1) {
-                                this.logger.error(String.format("[%1s] Could not check power state.", d.getName()), e1);
-                                return;
-                            }
-                            if (state == DevicePowerManager.DevicePowerState.ON) {
-                                // Schalte Gerät aus.
-                                try {
-                                    this.logger.warn(String
-                                            .format("[%1s] Device has been powered on but there is no execution running. " +
-                                                    "Switching it" + " off now" + ".", d.getName()));
+                        if (d.getCurrentExecution() != null) {
+                            continue;
+                        }
+                        // Schalte Gerät aus.
+                        this.logger.warn(String
+                                .format("[%1s] Device has been powered on but there is no execution running. " +
+                                        "Switching it" + " off now" + ".", d.getName()));
+                        powerOff = this.getCommandScheduler(d)
+                                .submit(d, FhemCommandScheduler.Priority.BACKGROUND, () -> {
                                     ElwaManager.instance.getDevicePowerManager()
                                             .setDevicePowerState(d, DevicePowerManager.DevicePowerState.OFF);
-                                } catch (IOException | InterruptedException | FhemException e1) {
-                                    this.logger.error(String.format("[%1s] Could not power off device.", d.getName()), e1);
-                                }
-                            }
-                        }
+                                    return null;
+                                });
                     }
+                    powerOff.whenComplete((res, e1) -> {
+                        if (e1 != null) {
+                            this.logger.error(String.format("[%1s] Could not power off device.", d.getName()), e1);
+                        }
+                    });
                 }
             } catch (SQLException e) {
                 this.logger.warn("Could not get managed devices.", e);
@@ -113,6 +192,14 @@ public class ExecutionManager implements ICloseListener {
                 this.logger.warn("No devices found");
             }
         }, 20, 20, TimeUnit.SECONDS);
+
+        this.executorService.scheduleAtFixedRate(() -> {
+            try {
+                this.drainPowerMailboxes();
+            } catch (final RuntimeException e) {
+                this.logger.error("Could not process power measurements.", e);
+            }
+        }, this.powerDrainInterval.toMillis(), this.powerDrainInterval.toMillis(), TimeUnit.MILLISECONDS);
     }
 
     /**
@@ -128,24 +215,48 @@ public class ExecutionManager implements ICloseListener {
 
             final ExecutionFinisher r = new ExecutionFinisher(e);
 
-            this.executionFinishers.put(e, r);
+            final RunningExecution running = new RunningExecution(e, r, this.timers.newTimer(r),
+                    this.timers.newTimer(() -> {
+                        this.logger.info("[" + e.getDevice().getName() + "] Power measurement detected end of program");
+                        this.autoEndExecution(e);
+                    }), this.createAutoEndDetector(e),
+                    new EnergyAccumulator(ElwaManager.instance.getConfigurationManager().getEnergyMaxGap()));
+            this.executions.put(e, running);
+
+            // Halte den Start fest, bevor er in der Datenbank gespeichert
+            // wird. Eine fortgesetzte Ausführung ist bereits im Journal.
+            if (this.journal != null && !this.journal.contains(ExecutionJournal.Transition.START, e.getId())) {
+                this.writeJournal(e, ExecutionJournal.Transition.START);
+            }
 
             // Startzeit setzen
             try {
                 e.start();
             } catch (final SQLException ex) {
-                this.executionFinishers.remove(e);
+                this.executions.remove(e);
+                this.writeJournal(e, ExecutionJournal.Transition.ABANDONED);
                 throw ex;
             }
+            this.executions.update();
             this.logger.debug("[" + e.getDevice().getName() + "] Database updated");
 
+            // Die Energie wird ab dem Einschalten gezählt. Währenddessen
+            // eintreffende Messungen folgen auf diesen Anfangswert.
+            final PowerSampleRing recentPower = this.getRecentPowerHistory(e.getDevice());
+            running.energy.add(System.nanoTime(), recentPower != null ? recentPower.getLatestPower() : 0);
+
             // Strom freigeben
             try {
-                ElwaManager.instance.getDevicePowerManager()
-                        .setDevicePowerState(e.getDevice(), DevicePowerManager.DevicePowerState.ON);
+                this.getCommandScheduler(e.getDevice())
+                        .execute(e.getDevice(), FhemCommandScheduler.Priority.INTERACTIVE, () -> {
+                            ElwaManager.instance.getDevicePowerManager()
+                                    .setDevicePowerState(e.getDevice(), DevicePowerManager.DevicePowerState.ON);
+                            return null;
+                        });
             } catch (final IOException | InterruptedException | FhemException ex) {
-                this.executionFinishers.remove(e);
+                this.executions.remove(e);
                 e.reset();
+                this.writeJournal(e, ExecutionJournal.Transition.ABANDONED);
                 throw ex;
             }
             this.logger.debug("[" + e.getDevice().getName() + "] Power enabled");
@@ -153,13 +264,18 @@ public class ExecutionManager implements ICloseListener {
             // Gerät benachrichten
             e.getDevice().onExecutionStarted(e);
 
-            r.setScheduledFuture(this.executorService.schedule(r, e.getRemainingTime().getSeconds(), TimeUnit.SECONDS));
+            running.endTimer.schedule(e.getRemainingTime());
             this.logger.debug("[" + e.getDevice().getName() + "] Finisher scheduled to run in " +
                     e.getRemainingTime().getSeconds() + "s");
 
             // Plane automatischen Stop, falls keine elektrische Leistung vom Gerät
-            // abgenommen wird.
-            this.onPowerMeasurementAvailable(e, 0);
+            // abgenommen wird. Ist eine aktuelle Messung bekannt, wird sie mit
+            // ihrem Zeitpunkt verwendet.
+            if (recentPower != null) {
+                this.onPowerMeasurementAvailable(e, recentPower.getLatestNanos(), recentPower.getLatestPower());
+            } else {
+                this.onPowerMeasurementAvailable(e, System.nanoTime(), 0);
+            }
         }
 
         // Benachrichtige Listener
@@ -168,25 +284,80 @@ public class ExecutionManager implements ICloseListener {
         }
     }
 
+    /**
+     * Setzt die Ausführungen fort, welche laut der Datenbank beim letzten
+     * Beenden der Anwendung liefen. Wurde eine davon bereits beendet, aber
+     * nicht mehr in die Datenbank übernommen, wird sie stattdessen im
+     * Hintergrund in die Datenbank übernommen.
+     *
+     * @param interrupted Die laut der Datenbank laufenden Ausführungen
+     */
+    public void resumeExecutions(List<Execution> interrupted)
+            throws SQLException, IOException, InterruptedException, FhemException {
+        final Set<Integer> ids = new HashSet<>();
+        for (final Execution e : interrupted) {
+            ids.add(e.getId());
+            if (this.journal != null && this.journal.contains(ExecutionJournal.Transition.STOP, e.getId())) {
+                this.logger.info("[" + e.getDevice().getName() + "] Execution " + e.getId() +
+                        " has been stopped before the restart. Applying it to the database.");
+                this.replay(e);
+            } else {
+                this.startExecution(e);
+            }
+        }
+
+        if (this.journal == null) {
+            return;
+        }
+        final List<Integer> corrected = ElwaManager.instance.getConfigurationManager().getCorrectedExecutions();
+        for (final Integer id : this.journal.getUnsettled()) {
+            if (ids.contains(id)) {
+                continue;
+            }
+            if (this.journal.contains(ExecutionJournal.Transition.CORRECTION_PENDING, id)) {
+                if (!corrected.contains(id)) {
+                    this.logger.error("Execution " + id + " stopped at " + this.formatStopTime(id) +
+                            " but its end has been stored too late. It has not been paid. Please correct its end, " +
+                            "bill it and add it to executions.corrected.");
+                    continue;
+                }
+                this.logger.info("Execution " + id + " has been corrected. Removing it from the journal.");
+            } else if (this.journal.contains(ExecutionJournal.Transition.STOP, id)) {
+                // Die Datenbank hat das Ende übernommen, aber die Bestätigung
+                // fehlt. Ob die Ausführung bezahlt wurde, ist nicht bekannt.
+                this.logger.error("Execution " + id + " has been stopped but it is unknown whether it has been " +
+                        "paid. Please check the payment.");
+            } else {
+                // Die Ausführung läuft laut der Datenbank nicht mehr
+                this.logger.info("Execution " + id + " is not running anymore. Removing it from the journal.");
+            }
+            try {
+                this.journal.append(ExecutionJournal.Transition.ABANDONED, id);
+            } catch (final IOException e) {
+                this.logger.error("Could not write to the execution journal.", e);
+            }
+        }
+    }
+
     /**
      * Bricht eine Programmausführung ab
      *
      * @param e Die abzubrechende Programmausführung
      */
     public void abortExecution(Execution e) {
-        final ExecutionFinisher finisher = this.executionFinishers.get(e);
-        if (finisher == null) {
+        final RunningExecution running = this.executions.get(e);
+        if (running == null) {
             throw new InvalidParameterException("The execution to abort is not running");
         }
-        finisher.abort();
+        running.finisher.abort();
     }
 
     private void autoEndExecution(Execution e) {
-        final ExecutionFinisher finisher = this.executionFinishers.get(e);
-        if (finisher == null) {
+        final RunningExecution running = this.executions.get(e);
+        if (running == null) {
             throw new InvalidParameterException("The execution to abort is not running");
         }
-        finisher.run();
+        running.finisher.run();
     }
 
     /**
@@ -200,21 +371,33 @@ public class ExecutionManager implements ICloseListener {
      */
     public void retryFinishExecution(Execution e)
             throws SQLException, IOException, InterruptedException, FhemException {
-        final ExecutionFinisher finisher = this.executionFinishers.get(e);
-        if (finisher == null) {
+        final RunningExecution running = this.executions.get(e);
+        if (running == null) {
             throw new InvalidParameterException("The execution to finish is already finished");
         }
-        finisher.retry();
+        running.finisher.retry();
     }
 
     /**
      * Gibt eine Liste aller laufenden Ausführungen zurück.
      *
-     * @return Eine Liste aller laufenden Ausführungen.
+     * @return Eine unveränderliche Liste aller laufenden Ausführungen.
      */
     public List<Execution> getRunningExecutions() {
-        return this.executionFinishers.keySet().stream().filter(Execution::isRunning)
-                .collect(Collectors.toCollection(Vector::new));
+        return this.executions.getRunning();
+    }
+
+    /**
+     * Gibt die Energie zurück, die das Gerät einer laufenden Ausführung bisher
+     * aufgenommen hat.
+     *
+     * @param execution Die laufende Ausführung.
+     * @return Die Energie in Kilowattstunden oder NaN, falls für die
+     * Ausführung keine Leistung gemessen wurde.
+     */
+    public double getConsumedEnergy(Execution execution) {
+        final RunningExecution running = this.executions.get(execution);
+        return running != null ? running.energy.getKilowattHours() : Double.NaN;
     }
 
     /**
@@ -225,12 +408,76 @@ public class ExecutionManager implements ICloseListener {
      * @return Die laufende Ausführung, oder null, wenn das Gerät frei ist.
      */
     public Execution getRunningExecution(Device device) {
-        for (final Execution e : this.executionFinishers.keySet()) {
-            if (e.getDevice().equals(device)) {
-                return e;
+        return this.executions.getExecution(device);
+    }
+
+    /**
+     * Nimmt eine Leistungsmessung entgegen, ohne dafür Objekte zu erzeugen.
+     * Sie wird sofort mit dem Zeitpunkt ihres Empfangs in die Energie
+     * eingerechnet und mit der nächsten Abholung weiter verarbeitet, falls auf
+     * dem Gerät mit dem gegebenen Leistungsmesser eine Ausführung läuft.
+     *
+     * @param chars     Die Zeichenfolge, welche den Namen des Leistungsmessers enthält.
+     * @param start     Der Index des ersten Zeichens des Namens.
+     * @param end       Der Index nach dem letzten Zeichen des Namens.
+     * @param timeNanos Der Zeitpunkt des Empfangs nach {@link System#nanoTime()}.
+     * @param power     Die gemessene Leistung in Watt.
+     */
+    void offerPowerMeasurement(CharSequence chars, int start, int end, long timeNanos, double power) {
+        final RunningExecution running = this.executions.getByPowerName(chars, start, end);
+        if (running == null) {
+            return;
+        }
+        // Jede Messung zählt für die Energie, auch wenn sie bis zur Abholung
+        // durch eine neuere ersetzt wird.
+        running.energy.add(timeNanos, power);
+        if (running.powerMailbox != null) {
+            running.powerMailbox.offer(timeNanos, power);
+        }
+    }
+
+    /**
+     * Verarbeitet die neuesten Leistungsmessungen aller laufenden
+     * Ausführungen.
+     */
+    private void drainPowerMailboxes() {
+        this.executions.forEach(r -> {
+            // Nach dem Stoppen eingetroffene Messungen werden nicht mehr verarbeitet
+            if (r.powerMailbox == null || !r.execution.isRunning()) {
+                return;
             }
+            final int dropped = r.powerMailbox.poll(this::onPowerMeasurementAvailable);
+            if (dropped > 0) {
+                this.logger.trace("[" + r.execution.getDevice().getName() + "] Skipped " + dropped +
+                        " outdated power measurements");
+            }
+        });
+    }
+
+    /**
+     * Gibt die Leistungsmessungen eines Geräts zurück, falls die letzte nicht
+     * älter als das Höchstalter bekannter Zustände ist.
+     *
+     * @return Die Messungen oder null, falls keine aktuelle Messung vorliegt.
+     */
+    private PowerSampleRing getRecentPowerHistory(Device device) {
+        final PowerSampleRing history =
+                ElwaManager.instance.getDevicePowerManager().getStateStore().getPowerHistory(device);
+        if (history == null || history.size() == 0 || history.getLatestAge()
+                .compareTo(ElwaManager.instance.getConfigurationManager().getFhemStateMaxAge()) > 0) {
+            return null;
         }
-        return null;
+        return history;
+    }
+
+    /**
+     * Gibt den Planer für die Befehle an den FHEM-Server eines Geräts zurück.
+     *
+     * @param device Das Gerät oder null für Befehle, die kein einzelnes Gerät betreffen.
+     */
+    private FhemCommandScheduler getCommandScheduler(Device device) {
+        final String endpoint = ElwaManager.instance.getDevicePowerManager().getFhemEndpoint(device);
+        return this.commandSchedulers.computeIfAbsent(endpoint, k -> new FhemCommandScheduler(3, 1));
     }
 
     /**
@@ -241,31 +488,76 @@ public class ExecutionManager implements ICloseListener {
      * @param power     Die aktuelle Leistung des Geräts in Watt.
      */
     public void onPowerMeasurementAvailable(Execution execution, double power) {
+        this.onPowerMeasurementAvailable(execution, System.nanoTime(), power);
+    }
+
+    /**
+     * Verarbeitet einen Messwert für die Leistung eines Geräts mit dem
+     * Zeitpunkt seines Empfangs.
+     *
+     * @param execution Die Ausführung, zu der der Messwert gehört.
+     * @param timeNanos Der Zeitpunkt des Empfangs nach {@link System#nanoTime()}.
+     * @param power     Die gemessene Leistung des Geräts in Watt.
+     */
+    void onPowerMeasurementAvailable(Execution execution, long timeNanos, double power) {
         this.logger.debug("[" + execution.getDevice().getName() + "] Power: " + power + "W");
-        if (execution.getProgram().isAutoEnd()) {
-            if (power < execution.getDevice().getAutoEndPowerThreashold()) {
-                if (!this.plannedStops.containsKey(execution) || this.plannedStops.get(execution).isDone()) {
-                    final long delay = execution.getEarliestAutoEnd().getSeconds();
-                    this.logger
-                            .debug("[" + execution.getDevice().getName() + "] Planned auto-end of program in " + delay +
-                                    "s");
-                    this.plannedStops.put(execution, this.executorService.schedule(() -> {
-                        this.logger.info("[" + execution.getDevice().getName() +
-                                "] Power measurement detected end of program");
-                        this.plannedStops.remove(execution);
-                        this.autoEndExecution(execution);
-                    }, delay, TimeUnit.SECONDS));
-                }
-            } else {
-                if (this.plannedStops.containsKey(execution)) {
+        final RunningExecution running = this.executions.get(execution);
+        if (running == null) {
+            this.logger.debug("[" + execution.getDevice().getName() + "] Execution " + execution.getId() +
+                    " is not running. Ignoring power measurement.");
+            return;
+        }
+        if (running.autoEndDetector == null) {
+            return;
+        }
+        synchronized (running) {
+            // Meldet der Leistungsmesser nach dem Abschalten nichts mehr, wird
+            // das Gerät zu dem ab dieser Messung vorhergesagten Zeitpunkt
+            // untätig.
+            final long idleDelay = running.autoEndDetector.onSample(timeNanos, power) ? 0 :
+                    running.autoEndDetector.getIdleDelayNanos();
+            if (idleDelay < 0) {
+                if (running.autoEndTimer.cancel()) {
                     this.logger.debug("[" + execution.getDevice().getName() + "] Aborted planned auto-end of program");
-                    this.plannedStops.get(execution).cancel(false);
-                    this.plannedStops.remove(execution);
                 }
+            } else if (idleDelay > 0 || !running.autoEndTimer.isArmed() ||
+                    running.idleFromNanos - timeNanos > 0) {
+                running.idleFromNanos = timeNanos + idleDelay;
+                final long delay = execution.getEarliestAutoEnd().getSeconds();
+                this.logger.debug("[" + execution.getDevice().getName() + "] Planned auto-end of program in " +
+                        (TimeUnit.NANOSECONDS.toSeconds(idleDelay) + delay) + "s");
+                running.autoEndTimer.schedule(running.idleFromNanos + TimeUnit.SECONDS.toNanos(delay));
             }
         }
     }
 
+    /**
+     * Erstellt die Erkennung des Programmendes einer Ausführung nach dem für
+     * ihr Programm konfigurierten Verfahren.
+     *
+     * @return Die Erkennung oder null, falls das Programm nicht automatisch
+     * beendet wird.
+     */
+    private AutoEndDetector createAutoEndDetector(Execution execution) {
+        if (!execution.getProgram().isAutoEnd()) {
+            return null;
+        }
+        final WashguardConfiguration config = ElwaManager.instance.getConfigurationManager();
+        final double threshold = execution.getDevice().getAutoEndPowerThreashold();
+        final String type = config.getAutoEndDetector(execution.getProgram().getId());
+        this.logger.debug("[" + execution.getDevice().getName() + "] Detecting end of program by " + type);
+        switch (type) {
+            case WashguardConfiguration.AUTO_END_HYSTERESIS:
+                return new HysteresisAutoEndDetector(threshold, threshold * config.getAutoEndHysteresisFactor());
+            case WashguardConfiguration.AUTO_END_MOVING_AVERAGE:
+                return new MovingAverageAutoEndDetector(threshold, config.getAutoEndAverageTime());
+            case WashguardConfiguration.AUTO_END_ENERGY_WINDOW:
+                return new EnergyWindowAutoEndDetector(threshold, config.getAutoEndEnergyWindow());
+            default:
+                return new ThresholdAutoEndDetector(threshold);
+        }
+    }
+
     /**
      * Registriert einen Listener zum Ereignis der Fertigstellung einer Ausführung
      *
@@ -332,10 +624,187 @@ public class ExecutionManager implements ICloseListener {
         }
     }
 
+    /**
+     * Hält einen Übergang einer Ausführung im Journal fest.
+     *
+     * @return True, falls der Übergang dauerhaft festgehalten ist.
+     */
+    private boolean writeJournal(Execution e, ExecutionJournal.Transition transition) {
+        if (this.journal == null) {
+            return false;
+        }
+        try {
+            this.journal.append(transition, e.getId());
+            return true;
+        } catch (final IOException ex) {
+            this.logger.error("[" + e.getDevice().getName() + "] Could not write to the execution journal.", ex);
+            return false;
+        }
+    }
+
+    /**
+     * Speichert das Ende einer ausgeschalteten Ausführung in der Datenbank
+     * und lässt den Benutzer bezahlen. Ein laut Journal bereits
+     * gespeichertes Ende wird nicht erneut gespeichert.
+     * <p>
+     * Die Datenbank speichert den Zeitpunkt der Übernahme als Ende. Liegt er
+     * mehr als {@link #lateStopTolerance} nach dem im Journal festgehaltenen
+     * Ende, würde die Ausführung zu lange abgerechnet. Sie wird dann nicht
+     * bezahlt, sondern bleibt im Journal offen, bis ihr Ende von Hand
+     * korrigiert ist.
+     *
+     * @return True, falls die Ausführung bezahlt ist.
+     */
+    private boolean applyStop(Execution e) throws SQLException {
+        boolean late = this.journal != null &&
+                this.journal.contains(ExecutionJournal.Transition.CORRECTION_PENDING, e.getId());
+        if (this.journal == null || !this.journal.contains(ExecutionJournal.Transition.STOP_APPLIED, e.getId())) {
+            final Long stoppedAt = this.journal != null ? this.journal.getStopTime(e.getId()) : null;
+            this.stopInDatabase(e);
+            if (stoppedAt != null && System.currentTimeMillis() - stoppedAt > this.lateStopTolerance.toMillis()) {
+                late = true;
+                this.writeJournal(e, ExecutionJournal.Transition.CORRECTION_PENDING);
+                this.logger.error("[" + e.getDevice().getName() + "] Execution " + e.getId() + " stopped at " +
+                        this.formatStopTime(e.getId()) + " but its end has been stored " +
+                        TimeUnit.MILLISECONDS.toSeconds(System.currentTimeMillis() - stoppedAt) +
+                        "s late. It has not been paid. Please correct its end, bill it and add it to " +
+                        "executions.corrected.");
+            }
+        }
+        if (late) {
+            return false;
+        }
+        this.payInDatabase(e);
+        return true;
+    }
+
+    /**
+     * Gibt den im Journal festgehaltenen Zeitpunkt des Endes einer Ausführung
+     * für das Log zurück.
+     */
+    private String formatStopTime(int executionId) {
+        final Long stoppedAt = this.journal.getStopTime(executionId);
+        return stoppedAt != null ?
+                LocalDateTime.ofInstant(Instant.ofEpochMilli(stoppedAt), ZoneId.systemDefault()).toString() :
+                "an unknown time";
+    }
+
+    private void stopInDatabase(Execution e) throws SQLException {
+        try {
+            e.stop();
+        } catch (final SQLException e1) {
+            this.logger.error("[" + e.getDevice().getName() + "] Could not stop the execution.", e1);
+            throw e1;
+        }
+        this.writeJournal(e, ExecutionJournal.Transition.STOP_APPLIED);
+    }
+
+    private void payInDatabase(Execution e) throws SQLException {
+        try {
+            e.getUser().payExecution(e);
+        } catch (final SQLException e1) {
+            this.logger.error("[" + e.getDevice().getName() + "] User " + e.getUser().getName() +
+                    " could not pay the execution.", e1);
+            throw e1;
+        }
+        this.writeJournal(e, ExecutionJournal.Transition.PAYMENT_APPLIED);
+    }
+
+    /**
+     * Übernimmt eine laut Journal beendete Ausführung im Hintergrund in die
+     * Datenbank, bis es gelingt.
+     */
+    private void replay(Execution e) {
+        if (this.replaying.add(e.getId())) {
+            this.scheduleReplay(e, 0);
+        }
+    }
+
+    private void scheduleReplay(Execution e, long delayMillis) {
+        this.executorService.schedule(() -> {
+            try {
+                final boolean paid = this.applyStop(e);
+                this.replaying.remove(e.getId());
+                if (paid) {
+                    this.logger.info("[" + e.getDevice().getName() + "] Execution " + e.getId() +
+                            " has been applied to the database.");
+                }
+            } catch (final SQLException | RuntimeException ex) {
+                final long next = Math.min(Math.max(delayMillis * 2, 5000), this.maxReplayBackoff.toMillis());
+                this.logger.warn("[" + e.getDevice().getName() + "] Could not apply execution " + e.getId() +
+                        " to the database. Retrying in " + next / 1000 + "s.");
+                this.scheduleReplay(e, next);
+            }
+        }, delayMillis, TimeUnit.MILLISECONDS);
+    }
+
     @Override
     public void onClose(boolean restart) {
         this.logger.debug("Shutting down execution manager");
+        this.timers.shutdown();
+        this.notifications.shutdown();
+        if (this.journal != null) {
+            this.journal.close();
+        }
         this.executorService.shutdownNow();
+        for (final FhemCommandScheduler scheduler : this.commandSchedulers.values()) {
+            scheduler.shutdown();
+        }
+    }
+
+    /**
+     * Der Zustand einer laufenden Ausführung.
+     */
+    private static final class RunningExecution {
+        private final Execution execution;
+
+        private final ExecutionFinisher finisher;
+
+        /**
+         * Löst den Finisher am Ende der Programmdauer aus.
+         */
+        private final HashedTimerWheel.Timer endTimer;
+
+        /**
+         * Die geplante Beendigung aufgrund von geringer Leistung. Ein
+         * gestellter Zeitgeber wird nicht verschoben, solange das Gerät
+         * weiterhin ruht.
+         */
+        private final HashedTimerWheel.Timer autoEndTimer;
+
+        /**
+         * Der Zeitpunkt nach {@link System#nanoTime()}, ab welchem das Gerät
+         * für die geplante Beendigung als untätig gilt. Gültig, solange
+         * {@link #autoEndTimer} gestellt ist. Nur mit der Sperre dieses
+         * Objekts verwendet.
+         */
+        private long idleFromNanos;
+
+        /**
+         * Die Leistungsmessungen bis zur nächsten Abholung oder null, falls
+         * das Gerät keinen Leistungsmesser hat.
+         */
+        private final PowerMailbox powerMailbox;
+
+        /**
+         * Die Erkennung des Programmendes oder null, falls das Programm nicht
+         * automatisch beendet wird.
+         */
+        private final AutoEndDetector autoEndDetector;
+
+        private final EnergyAccumulator energy;
+
+        RunningExecution(Execution execution, ExecutionFinisher finisher, HashedTimerWheel.Timer endTimer,
+                         HashedTimerWheel.Timer autoEndTimer, AutoEndDetector autoEndDetector,
+                         EnergyAccumulator energy) {
+            this.execution = execution;
+            this.finisher = finisher;
+            this.endTimer = endTimer;
+            this.autoEndTimer = autoEndTimer;
+            this.powerMailbox = execution.getDevice().getFhemPowerName() != null ? new PowerMailbox(execution) : null;
+            this.autoEndDetector = autoEndDetector;
+            this.energy = energy;
+        }
     }
 
     /**
@@ -350,8 +819,6 @@ public class ExecutionManager implements ICloseListener {
 
         private final Execution e;
 
-        private ScheduledFuture<?> future;
-
         private Boolean executed = false;
 
         private boolean aborted = false;
@@ -398,54 +865,57 @@ public class ExecutionManager implements ICloseListener {
             this.logger.info("[" + this.e.getDevice().getName() + "] User: " + this.e.getUser().getName());
             this.logger.info("[" + this.e.getDevice().getName() + "] Total time: " + this.e.getElapsedTimeString());
 
-            // Breche geplante Ausführung ab, falls nicht von dieser
-            // gestartet
-            if (this.future != null) {
-                this.future.cancel(false);
-            }
-
-            // Breche geplante automatische Stops ab
-            if (ExecutionManager.this.plannedStops.containsKey(this.e)) {
-                ExecutionManager.this.plannedStops.get(this.e).cancel(false);
+            final RunningExecution running = ExecutionManager.this.executions.get(this.e);
+            if (running != null) {
+                // Breche geplante Ausführung ab, falls nicht von dieser
+                // gestartet, und geplante automatische Stops
+                running.endTimer.cancel();
+                running.autoEndTimer.cancel();
+
+                // Schließe die Energiemessung vor dem Ausschalten ab
+                final EnergyAccumulator energy = running.energy;
+                energy.finish(System.nanoTime());
+                this.logger.info(String.format("[%1s] Energy: %.3f kWh", this.e.getDevice().getName(),
+                        energy.getKilowattHours()));
+                if (!energy.getUncoveredTime().isZero()) {
+                    this.logger.warn("[" + this.e.getDevice().getName() + "] No power measurements for " +
+                            energy.getUncoveredTime().getSeconds() + "s. Energy is incomplete.");
+                }
             }
 
             // Schalte den Strom der Maschine aus
             try {
-                ElwaManager.instance.getDevicePowerManager()
-                        .setDevicePowerState(this.e.getDevice(), DevicePowerManager.DevicePowerState.OFF);
+                ExecutionManager.this.getCommandScheduler(this.e.getDevice())
+                        .execute(this.e.getDevice(), FhemCommandScheduler.Priority.FINISH, () -> {
+                            ElwaManager.instance.getDevicePowerManager()
+                                    .setDevicePowerState(this.e.getDevice(), DevicePowerManager.DevicePowerState.OFF);
+                            return null;
+                        });
             } catch (final IOException | InterruptedException | FhemException e1) {
                 this.logger.error("[" + this.e.getDevice().getName() + "] Could not power off the device.", e1);
                 throw e1;
             }
 
-            // Informiere Ausführung über dessen Ende
-            try {
-                this.e.stop();
-            } catch (final SQLException e1) {
-                this.logger.error("[" + this.e.getDevice().getName() + "] Could not stop the execution.", e1);
-                throw e1;
-            }
+            // Halte das Ende fest. Ist es im Journal, wird das Gerät sofort
+            // freigegeben. Das Ende und die Bezahlung werden im Hintergrund in
+            // die Datenbank übernommen.
+            if (ExecutionManager.this.writeJournal(this.e, ExecutionJournal.Transition.STOP)) {
+                ExecutionManager.this.executions.remove(this.e);
+                this.e.getDevice().onExecutionEnded();
+                ExecutionManager.this.replay(this.e);
+            } else {
+                ExecutionManager.this.stopInDatabase(this.e);
+                ExecutionManager.this.executions.update();
 
-            // Informiere Gerät über Ende der Ausführung
-            this.e.getDevice().onExecutionEnded();
+                // Informiere Gerät über Ende der Ausführung
+                this.e.getDevice().onExecutionEnded();
 
-            // Veranlasse Benutzer zum Zahlen
-            try {
-                this.e.getUser().payExecution(this.e);
-            } catch (final SQLException e1) {
-                this.logger.error("[" + this.e.getDevice().getName() + "] User " + this.e.getUser().getName() +
-                        " could not pay the execution.", e1);
-                throw e1;
+                // Veranlasse Benutzer zum Zahlen
+                ExecutionManager.this.payInDatabase(this.e);
             }
 
             // Ausführung aus der Liste entfernen
-            if (ExecutionManager.this.executionFinishers.containsKey(this.e)) {
-                ExecutionManager.this.executionFinishers.remove(this.e);
-            }
-
-            if (ExecutionManager.this.plannedStops.containsKey(this.e)) {
-                ExecutionManager.this.plannedStops.remove(this.e);
-            }
+            ExecutionManager.this.executions.remove(this.e);
 
             // Informiere alle Listener über das Ende der Programmausfürung
             for (final IExecutionFinishedListener l : ExecutionManager.this.finishListeners) {
@@ -478,67 +948,25 @@ public class ExecutionManager implements ICloseListener {
             notificationMessageLong = new String(notificationMessageLong.getBytes(), Charset.defaultCharset());
             notificationMessageShort = new String(notificationMessageShort.getBytes(), Charset.defaultCharset());
 
-            // Sende Benachrichtigungs-Email
+            // Reihe die Benachrichtigungen ein. Sie werden unabhängig von
+            // dieser Ausführung und ohne ihre Sperren versendet.
             if (this.e.getUser().getEmailNotification()) {
-                try {
-                    ElwaManager.instance.getUtilities()
-                            .sendEmail(notificationTitle, notificationMessageLong, this.e.getUser());
-                    this.logger.debug("Sent notification to " + this.e.getUser().getEmail());
-                } catch (final EmailException e1) {
-                    this.logger.error("Could not send the notification mail.", e1);
-                }
+                ExecutionManager.this.notifications
+                        .sendEmail(this.e.getUser(), notificationTitle, notificationMessageLong);
             } else {
                 this.logger.debug("User is not to be notified.");
             }
-
-            // Sende Pushover-Benachrichtigung
             if (this.e.getUser().getPushoverUserKey() != null && !this.e.getUser().getPushoverUserKey().isEmpty()) {
-                try {
-                    final PushoverRestClient client = new PushoverRestClient();
-                    final Status result = client.pushMessage(PushoverMessage
-                            .builderWithApiToken(ElwaManager.instance.getConfigurationManager().getPushoverApiToken())
-                            .setUserId(this.e.getUser().getPushoverUserKey()).setMessage(notificationMessageShort)
-                            .setPriority(MessagePriority.HIGH).setTitle(notificationTitle)
-                            .setUrl("http://waschportal.hilaren.de").setTitleForURL("Waschportal").build());
-                    this.logger.debug("Sent push notification. Status: " + result.getStatus());
-                } catch (final PushoverException e1) {
-                    this.logger.error("Could not send push notification.", e1);
-                }
+                ExecutionManager.this.notifications
+                        .sendPushover(this.e.getUser().getPushoverUserKey(), notificationTitle,
+                                notificationMessageShort);
             }
-
-            // Sende elwaApp-Pushbenachrichtigung
             if (this.e.getUser().isPushEnabled()
                     && this.e.getUser().getPushIonicId() != null
                     && !this.e.getUser().getPushIonicId().isEmpty()) {
-                try {
-                    HttpResponse<JsonNode> jsonResponse = Unirest.post("https://api.ionic.io/push/notifications")
-                            .header("PROFILE_TAG", "dev")
-                            .header("Authorization", "Bearer " + ElwaManager.instance.getConfigurationManager().getIonicApiToken())
-                            .header("Content-Type", "application/json")
-                            .body(new JSONObject()
-                                    .put("user_ids", new JSONArray().put(this.e.getUser().getPushIonicId()))
-                                    .put("profile", "dev")
-                                    .put("notification", new JSONObject()
-                                            .put("title", notificationTitle)
-                                            .put("message", notificationMessageShort))
-                            )
-                            .asJson();
-                    if (jsonResponse.getStatus() > 299) {
-                        this.logger.error("Could not send ionic notification. Status: " + jsonResponse.getStatus() + " "
-                                + jsonResponse.getStatusText() + "\n" + jsonResponse.getBody().toString());
-                    } else {
-                        this.logger.debug("Sent ionic notification. "
-                                + jsonResponse.getStatus() + " " + jsonResponse.getStatusText());
-                    }
-                } catch (UnirestException e) {
-                    this.logger.error("Could not send ionic notification.", e);
-                }
+                ExecutionManager.this.notifications
+                        .sendIonic(this.e.getUser().getPushIonicId(), notificationTitle, notificationMessageShort);
             }
-
-        }
-
-        void setScheduledFuture(ScheduledFuture<?> future) {
-            this.future = future;
         }
     }
 
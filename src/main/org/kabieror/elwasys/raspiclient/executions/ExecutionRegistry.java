@@ -0,0 +1,148 @@
+package org.kabieror.elwasys.raspiclient.executions;
+
+import org.kabieror.elwasys.common.Device;
+import org.kabieror.elwasys.common.Execution;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+
+/**
+ * Verzeichnis der Ausführungen, die derzeit auf den Geräten laufen oder noch nicht abgeschlossen sind, mit einem
+ * Zustand je Ausführung.
+ * <p>
+ * Je Gerät ist höchstens eine Ausführung eingetragen. Sie kann über die Id des Geräts oder über den Namen seines
+ * Leistungsmessers im FHEM-Server mit konstantem Aufwand und ohne Sperre gefunden werden. Die Liste der laufenden
+ * Ausführungen ist ein unveränderlicher Stand, welcher nur bei Änderungen neu erstellt und ohne Kopie herausgegeben
+ * wird.
+ *
+ * @param <S> Der Typ des Zustands einer Ausführung.
+ * @author Oliver Kabierschke
+ */
+class ExecutionRegistry<S> {
+
+    private final Map<Integer, Entry<S>> byDevice = new ConcurrentHashMap<>();
+
+    private final FhemNameIndex<Entry<S>> byPowerName = new FhemNameIndex<>();
+
+    private volatile List<Execution> running = Collections.emptyList();
+
+    /**
+     * Trägt eine Ausführung ein. Eine andere Ausführung auf demselben Gerät wird dabei ersetzt.
+     *
+     * @param execution Die Ausführung.
+     * @param state     Der Zustand der Ausführung.
+     */
+    synchronized void put(Execution execution, S state) {
+        final Entry<S> entry = new Entry<>(execution, state);
+        final Entry<S> old = this.byDevice.put(execution.getDevice().getId(), entry);
+        if (old != null && old.execution.getDevice().getFhemPowerName() != null) {
+            this.byPowerName.remove(old.execution.getDevice().getFhemPowerName(), old);
+        }
+        if (execution.getDevice().getFhemPowerName() != null) {
+            this.byPowerName.put(execution.getDevice().getFhemPowerName(), entry);
+        }
+        this.update();
+    }
+
+    /**
+     * Trägt eine Ausführung aus.
+     *
+     * @param execution Die Ausführung.
+     * @return True, falls die Ausführung eingetragen war.
+     */
+    synchronized boolean remove(Execution execution) {
+        final Entry<S> entry = this.byDevice.get(execution.getDevice().getId());
+        if (entry == null || entry.execution != execution) {
+            return false;
+        }
+        this.byDevice.remove(execution.getDevice().getId());
+        if (execution.getDevice().getFhemPowerName() != null) {
+            this.byPowerName.remove(execution.getDevice().getFhemPowerName(), entry);
+        }
+        this.update();
+        return true;
+    }
+
+    /**
+     * Erstellt die Liste der laufenden Ausführungen neu. Muss aufgerufen werden, nachdem eine eingetragene Ausführung
+     * gestartet oder gestoppt wurde.
+     */
+    synchronized void update() {
+        final List<Execution> res = new ArrayList<>(this.byDevice.size());
+        for (final Entry<S> entry : this.byDevice.values()) {
+            if (entry.execution.isRunning()) {
+                res.add(entry.execution);
+            }
+        }
+        this.running = Collections.unmodifiableList(res);
+    }
+
+    /**
+     * Gibt den Zustand einer eingetragenen Ausführung zurück.
+     *
+     * @param execution Die Ausführung.
+     * @return Den Zustand oder null, falls die Ausführung nicht eingetragen ist.
+     */
+    S get(Execution execution) {
+        final Entry<S> entry = this.byDevice.get(execution.getDevice().getId());
+        return entry != null && entry.execution == execution ? entry.state : null;
+    }
+
+    /**
+     * Gibt die eingetragene Ausführung eines Geräts zurück.
+     *
+     * @param device Das Gerät.
+     * @return Die Ausführung oder null, falls auf dem Gerät keine eingetragen ist.
+     */
+    Execution getExecution(Device device) {
+        final Entry<S> entry = this.byDevice.get(device.getId());
+        return entry != null ? entry.execution : null;
+    }
+
+    /**
+     * Gibt den Zustand der Ausführung auf dem Gerät mit dem gegebenen Leistungsmesser zurück.
+     *
+     * @param chars Die Zeichenfolge, welche den Namen des Leistungsmessers enthält.
+     * @param start Der Index des ersten Zeichens des Namens.
+     * @param end   Der Index nach dem letzten Zeichen des Namens.
+     * @return Den Zustand oder null, falls auf dem Gerät keine Ausführung eingetragen ist.
+     */
+    S getByPowerName(CharSequence chars, int start, int end) {
+        final Entry<S> entry = this.byPowerName.get(chars, start, end);
+        return entry != null ? entry.state : null;
+    }
+
+    /**
+     * Gibt die laufenden Ausführungen zurück.
+     *
+     * @return Einen unveränderlichen Stand der laufenden Ausführungen.
+     */
+    List<Execution> getRunning() {
+        return this.running;
+    }
+
+    /**
+     * Führt eine Aktion für den Zustand jeder eingetragenen Ausführung aus.
+     *
+     * @param action Die Aktion.
+     */
+    void forEach(Consumer<S> action) {
+        for (final Entry<S> entry : this.byDevice.values()) {
+            action.accept(entry.state);
+        }
+    }
+
+    private static final class Entry<S> {
+        private final Execution execution;
+        private final S state;
+
+        Entry(Execution execution, S state) {
+            this.execution = execution;
+            this.state = state;
+        }
+    }
+}
@@ -0,0 +1,76 @@
+package org.kabieror.elwasys.raspiclient.executions;
+
+import java.time.Duration;
+import java.util.concurrent.ScheduledExecutorService;
+
+/**
+ * Die gemeinsamen Zeiten der Verbindungen zum FHEM-Server über Telnet und FHEMWEB.
+ *
+ * @author Oliver Kabierschke
+ */
+final class FhemBackendDefaults {
+
+    /**
+     * The interval in which the connections are checked in the background.
+     */
+    static final Duration KEEP_ALIVE_INTERVAL = Duration.ofSeconds(10);
+
+    /**
+     * The delay after the first failed attempt to reconnect to the fhem
+     * server. It doubles with every further failed attempt.
+     */
+    static final Duration INITIAL_RECONNECT_BACKOFF = Duration.ofSeconds(1);
+
+    /**
+     * The maximum delay between two attempts to reconnect to the fhem server.
+     */
+    static final Duration MAXIMUM_RECONNECT_BACKOFF = Duration.ofMinutes(1);
+
+    /**
+     * The time to wait for an answer from the fhem server until the
+     * round-trip time of a connection has been measured.
+     */
+    static final Duration DEFAULT_TIMEOUT = Duration.ofMillis(5000);
+
+    /**
+     * The lower bound of the estimated time to wait for an answer.
+     */
+    static final Duration MINIMUM_TIMEOUT = Duration.ofMillis(200);
+
+    /**
+     * The upper bound of the estimated time to wait for an answer.
+     */
+    static final Duration MAXIMUM_TIMEOUT = Duration.ofSeconds(30);
+
+    /**
+     * The time to wait for the reply to a set command. It is not derived from
+     * the round-trip time of the fast read commands, because a set command may
+     * take longer in the fhem server. Without a reply in time, the new state is
+     * checked by polling.
+     */
+    static final Duration SET_REPLY_TIMEOUT = Duration.ofSeconds(10);
+
+    /**
+     * Die Anzahl an Messungen der Antwortzeit, nach welchen die Schätzung protokolliert wird.
+     */
+    static final int LOG_ROUND_TRIP_INTERVAL = 100;
+
+    private FhemBackendDefaults() {
+    }
+
+    /**
+     * Erstellt die Schätzung der Antwortzeit für eine neue Verbindung.
+     */
+    static RoundTripEstimator newRoundTripEstimator() {
+        return new RoundTripEstimator(DEFAULT_TIMEOUT, MINIMUM_TIMEOUT, MAXIMUM_TIMEOUT);
+    }
+
+    /**
+     * Erstellt einen Überwacher für die Sitzungen einer Verbindung.
+     *
+     * @param scheduler Der Dienst, auf welchem die Verbindungsversuche ausgeführt werden.
+     */
+    static FhemReconnectSupervisor newReconnectSupervisor(ScheduledExecutorService scheduler) {
+        return new FhemReconnectSupervisor(scheduler, INITIAL_RECONNECT_BACKOFF, MAXIMUM_RECONNECT_BACKOFF);
+    }
+}
@@ -0,0 +1,278 @@
+package org.kabieror.elwasys.raspiclient.executions;
+
+import org.kabieror.elwasys.raspiclient.io.ITelnetLineListener;
+import org.kabieror.elwasys.raspiclient.io.TelnetClient;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Befehlskanal zum FHEM-Server, über den mehrere Befehle gleichzeitig unterwegs sein können.
+ * <p>
+ * FHEM beantwortet die Befehle einer Telnet-Sitzung in der Reihenfolge ihres Eingangs. Nach jedem Befehl wird ein
+ * Perl-Ausdruck gesendet, welcher eine Endmarke mit der Nummer des Befehls ausgibt. Alle Zeilen bis zu dieser Marke
+ * bilden die Antwort des Befehls. Die Zeit bis zum Eintreffen der Endmarke fließt in die Schätzung der Antwortzeit
+ * dieser Verbindung ein. Zeilen, die keinem ausstehenden Befehl zugeordnet werden können, werden verworfen oder an
+ * den Empfänger von Ereignissen weitergegeben.
+ *
+ * @author Oliver Kabierschke
+ */
+class FhemCommandChannel implements ITelnetLineListener {
+
+    /**
+     * Präfix der Endmarke, welche nach jedem Befehl ausgegeben wird.
+     */
+    private static final String END_MARKER = "END-";
+
+    private final Logger logger = LoggerFactory.getLogger(this.getClass());
+
+    private final TelnetClient telnet;
+
+    private final RoundTripEstimator roundTripEstimator;
+
+    /**
+     * Die gesendeten Befehle, deren Antwort noch aussteht, in der Reihenfolge des Versands.
+     */
+    private final Deque<PendingCommand> pending = new ArrayDeque<>();
+
+    /**
+     * Die bisher empfangenen Zeilen der Antwort auf den ältesten ausstehenden Befehl. Wird nur vom I/O-Thread
+     * verwendet.
+     */
+    private final StringBuilder currentResponse = new StringBuilder();
+
+    /**
+     * Puffer für die zuletzt gesendete Zeile. Wird nur mit der Sperre auf {@link #pending} verwendet.
+     */
+    private final StringBuilder commandLine = new StringBuilder();
+
+    /**
+     * Empfänger aller Zeilen, welche keine Endmarke sind. Ist er gesetzt, bestehen die Antworten aller Befehle nur
+     * noch aus ihrer Endmarke.
+     */
+    private volatile ITelnetLineListener eventListener;
+
+    private long nextId = 0;
+
+    FhemCommandChannel(TelnetClient telnet, RoundTripEstimator roundTripEstimator) {
+        this.telnet = telnet;
+        this.roundTripEstimator = roundTripEstimator;
+        this.telnet.setLineListener(this);
+    }
+
+    /**
+     * Sendet einen Befehl an den FHEM-Server.
+     * <p>
+     * Befehl und Endmarke werden als Befehlskette in einer Zeile gesendet. FHEM beantwortet die ganze Zeile mit einem
+     * einzigen Schreibaufruf, sodass die Endmarke nicht vom Nagle-Algorithmus des Servers zurückgehalten wird.
+     *
+     * @param command Der zu sendende Befehl.
+     * @return Die Antwort des Servers ohne leere Zeilen. Ein leerer String bedeutet, dass der Befehl ohne Ausgabe
+     * ausgeführt wurde.
+     * @throws IOException Falls der Befehl nicht gesendet werden kann.
+     */
+    CompletableFuture<String> send(String command) throws IOException {
+        return this.enqueue(command);
+    }
+
+    /**
+     * Sendet nur eine Endmarke an den FHEM-Server, um die Verbindung zu prüfen.
+     *
+     * @return Die leere Antwort des Servers.
+     * @throws IOException Falls die Endmarke nicht gesendet werden kann.
+     */
+    CompletableFuture<String> ping() throws IOException {
+        return this.enqueue(null);
+    }
+
+    /**
+     * Vergibt die nächste Nummer, merkt den Befehl als ausstehend vor und sendet ihn mit seiner Endmarke. Kann die
+     * Zeile nicht gesendet werden, wird der Befehl wieder entfernt.
+     *
+     * @param command Der Befehl oder null, um nur die Endmarke zu senden.
+     */
+    private CompletableFuture<String> enqueue(String command) throws IOException {
+        synchronized (this.pending) {
+            final PendingCommand p = new PendingCommand(this.nextId++, command != null ? command : "ping");
+            this.pending.addLast(p);
+            try {
+                this.telnet.sendCommand(this.commandLine(command, p.id));
+            } catch (final IOException e) {
+                this.pending.remove(p);
+                throw e;
+            }
+            return p.future;
+        }
+    }
+
+    /**
+     * Setzt die Zeile aus einem Befehl und der Endmarke mit der gegebenen Nummer zusammen. Semikolons im Befehl werden
+     * wie in FHEM üblich verdoppelt. Muss mit der Sperre auf {@link #pending} aufgerufen werden.
+     *
+     * @param command Der Befehl oder null, um nur die Endmarke zu senden.
+     */
+    private CharSequence commandLine(String command, long id) {
+        this.commandLine.setLength(0);
+        if (command != null) {
+            for (int i = 0; i < command.length(); i++) {
+                final char c = command.charAt(i);
+                this.commandLine.append(c);
+                if (c == ';') {
+                    this.commandLine.append(';');
+                }
+            }
+            this.commandLine.append(';');
+        }
+        return this.commandLine.append("{ \"").append(END_MARKER).append(id).append("\" }");
+    }
+
+    /**
+     * Gibt die Zeit zurück, die seit dem Empfang der letzten Daten vergangen ist.
+     *
+     * @return Die Zeit in Nanosekunden.
+     */
+    long getReadIdleNanos() {
+        return this.telnet.getReadIdleNanos();
+    }
+
+    /**
+     * Leitet ab sofort alle Zeilen außer den Endmarken an den gegebenen Empfänger weiter. Wird für die Verbindung
+     * verwendet, über welche der FHEM-Server Ereignisse sendet.
+     *
+     * @param eventListener Der Empfänger der Ereignisse.
+     */
+    void setEventListener(ITelnetLineListener eventListener) {
+        this.eventListener = eventListener;
+    }
+
+    /**
+     * Gibt die Anzahl der Befehle zurück, deren Antwort noch aussteht.
+     */
+    int getPendingCount() {
+        synchronized (this.pending) {
+            return this.pending.size();
+        }
+    }
+
+    /**
+     * Gibt die Schätzung der Antwortzeit dieser Verbindung zurück.
+     */
+    RoundTripEstimator getRoundTripEstimator() {
+        return this.roundTripEstimator;
+    }
+
+    boolean isAlive() {
+        return this.telnet.isAlive();
+    }
+
+    void shutdown() {
+        this.telnet.shutdown();
+    }
+
+    @Override
+    public void onLineReceived(CharSequence line) {
+        if (line.length() == 0) {
+            return;
+        }
+        if (!this.isEndMarker(line)) {
+            final ITelnetLineListener listener = this.eventListener;
+            if (listener != null) {
+                listener.onLineReceived(line);
+                return;
+            }
+            if (this.getPendingCount() == 0) {
+                // Die Zeile gehört zu keinem Befehl und darf keinem folgenden zugeordnet werden.
+                this.logger.warn("Discarding unexpected line from fhem server: '" + line + "'");
+                return;
+            }
+            if (this.currentResponse.length() > 0) {
+                this.currentResponse.append('\n');
+            }
+            this.currentResponse.append(line);
+            return;
+        }
+
+        final long id = this.parseId(line);
+        final String response = this.currentResponse.toString();
+        this.currentResponse.setLength(0);
+
+        PendingCommand p;
+        synchronized (this.pending) {
+            // Befehle mit kleinerer Nummer haben ihre Endmarke verloren.
+            while ((p = this.pending.peekFirst()) != null && p.id < id) {
+                this.pending.removeFirst();
+                p.future.completeExceptionally(
+                        new IOException("Der FHEM-Server hat den Befehl '" + p.command + "' nicht beantwortet."));
+            }
+            if (p == null || p.id != id) {
+                this.logger.warn("Received unexpected end marker " + id + ". Discarding response '" + response +
+                        "'.");
+                return;
+            }
+            this.pending.removeFirst();
+        }
+        this.roundTripEstimator.addSample(System.nanoTime() - p.sentNanos);
+        if (this.roundTripEstimator.getSampleCount() % FhemBackendDefaults.LOG_ROUND_TRIP_INTERVAL == 0) {
+            this.logger.info("Round-trip time to fhem server: " + this.roundTripEstimator);
+        }
+        if (this.logger.isTraceEnabled()) {
+            this.logger.trace("Response to '" + p.command + "': '" + response + "'");
+        }
+        p.future.complete(response);
+    }
+
+    @Override
+    public void onConnectionClosed() {
+        synchronized (this.pending) {
+            final IOException e = new IOException("Die Verbindung zum FHEM-Server wurde getrennt.");
+            for (final PendingCommand p : this.pending) {
+                p.future.completeExceptionally(e);
+            }
+            this.pending.clear();
+        }
+    }
+
+    private boolean isEndMarker(CharSequence line) {
+        if (line.length() <= END_MARKER.length()) {
+            return false;
+        }
+        for (int i = 0; i < END_MARKER.length(); i++) {
+            if (line.charAt(i) != END_MARKER.charAt(i)) {
+                return false;
+            }
+        }
+        for (int i = END_MARKER.length(); i < line.length(); i++) {
+            if (line.charAt(i) < '0' || line.charAt(i) > '9') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private long parseId(CharSequence line) {
+        long id = 0;
+        for (int i = END_MARKER.length(); i < line.length(); i++) {
+            id = id * 10 + (line.charAt(i) - '0');
+        }
+        return id;
+    }
+
+    /**
+     * Ein gesendeter Befehl, dessen Antwort noch aussteht.
+     */
+    private static class PendingCommand {
+        private final long id;
+        private final String command;
+        private final CompletableFuture<String> future = new CompletableFuture<>();
+        private final long sentNanos = System.nanoTime();
+
+        PendingCommand(long id, String command) {
+            this.id = id;
+            this.command = command;
+        }
+    }
+}
@@ -0,0 +1,299 @@
+package org.kabieror.elwasys.raspiclient.executions;
+
+import org.kabieror.elwasys.common.Device;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Plant die Befehle an den {@link DevicePowerManager}.
+ * <p>
+ * Jedes Gerät hat eine eigene Warteschlange, deren Befehle in der Reihenfolge ihres Eingangs ausgeführt werden.
+ * Befehle verschiedener Geräte laufen parallel. Sind mehr Geräte mit Befehlen als freie Ausführende vorhanden, kommt
+ * das Gerät mit dem dringendsten Befehl zuerst an die Reihe. Wartet ein dringender Befehl hinter einem weniger
+ * dringenden desselben Geräts, erbt dieser die höhere Dringlichkeit. Befehle im Hintergrund belegen höchstens einen
+ * Ausführenden, sodass wartende Benutzer nie hinter ihnen anstehen.
+ *
+ * @author Oliver Kabierschke
+ */
+class FhemCommandScheduler {
+
+    /**
+     * Der Schlüssel der Warteschlange für Befehle, die kein einzelnes Gerät betreffen.
+     */
+    private static final Object NO_DEVICE = new Object();
+
+    private final Logger logger = LoggerFactory.getLogger(this.getClass());
+
+    private final Object lock = new Object();
+
+    /**
+     * Die Warteschlangen mit ausstehenden oder laufenden Befehlen, nach der ID des Geräts.
+     */
+    private final Map<Object, Lane> lanes = new HashMap<>();
+
+    private final List<Thread> workers = new ArrayList<>();
+
+    /**
+     * Die maximale Anzahl gleichzeitig laufender Befehle im Hintergrund.
+     */
+    private final int maxBackground;
+
+    private int runningBackground = 0;
+
+    private long nextSequence = 0;
+
+    private boolean shutdown = false;
+
+    /**
+     * Erstellt einen neuen Planer.
+     *
+     * @param workerCount   Die Anzahl der Befehle, die gleichzeitig ausgeführt werden.
+     * @param maxBackground Die Anzahl der Befehle im Hintergrund, die gleichzeitig ausgeführt werden.
+     */
+    FhemCommandScheduler(int workerCount, int maxBackground) {
+        this.maxBackground = maxBackground;
+        for (int i = 0; i < workerCount; i++) {
+            final Thread t = new Thread(this::work, "FhemCommandScheduler.Worker-" + i);
+            t.setDaemon(true);
+            this.workers.add(t);
+            t.start();
+        }
+    }
+
+    /**
+     * Reiht einen Befehl in die Warteschlange eines Geräts ein.
+     *
+     * @param device   Das Gerät, auf das sich der Befehl bezieht, oder null, falls er kein einzelnes Gerät betrifft.
+     * @param priority Die Dringlichkeit des Befehls.
+     * @param command  Der Befehl.
+     * @return Das künftige Ergebnis des Befehls.
+     */
+    <T> CompletableFuture<T> submit(Device device, Priority priority, Command<T> command) {
+        return this.enqueue(device != null ? device.getId() : NO_DEVICE, priority, command);
+    }
+
+    /**
+     * Reiht einen Befehl in die Warteschlange mit dem gegebenen Schlüssel ein.
+     *
+     * @param key      Der Schlüssel der Warteschlange.
+     * @param priority Die Dringlichkeit des Befehls.
+     * @param command  Der Befehl.
+     * @return Das künftige Ergebnis des Befehls.
+     */
+    <T> CompletableFuture<T> enqueue(Object key, Priority priority, Command<T> command) {
+        final Task<T> task;
+        synchronized (this.lock) {
+            if (this.shutdown) {
+                final CompletableFuture<T> res = new CompletableFuture<>();
+                res.completeExceptionally(new FhemException("Der Befehlsplaner wurde beendet."));
+                return res;
+            }
+            task = new Task<>(this.nextSequence++, priority, command);
+            this.lanes.computeIfAbsent(key, k -> new Lane(k)).tasks.addLast(task);
+            this.lock.notifyAll();
+        }
+        return task.future;
+    }
+
+    /**
+     * Führt einen Befehl aus und wartet auf sein Ergebnis.
+     *
+     * @param device   Das Gerät, auf das sich der Befehl bezieht, oder null, falls er kein einzelnes Gerät betrifft.
+     * @param priority Die Dringlichkeit des Befehls.
+     * @param command  Der Befehl.
+     * @return Das Ergebnis des Befehls.
+     */
+    <T> T execute(Device device, Priority priority, Command<T> command)
+            throws IOException, InterruptedException, FhemException {
+        try {
+            return this.submit(device, priority, command).get();
+        } catch (final ExecutionException e) {
+            throw TaskFailures.rethrow(e.getCause(), IOException.class, FhemException.class,
+                    InterruptedException.class);
+        }
+    }
+
+    /**
+     * Beendet den Planer. Ausstehende Befehle schlagen fehl.
+     */
+    void shutdown() {
+        synchronized (this.lock) {
+            this.shutdown = true;
+            final FhemException e = new FhemException("Der Befehlsplaner wurde beendet.");
+            for (final Lane lane : this.lanes.values()) {
+                for (final Task<?> t : lane.tasks) {
+                    t.future.completeExceptionally(e);
+                }
+                lane.tasks.clear();
+            }
+            this.lock.notifyAll();
+        }
+        for (final Thread t : this.workers) {
+            t.interrupt();
+        }
+    }
+
+    private void work() {
+        while (true) {
+            final Lane lane;
+            final Task<?> task;
+            final Priority priority;
+            synchronized (this.lock) {
+                Lane next;
+                while ((next = this.pickLane()) == null) {
+                    if (this.shutdown) {
+                        return;
+                    }
+                    try {
+                        this.lock.wait();
+                    } catch (final InterruptedException e) {
+                        if (this.shutdown) {
+                            return;
+                        }
+                    }
+                }
+                lane = next;
+                priority = lane.getEffectivePriority();
+                if (priority == Priority.BACKGROUND) {
+                    this.runningBackground++;
+                }
+                lane.running = true;
+                task = lane.tasks.pollFirst();
+            }
+
+            if (this.logger.isTraceEnabled()) {
+                this.logger.trace("Running " + task.priority + " command of lane " + lane.key + " at priority " +
+                        priority);
+            }
+            try {
+                task.run();
+            } finally {
+                // Die Warteschlange muss in jedem Fall wieder frei werden,
+                // sonst warten alle weiteren Befehle des Geräts für immer.
+                synchronized (this.lock) {
+                    lane.running = false;
+                    if (priority == Priority.BACKGROUND) {
+                        this.runningBackground--;
+                    }
+                    if (lane.tasks.isEmpty()) {
+                        this.lanes.remove(lane.key);
+                    }
+                    this.lock.notifyAll();
+                }
+            }
+        }
+    }
+
+    /**
+     * Wählt die Warteschlange, deren nächster Befehl ausgeführt wird. Muss mit der Sperre aufgerufen werden.
+     *
+     * @return Die Warteschlange oder null, falls derzeit kein Befehl ausgeführt werden kann.
+     */
+    private Lane pickLane() {
+        Lane best = null;
+        for (final Lane lane : this.lanes.values()) {
+            if (lane.running || lane.tasks.isEmpty()) {
+                continue;
+            }
+            final Priority p = lane.getEffectivePriority();
+            if (p == Priority.BACKGROUND && this.runningBackground >= this.maxBackground) {
+                continue;
+            }
+            if (best == null || p.ordinal() < best.getEffectivePriority().ordinal() ||
+                    (p == best.getEffectivePriority() && lane.tasks.peekFirst().sequence <
+                            best.tasks.peekFirst().sequence)) {
+                best = lane;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Ein Befehl an den FHEM-Server.
+     */
+    interface Command<T> {
+        T run() throws IOException, InterruptedException, FhemException;
+    }
+
+    /**
+     * Die Dringlichkeit eines Befehls, absteigend sortiert.
+     */
+    enum Priority {
+        /**
+         * Ein Benutzer wartet am Gerät auf die Ausführung.
+         */
+        INTERACTIVE,
+
+        /**
+         * Die Beendigung oder der Abbruch einer Programmausführung.
+         */
+        FINISH,
+
+        /**
+         * Der Abgleich der Gerätezustände im Hintergrund.
+         */
+        BACKGROUND,
+    }
+
+    /**
+     * Die Warteschlange eines Geräts.
+     */
+    private static class Lane {
+        private final Object key;
+        private final Deque<Task<?>> tasks = new ArrayDeque<>();
+        private boolean running = false;
+
+        Lane(Object key) {
+            this.key = key;
+        }
+
+        /**
+         * Gibt die höchste Dringlichkeit der wartenden Befehle zurück.
+         */
+        Priority getEffectivePriority() {
+            Priority res = Priority.BACKGROUND;
+            for (final Task<?> t : this.tasks) {
+                if (t.priority.ordinal() < res.ordinal()) {
+                    res = t.priority;
+                }
+            }
+            return res;
+        }
+    }
+
+    /**
+     * Ein eingereihter Befehl.
+     */
+    private static class Task<T> {
+        private final long sequence;
+        private final Priority priority;
+        private final Command<T> command;
+        private final CompletableFuture<T> future = new CompletableFuture<>();
+
+        Task(long sequence, Priority priority, Command<T> command) {
+            this.sequence = sequence;
+            this.priority = priority;
+            this.command = command;
+        }
+
+        void run() {
+            try {
+                this.future.complete(this.command.run());
+            } catch (final Throwable e) {
+                // Auch Errors werden an den Aufrufer weitergegeben, damit er
+                // nicht für immer auf das Ergebnis wartet.
+                this.future.completeExceptionally(e);
+            }
+        }
+    }
+}
@@ -0,0 +1,200 @@
+package org.kabieror.elwasys.raspiclient.executions;
+
+/**
+ * Zerlegt Ereignis-Zeilen des FHEM-Servers, ohne dafür Zeichenfolgen zu erzeugen.
+ * <p>
+ * Erkannt werden Leistungsmessungen der Form {@code <Typ> <Name> power: <Wert>} und Schaltzustände der Form {@code
+ * <Typ> <Name> [state: ]<on|off|set_on|set_off>}. Vorangestellte Zeitstempel werden übersprungen. Nach einem Aufruf von
+ * {@link #parse(CharSequence)} beschreiben die Felder das Ergebnis. Eine Instanz darf nur von einem Thread verwendet
+ * werden.
+ *
+ * @author Oliver Kabierschke
+ */
+class FhemEventTokenizer {
+
+    /**
+     * Die maximale Anzahl an Wörtern, die in einer Zeile betrachtet wird.
+     */
+    private static final int MAX_TOKENS = 16;
+
+    private final int[] tokenStart = new int[MAX_TOKENS];
+    private final int[] tokenEnd = new int[MAX_TOKENS];
+
+    /**
+     * Die Art des zuletzt zerlegten Ereignisses.
+     */
+    EventType type;
+    /**
+     * Der Index des ersten Zeichens des Gerätenamens.
+     */
+    int nameStart;
+    /**
+     * Der Index nach dem letzten Zeichen des Gerätenamens.
+     */
+    int nameEnd;
+    /**
+     * Die gemessene Leistung, falls das Ereignis eine Leistungsmessung ist.
+     */
+    double power;
+    /**
+     * Der neue Schaltzustand, falls das Ereignis ein Schaltzustand ist.
+     */
+    DevicePowerManager.DevicePowerState state;
+
+    /**
+     * Zerlegt eine Ereignis-Zeile.
+     *
+     * @param line Die Zeile.
+     * @return Die Art des Ereignisses.
+     */
+    EventType parse(CharSequence line) {
+        this.type = EventType.OTHER;
+        this.state = null;
+        this.power = Double.NaN;
+
+        final int count = this.split(line);
+        for (int i = 1; i + 1 < count; i++) {
+            if (this.tokenEquals(line, i, "power:")) {
+                this.power = parseDouble(line, this.tokenStart[i + 1], this.tokenEnd[i + 1]);
+                if (!Double.isNaN(this.power)) {
+                    this.setName(i - 1);
+                    this.type = EventType.POWER;
+                }
+                return this.type;
+            }
+        }
+
+        if (count >= 3) {
+            final int last = count - 1;
+            if (this.tokenEquals(line, last, "on")) {
+                this.state = DevicePowerManager.DevicePowerState.ON;
+            } else if (this.tokenEquals(line, last, "off")) {
+                this.state = DevicePowerManager.DevicePowerState.OFF;
+            } else if (this.tokenEquals(line, last, "set_on")) {
+                this.state = DevicePowerManager.DevicePowerState.SET_ON;
+            } else if (this.tokenEquals(line, last, "set_off")) {
+                this.state = DevicePowerManager.DevicePowerState.SET_OFF;
+            } else {
+                return this.type;
+            }
+            int nameToken = last - 1;
+            if (this.tokenEquals(line, nameToken, "state:")) {
+                nameToken--;
+            }
+            if (nameToken >= 1) {
+                this.setName(nameToken);
+                this.type = EventType.STATE;
+            }
+        }
+        return this.type;
+    }
+
+    /**
+     * Ermittelt die Grenzen der durch Leerzeichen getrennten Wörter.
+     *
+     * @return Die Anzahl der Wörter.
+     */
+    private int split(CharSequence line) {
+        int count = 0;
+        int i = 0;
+        final int length = line.length();
+        while (i < length && count < MAX_TOKENS) {
+            while (i < length && Character.isWhitespace(line.charAt(i))) {
+                i++;
+            }
+            if (i == length) {
+                break;
+            }
+            this.tokenStart[count] = i;
+            while (i < length && !Character.isWhitespace(line.charAt(i))) {
+                i++;
+            }
+            this.tokenEnd[count] = i;
+            count++;
+        }
+        return count;
+    }
+
+    private void setName(int token) {
+        this.nameStart = this.tokenStart[token];
+        this.nameEnd = this.tokenEnd[token];
+    }
+
+    private boolean tokenEquals(CharSequence line, int token, String expected) {
+        final int start = this.tokenStart[token];
+        if (this.tokenEnd[token] - start != expected.length()) {
+            return false;
+        }
+        for (int i = 0; i < expected.length(); i++) {
+            if (line.charAt(start + i) != expected.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Liest eine Dezimalzahl der Form {@code [-]123[.45]}.
+     *
+     * @return Die Zahl oder NaN, falls der Ausschnitt keine gültige Zahl ist.
+     */
+    static double parseDouble(CharSequence chars, int start, int end) {
+        int i = start;
+        boolean negative = false;
+        if (i < end && chars.charAt(i) == '-') {
+            negative = true;
+            i++;
+        }
+        long mantissa = 0;
+        int digits = 0;
+        int fractionDigits = 0;
+        boolean fraction = false;
+        for (; i < end; i++) {
+            final char c = chars.charAt(i);
+            if (c >= '0' && c <= '9') {
+                if (digits < 18) {
+                    mantissa = mantissa * 10 + (c - '0');
+                    digits++;
+                    if (fraction) {
+                        fractionDigits++;
+                    }
+                } else if (!fraction) {
+                    // Zu viele Stellen vor dem Komma
+                    return Double.NaN;
+                }
+            } else if (c == '.' && !fraction) {
+                fraction = true;
+            } else {
+                return Double.NaN;
+            }
+        }
+        if (digits == 0) {
+            return Double.NaN;
+        }
+        double res = mantissa;
+        for (int f = 0; f < fractionDigits; f++) {
+            res /= 10;
+        }
+        return negative ? -res : res;
+    }
+
+    /**
+     * Die Arten von Ereignissen.
+     */
+    enum EventType {
+        /**
+         * Eine Leistungsmessung.
+         */
+        POWER,
+
+        /**
+         * Ein neuer Schaltzustand.
+         */
+        STATE,
+
+        /**
+         * Ein sonstiges Ereignis.
+         */
+        OTHER,
+    }
+}
@@ -0,0 +1,171 @@
+package org.kabieror.elwasys.raspiclient.executions;
+
+import java.util.function.Consumer;
+
+/**
+ * Hash-Index von Namen im FHEM-Server auf beliebige Werte.
+ * <p>
+ * Nachschlagen ist mit einem Ausschnitt einer Zeichenfolge möglich, ohne dafür einen String zu erzeugen. Lesezugriffe
+ * erfolgen ohne Sperre. Änderungen ersetzen die Tabelle als Ganzes und sollten daher selten sein, z.B. beim Start und
+ * Ende einer Programmausführung.
+ *
+ * @param <V> Der Typ der Werte.
+ * @author Oliver Kabierschke
+ */
+class FhemNameIndex<V> {
+
+    private volatile Table<V> table = new Table<>(8);
+
+    /**
+     * Sucht den Wert zu einem Namen.
+     *
+     * @param chars Die Zeichenfolge, welche den Namen enthält.
+     * @param start Der Index des ersten Zeichens des Namens.
+     * @param end   Der Index nach dem letzten Zeichen des Namens.
+     * @return Den Wert oder null, falls der Name nicht enthalten ist.
+     */
+    V get(CharSequence chars, int start, int end) {
+        final Table<V> t = this.table;
+        final int hash = hash(chars, start, end);
+        final int mask = t.keys.length - 1;
+        for (int i = spread(hash) & mask; t.keys[i] != null; i = (i + 1) & mask) {
+            if (t.hashes[i] == hash && regionEquals(t.keys[i], chars, start, end)) {
+                return t.values[i];
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Sucht den Wert zu einem Namen.
+     *
+     * @param name Der Name.
+     * @return Den Wert oder null, falls der Name nicht enthalten ist.
+     */
+    V get(String name) {
+        return this.get(name, 0, name.length());
+    }
+
+    /**
+     * Führt eine Aktion für jeden enthaltenen Wert aus. Änderungen während des Durchlaufs wirken sich nicht aus.
+     *
+     * @param action Die Aktion.
+     */
+    void forEach(Consumer<V> action) {
+        final Table<V> t = this.table;
+        for (int i = 0; i < t.keys.length; i++) {
+            if (t.keys[i] != null) {
+                action.accept(t.values[i]);
+            }
+        }
+    }
+
+    /**
+     * Gibt die Anzahl der enthaltenen Namen zurück.
+     */
+    int size() {
+        return this.table.size;
+    }
+
+    /**
+     * Setzt den Wert zu einem Namen.
+     *
+     * @param name  Der Name.
+     * @param value Der Wert.
+     */
+    synchronized void put(String name, V value) {
+        final Table<V> old = this.table;
+        final Table<V> t = new Table<>(old.size + 1 > old.keys.length / 2 ? old.keys.length * 2 : old.keys.length);
+        for (int i = 0; i < old.keys.length; i++) {
+            if (old.keys[i] != null && !old.keys[i].equals(name)) {
+                t.insert(old.keys[i], old.hashes[i], old.values[i]);
+            }
+        }
+        t.insert(name, name.hashCode(), value);
+        this.table = t;
+    }
+
+    /**
+     * Entfernt einen Namen.
+     *
+     * @param name Der zu entfernende Name.
+     */
+    synchronized void remove(String name) {
+        final Table<V> old = this.table;
+        final Table<V> t = new Table<>(old.keys.length);
+        for (int i = 0; i < old.keys.length; i++) {
+            if (old.keys[i] != null && !old.keys[i].equals(name)) {
+                t.insert(old.keys[i], old.hashes[i], old.values[i]);
+            }
+        }
+        this.table = t;
+    }
+
+    /**
+     * Entfernt einen Namen, falls er auf den gegebenen Wert verweist.
+     *
+     * @param name  Der zu entfernende Name.
+     * @param value Der Wert, auf den der Name verweisen muss.
+     */
+    synchronized void remove(String name, V value) {
+        if (this.get(name) == value) {
+            this.remove(name);
+        }
+    }
+
+    /**
+     * Berechnet den Hash-Wert eines Ausschnitts wie {@link String#hashCode()}.
+     */
+    private static int hash(CharSequence chars, int start, int end) {
+        int h = 0;
+        for (int i = start; i < end; i++) {
+            h = 31 * h + chars.charAt(i);
+        }
+        return h;
+    }
+
+    private static int spread(int hash) {
+        return hash ^ (hash >>> 16);
+    }
+
+    private static boolean regionEquals(String key, CharSequence chars, int start, int end) {
+        if (key.length() != end - start) {
+            return false;
+        }
+        for (int i = 0; i < key.length(); i++) {
+            if (key.charAt(i) != chars.charAt(start + i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Eine unveränderliche Hash-Tabelle mit offener Adressierung.
+     */
+    private static final class Table<V> {
+        private final String[] keys;
+        private final int[] hashes;
+        private final V[] values;
+        private int size;
+
+        @SuppressWarnings("unchecked")
+        Table(int capacity) {
+            this.keys = new String[capacity];
+            this.hashes = new int[capacity];
+            this.values = (V[]) new Object[capacity];
+        }
+
+        private void insert(String key, int hash, V value) {
+            final int mask = this.keys.length - 1;
+            int i = spread(hash) & mask;
+            while (this.keys[i] != null) {
+                i = (i + 1) & mask;
+            }
+            this.keys[i] = key;
+            this.hashes[i] = hash;
+            this.values[i] = value;
+            this.size++;
+        }
+    }
+}
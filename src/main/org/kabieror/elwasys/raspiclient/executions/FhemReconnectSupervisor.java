@@ -0,0 +1,190 @@
+package org.kabieror.elwasys.raspiclient.executions;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.time.Duration;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Baut abgebrochene Sitzungen mit dem FHEM-Server im Hintergrund neu auf.
+ * <p>
+ * Jede Sitzung hat einen Schutzschalter: Solange sie funktioniert, ist er geschlossen. Wird ein Fehler gemeldet,
+ * öffnet er sich und Aufrufer erhalten sofort einen Fehler, statt selbst auf einen Verbindungsaufbau zu warten. Die
+ * Versuche, die Sitzung neu aufzubauen, erfolgen mit exponentiell wachsendem, zufällig gestreutem Abstand. Während
+ * eines Versuchs ist der Schalter halb offen, nach einem erfolgreichen Versuch wieder geschlossen.
+ *
+ * @author Oliver Kabierschke
+ */
+class FhemReconnectSupervisor {
+
+    private final Logger logger = LoggerFactory.getLogger(this.getClass());
+
+    private final ScheduledExecutorService scheduler;
+
+    private final long initialBackoffNanos;
+    private final long maxBackoffNanos;
+
+    /**
+     * Erstellt einen neuen Überwacher.
+     *
+     * @param scheduler      Der Dienst, auf welchem die Verbindungsversuche ausgeführt werden.
+     * @param initialBackoff Der Abstand nach dem ersten fehlgeschlagenen Versuch.
+     * @param maxBackoff     Der maximale Abstand zwischen zwei Versuchen.
+     */
+    FhemReconnectSupervisor(ScheduledExecutorService scheduler, Duration initialBackoff, Duration maxBackoff) {
+        this.scheduler = scheduler;
+        this.initialBackoffNanos = initialBackoff.toNanos();
+        this.maxBackoffNanos = maxBackoff.toNanos();
+    }
+
+    /**
+     * Meldet eine Sitzung zur Überwachung an. Die Sitzung muss bereits bestehen.
+     *
+     * @param name      Der Name der Sitzung für das Protokoll.
+     * @param connector Baut die Sitzung neu auf.
+     * @return Die überwachte Sitzung.
+     */
+    Session register(String name, Connector connector) {
+        return new Session(name, connector);
+    }
+
+    /**
+     * Baut eine Sitzung mit dem FHEM-Server auf.
+     */
+    interface Connector {
+        /**
+         * Baut die Sitzung neu auf.
+         *
+         * @throws FhemException Falls die Sitzung nicht aufgebaut werden konnte.
+         */
+        void connect() throws FhemException, InterruptedException;
+    }
+
+    /**
+     * Die Zustände des Schutzschalters einer Sitzung.
+     */
+    enum CircuitState {
+        /**
+         * Die Sitzung funktioniert.
+         */
+        CLOSED,
+
+        /**
+         * Die Sitzung ist gestört. Der nächste Versuch ist geplant.
+         */
+        OPEN,
+
+        /**
+         * Die Sitzung wird gerade neu aufgebaut.
+         */
+        HALF_OPEN,
+    }
+
+    /**
+     * Eine überwachte Sitzung.
+     */
+    class Session {
+        private final String name;
+        private final Connector connector;
+
+        private CircuitState state = CircuitState.CLOSED;
+        private int failedAttempts = 0;
+
+        private Session(String name, Connector connector) {
+            this.name = name;
+            this.connector = connector;
+        }
+
+        /**
+         * Gibt den Zustand des Schutzschalters zurück.
+         */
+        synchronized CircuitState getState() {
+            return this.state;
+        }
+
+        /**
+         * Stellt sicher, dass die Sitzung verfügbar ist.
+         *
+         * @throws FhemException Falls die Sitzung gestört ist oder gerade neu aufgebaut wird.
+         */
+        synchronized void checkAvailable() throws FhemException {
+            if (this.state != CircuitState.CLOSED) {
+                throw new FhemException("Der FHEM-Server ist nicht erreichbar.");
+            }
+        }
+
+        /**
+         * Meldet eine Störung der Sitzung. Ist die Sitzung noch nicht als gestört bekannt, wird sofort ein neuer
+         * Aufbau geplant.
+         *
+         * @param reason Die Beschreibung der Störung.
+         */
+        synchronized void reportFailure(String reason) {
+            if (this.state != CircuitState.CLOSED) {
+                return;
+            }
+            FhemReconnectSupervisor.this.logger.warn("[" + this.name + "] " + reason + " Reconnecting.");
+            this.state = CircuitState.OPEN;
+            this.failedAttempts = 0;
+            this.schedule(0);
+        }
+
+        private void schedule(long delayNanos) {
+            if (FhemReconnectSupervisor.this.scheduler.isShutdown()) {
+                return;
+            }
+            FhemReconnectSupervisor.this.scheduler.schedule(this::attempt, delayNanos, TimeUnit.NANOSECONDS);
+        }
+
+        private void attempt() {
+            synchronized (this) {
+                this.state = CircuitState.HALF_OPEN;
+            }
+            try {
+                this.connector.connect();
+            } catch (final InterruptedException e) {
+                // Terminate.
+                synchronized (this) {
+                    this.state = CircuitState.OPEN;
+                }
+                return;
+            } catch (final Exception e) {
+                // Auch unerwartete Fehler gelten als fehlgeschlagener Versuch,
+                // sonst bliebe der Schalter für immer halb offen.
+                final long delay;
+                final int attempts;
+                synchronized (this) {
+                    attempts = ++this.failedAttempts;
+                    this.state = CircuitState.OPEN;
+                    delay = this.nextBackoff();
+                    this.schedule(delay);
+                }
+                FhemReconnectSupervisor.this.logger.error("[" + this.name + "] Reconnect attempt " +
+                        attempts + " failed. Next attempt in " + TimeUnit.NANOSECONDS.toMillis(delay) +
+                        "ms.", e);
+                return;
+            }
+            synchronized (this) {
+                this.state = CircuitState.CLOSED;
+                this.failedAttempts = 0;
+            }
+            FhemReconnectSupervisor.this.logger.info("[" + this.name + "] Connection re-established.");
+        }
+
+        /**
+         * Berechnet den Abstand zum nächsten Versuch: Die Basis verdoppelt sich mit jedem Fehlschlag, davon wird
+         * zufällig zwischen der Hälfte und dem Ganzen gewartet.
+         */
+        private long nextBackoff() {
+            long base = FhemReconnectSupervisor.this.initialBackoffNanos;
+            for (int i = 1; i < this.failedAttempts && base < FhemReconnectSupervisor.this.maxBackoffNanos; i++) {
+                base *= 2;
+            }
+            base = Math.min(base, FhemReconnectSupervisor.this.maxBackoffNanos);
+            return base / 2 + ThreadLocalRandom.current().nextLong(base / 2 + 1);
+        }
+    }
+}
@@ -0,0 +1,337 @@
+package org.kabieror.elwasys.raspiclient.executions;
+
+import org.kabieror.elwasys.raspiclient.io.TelnetClient;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.Collection;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Verbindung zum FHEM-Server über dessen Telnet-Schnittstelle.
+ * <p>
+ * Befehle werden über eine Telnet-Sitzung gesendet, Ereignisse über eine zweite Sitzung mit {@code inform on}
+ * empfangen. Beide Sitzungen werden im Hintergrund geprüft und bei Störungen neu aufgebaut.
+ *
+ * @author Oliver Kabierschke
+ */
+class FhemTelnetBackend implements IFhemBackend {
+
+    private final Logger logger = LoggerFactory.getLogger(this.getClass());
+    /**
+     * Der Hostname des FHEM-Servers.
+     */
+    private final String host;
+    /**
+     * Der Telnet-Port des FHEM-Servers.
+     */
+    private final int port;
+    /**
+     * Der Befehlskanal, über welchen mit dem FHEM-Server kommuniziert werden
+     * kann.
+     */
+    private volatile FhemCommandChannel fhemChannel;
+    /**
+     * Der Kanal, über welchen events vom FHEM-Server empfangen werden.
+     */
+    private volatile FhemCommandChannel fhemEventsChannel;
+    /**
+     * Der Empfänger der Ereignisse.
+     */
+    private IFhemEventListener eventListener;
+    /**
+     * Prüft beide Verbindungen zum FHEM-Server im Hintergrund und baut sie bei
+     * Bedarf neu auf.
+     */
+    private ScheduledExecutorService keepAliveService;
+    /**
+     * Überwacht die Befehls-Sitzung mit dem FHEM-Server.
+     */
+    private FhemReconnectSupervisor.Session commandSession;
+    /**
+     * Überwacht die Events-Sitzung mit dem FHEM-Server.
+     */
+    private FhemReconnectSupervisor.Session eventsSession;
+    /**
+     * Der reguläre Ausdruck, auf dessen Geräte die Events-Sitzung beschränkt
+     * ist, oder null, falls alle Ereignisse empfangen werden.
+     */
+    private volatile String eventFilter;
+
+    /**
+     * Erstellt eine neue Verbindung, ohne sie aufzubauen.
+     *
+     * @param host Der Hostname des FHEM-Servers.
+     * @param port Der Telnet-Port des FHEM-Servers.
+     */
+    FhemTelnetBackend(String host, int port) {
+        this.host = host;
+        this.port = port;
+    }
+
+    @Override
+    public void start(IFhemEventListener eventListener) throws FhemException, InterruptedException {
+        this.eventListener = eventListener;
+        this.openFhemConnections();
+        this.keepAliveService = Executors.newSingleThreadScheduledExecutor(r -> {
+            final Thread t = new Thread(r, "FhemTelnetBackend.KeepAlive");
+            t.setDaemon(true);
+            return t;
+        });
+        final FhemReconnectSupervisor supervisor = FhemBackendDefaults.newReconnectSupervisor(this.keepAliveService);
+        final String endpoint = this.host + ":" + this.port;
+        this.commandSession = supervisor.register("fhem commands " + endpoint, this::openFhemConnection);
+        this.eventsSession = supervisor.register("fhem events " + endpoint, this::openFhemEventsConnection);
+        // A connection without received data during one interval is probed.
+        this.keepAliveService.scheduleWithFixedDelay(this::checkConnections,
+                FhemBackendDefaults.KEEP_ALIVE_INTERVAL.toMillis(), FhemBackendDefaults.KEEP_ALIVE_INTERVAL.toMillis(),
+                TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Startet die Befehls- und die Events-Sitzung mit dem FHEM-Server
+     * gleichzeitig.
+     */
+    private void openFhemConnections() throws InterruptedException, FhemException {
+        final FutureTask<Void> eventsConnection = new FutureTask<>(() -> {
+            this.openFhemEventsConnection();
+            return null;
+        });
+        new Thread(eventsConnection, "FhemTelnetBackend.EventsConnection").start();
+        try {
+            this.openFhemConnection();
+        } catch (final FhemException | InterruptedException | RuntimeException e) {
+            // Die Events-Sitzung darf nicht unbemerkt offen bleiben
+            try {
+                eventsConnection.get();
+            } catch (final ExecutionException e1) {
+                this.logger.debug("Events connection failed as well.", e1.getCause());
+            }
+            if (this.fhemEventsChannel != null) {
+                this.fhemEventsChannel.shutdown();
+            }
+            throw e;
+        }
+        try {
+            eventsConnection.get();
+        } catch (final ExecutionException e) {
+            throw TaskFailures.rethrow(e.getCause(), FhemException.class, InterruptedException.class);
+        }
+    }
+
+    /**
+     * Startet eine neue Telnet-Sitzung mit dem Fhem-Server.
+     */
+    private void openFhemConnection() throws InterruptedException, FhemException {
+        if (this.fhemChannel != null && this.fhemChannel.isAlive()) {
+            this.fhemChannel.shutdown();
+        }
+        this.logger.info("Starting new connection to fhem server on " + this.host + ":" + this.port);
+        final TelnetClient telnet = new TelnetClient(this.host, this.port);
+        this.fhemChannel = new FhemCommandChannel(telnet, FhemBackendDefaults.newRoundTripEstimator());
+        try {
+            telnet.openConnection(5000);
+        } catch (IOException e) {
+            throw new FhemException("Konnte nicht mit dem FHEM-Server verbinden.", e);
+        }
+        // Check connection. The server is ready as soon as the end marker of
+        // the command returns.
+        try {
+            final String response =
+                    DevicePowerManager.await(this.fhemChannel.send("version"), this.getTimeoutMillis());
+            if (!response.contains("fhem.pl")) {
+                // No response received.
+                this.logger.error("The fhem server did not send a matching response. Expected 'fhem.pl' but got:\n" +
+                        response);
+                throw new FhemException("Der FHEM-Server hat unerwartet geantwortet.");
+            }
+        } catch (IOException e) {
+            throw new FhemException("Konnte nicht mit dem FHEM-Server kommunizieren.", e);
+        }
+    }
+
+    /**
+     * Startet eine neue Telnet-Sitzung mit dem FHEM-Server, auf welchem Events
+     * empfangen werden.
+     *
+     * @throws FhemException
+     */
+    private void openFhemEventsConnection() throws FhemException, InterruptedException {
+        if (this.fhemEventsChannel != null && this.fhemEventsChannel.isAlive()) {
+            this.fhemEventsChannel.shutdown();
+        }
+
+        try {
+            this.logger.info("Starting new events connection to fhem server on " + this.host + ":" + this.port);
+            final TelnetClient telnet = new TelnetClient(this.host, this.port);
+            final FhemCommandChannel channel =
+                    new FhemCommandChannel(telnet, FhemBackendDefaults.newRoundTripEstimator());
+            this.fhemEventsChannel = channel;
+            telnet.openConnection(5000);
+
+            final String version = DevicePowerManager
+                    .await(channel.send("version"), channel.getRoundTripEstimator().getTimeoutMillis());
+            if (!version.contains("fhem.pl")) {
+                throw new IOException("The opened events connection to the fhem server is not valid.");
+            }
+
+            // Ab hier werden alle Zeilen außer den Endmarken direkt vom
+            // I/O-Thread als Ereignis verarbeitet
+            channel.setEventListener(this.eventListener::onEventReceived);
+            DevicePowerManager.await(channel.send(this.getInformCommand()),
+                    channel.getRoundTripEstimator().getTimeoutMillis());
+        } catch (IOException e) {
+            throw new FhemException("Konnte keine Events-Verbindung zum FHEM-Server aufbauen.", e);
+        }
+    }
+
+    @Override
+    public void setEventFilter(String filter) {
+        this.eventFilter = filter;
+        final FhemCommandChannel channel = this.fhemEventsChannel;
+        if (channel == null || !channel.isAlive()) {
+            // Wird beim nächsten Aufbau der Events-Sitzung verwendet
+            return;
+        }
+        try {
+            channel.send(this.getInformCommand()).whenComplete((res, e) -> {
+                if (e != null) {
+                    this.logger.warn("Could not update the event subscription.", e);
+                }
+            });
+        } catch (final IOException e) {
+            this.logger.warn("Could not update the event subscription.", e);
+        }
+    }
+
+    /**
+     * Gibt den Befehl zurück, mit dem die Events-Sitzung Ereignisse
+     * abonniert.
+     */
+    private String getInformCommand() {
+        final String filter = this.eventFilter;
+        return filter == null ? "inform on" : "inform on " + filter;
+    }
+
+    /**
+     * Prüft beide Verbindungen zum FHEM-Server und meldet gestörte
+     * Verbindungen dem Überwacher, welcher sie im Hintergrund neu aufbaut.
+     * Wird regelmäßig ausgeführt.
+     */
+    private void checkConnections() {
+        try {
+            if (this.commandSession.getState() == FhemReconnectSupervisor.CircuitState.CLOSED &&
+                    !this.probe(this.fhemChannel)) {
+                this.commandSession.reportFailure("Command connection to the fhem server is broken.");
+            }
+            // Die Events-Sitzung gilt als lebendig, solange sie auf Proben
+            // antwortet. Bei abonnierten Geräten können Ereignisse lange
+            // ausbleiben, ohne dass die Sitzung gestört ist.
+            if (this.eventsSession.getState() == FhemReconnectSupervisor.CircuitState.CLOSED &&
+                    !this.probe(this.fhemEventsChannel)) {
+                this.eventsSession.reportFailure("Telnet session for receiving events is broken or dead.");
+            }
+        } catch (final InterruptedException e) {
+            // Terminate.
+        } catch (final RuntimeException e) {
+            // Eine Ausnahme würde alle weiteren Prüfungen abbrechen
+            this.logger.error("Could not check the connections to the fhem server.", e);
+        }
+    }
+
+    /**
+     * Prüft, ob eine Verbindung zum FHEM-Server noch besteht. Wurden zuletzt
+     * Daten empfangen, gilt sie als lebendig. Andernfalls wird eine einzelne
+     * Endmarke gesendet und auf ihre Rückkehr gewartet.
+     *
+     * @param channel Die zu prüfende Verbindung.
+     * @return True, falls die Verbindung besteht.
+     */
+    private boolean probe(FhemCommandChannel channel) throws InterruptedException {
+        if (channel == null || !channel.isAlive()) {
+            return false;
+        }
+        if (channel.getReadIdleNanos() < FhemBackendDefaults.KEEP_ALIVE_INTERVAL.toNanos()) {
+            return true;
+        }
+        try {
+            DevicePowerManager.await(channel.ping(), channel.getRoundTripEstimator().getTimeoutMillis());
+            return true;
+        } catch (final IOException e) {
+            this.logger.warn("Keep-alive probe to the fhem server failed.", e);
+            return false;
+        }
+    }
+
+    /**
+     * Stellt sicher, dass eine funktionierende Verbindung zum FHEM-Server
+     * besteht. Ist sie gestört, wird sie im Hintergrund neu aufgebaut und der
+     * Aufruf schlägt sofort fehl.
+     *
+     * @return Den Befehlskanal zum FHEM-Server.
+     * @throws FhemException Falls der FHEM-Server derzeit nicht erreichbar ist.
+     */
+    private FhemCommandChannel ensureConnection() throws FhemException {
+        this.commandSession.checkAvailable();
+        final FhemCommandChannel channel = this.fhemChannel;
+        if (channel == null || !channel.isAlive()) {
+            this.commandSession.reportFailure("Command connection to the fhem server is closed.");
+            throw new FhemException("Der FHEM-Server ist nicht erreichbar.");
+        }
+        return channel;
+    }
+
+    @Override
+    public CompletableFuture<String> setState(String name, String state) throws IOException, FhemException {
+        return this.ensureConnection().send("set " + name + " " + state);
+    }
+
+    @Override
+    public CompletableFuture<String> getState(String name) throws IOException, FhemException {
+        return this.ensureConnection().send("get " + name + " param state");
+    }
+
+    @Override
+    public CompletableFuture<String> getStates(Collection<String> names) throws IOException, FhemException {
+        return this.ensureConnection().send("jsonlist2 " + String.join(",", names) + " state");
+    }
+
+    /**
+     * Gibt die Zeit zurück, die auf die Antwort eines Befehls gewartet wird.
+     * Sie folgt der gemessenen Antwortzeit der aktuellen Verbindung.
+     *
+     * @return Die Wartezeit in Millisekunden.
+     */
+    @Override
+    public long getTimeoutMillis() {
+        final FhemCommandChannel channel = this.fhemChannel;
+        return channel != null ? channel.getRoundTripEstimator().getTimeoutMillis() :
+                FhemBackendDefaults.DEFAULT_TIMEOUT.toMillis();
+    }
+
+    @Override
+    public Duration getRoundTripTime() {
+        final FhemCommandChannel channel = this.fhemChannel;
+        return channel != null ? channel.getRoundTripEstimator().getSmoothedRoundTripTime() : null;
+    }
+
+    @Override
+    public void shutdown() {
+        if (this.fhemChannel != null && this.fhemChannel.isAlive()) {
+            this.fhemChannel.shutdown();
+        }
+        if (this.keepAliveService != null) {
+            this.keepAliveService.shutdownNow();
+        }
+        if (this.fhemEventsChannel != null && this.fhemEventsChannel.isAlive()) {
+            this.fhemEventsChannel.shutdown();
+        }
+    }
+}
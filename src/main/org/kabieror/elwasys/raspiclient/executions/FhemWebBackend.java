@@ -0,0 +1,493 @@
+package org.kabieror.elwasys.raspiclient.executions;
+
+import org.apache.http.Header;
+import org.apache.http.HttpException;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.concurrent.FutureCallback;
+import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
+import org.apache.http.impl.nio.client.HttpAsyncClients;
+import org.apache.http.nio.IOControl;
+import org.apache.http.nio.client.methods.AsyncCharConsumer;
+import org.apache.http.nio.client.methods.HttpAsyncMethods;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.util.EntityUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.nio.CharBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.Collection;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Verbindung zum FHEM-Server über die HTTP-Schnittstelle von FHEMWEB.
+ * <p>
+ * Befehle werden als {@code cmd}-Parameter gesendet, der Zustand mehrerer Schalter mit {@code jsonlist2} abgefragt.
+ * Die Verbindungen werden über HTTP keep-alive wiederverwendet, sodass mehrere Befehle gleichzeitig unterwegs sein
+ * können, ohne jedes Mal eine neue Verbindung aufzubauen. Ereignisse werden über einen dauerhaft offenen
+ * Long-Polling-Aufruf ({@code inform=type=raw}) empfangen, welcher bei Störungen im Hintergrund neu aufgebaut wird.
+ *
+ * @author Oliver Kabierschke
+ */
+class FhemWebBackend implements IFhemBackend {
+
+    /**
+     * Der Header, in welchem FHEMWEB den Token gegen Cross-Site-Request-Forgery mitteilt.
+     */
+    private static final String CSRF_TOKEN_HEADER = "X-FHEM-csrfToken";
+
+    private final Logger logger = LoggerFactory.getLogger(this.getClass());
+    /**
+     * Die maximale Anzahl gleichzeitig offener Verbindungen zu FHEMWEB. Eine
+     * davon ist dauerhaft durch den Ereignis-Strom belegt.
+     */
+    private final int maxConnections = 6;
+    /**
+     * Die Adresse von FHEMWEB, z.B. {@code http://127.0.0.1:8083/fhem}.
+     */
+    private final String baseUrl;
+    /**
+     * Schätzt die Antwortzeit von FHEMWEB über alle Verbindungen hinweg.
+     */
+    private final RoundTripEstimator roundTripEstimator;
+    /**
+     * Der HTTP-Client, dessen Verbindungen wiederverwendet werden.
+     */
+    private CloseableHttpAsyncClient client;
+    /**
+     * Die Einstellungen des Ereignis-Stroms, welcher beliebig lange ohne Daten
+     * bleiben darf. Befehle verwenden eine Kopie mit begrenzter Wartezeit.
+     */
+    private RequestConfig requestConfig;
+    /**
+     * Der zuletzt von FHEMWEB mitgeteilte Token gegen Cross-Site-Request-Forgery.
+     */
+    private volatile String csrfToken;
+    /**
+     * Der Empfänger der Ereignisse.
+     */
+    private IFhemEventListener eventListener;
+    /**
+     * Prüft den Ereignis-Strom im Hintergrund und baut ihn bei Bedarf neu auf.
+     */
+    private ScheduledExecutorService keepAliveService;
+    /**
+     * Überwacht den Ereignis-Strom.
+     */
+    private FhemReconnectSupervisor.Session eventsSession;
+    /**
+     * Der aktuelle Ereignis-Strom.
+     */
+    private volatile EventStream eventStream;
+    /**
+     * Der reguläre Ausdruck, auf dessen Geräte der Ereignis-Strom beschränkt
+     * ist, oder null, falls alle Ereignisse empfangen werden.
+     */
+    private volatile String eventFilter;
+
+    private volatile boolean shutdown = false;
+
+    /**
+     * Erstellt eine neue Verbindung, ohne sie aufzubauen.
+     *
+     * @param host Der Hostname des FHEM-Servers.
+     * @param port Der Port, auf welchem FHEMWEB hört.
+     */
+    FhemWebBackend(String host, int port) {
+        this.baseUrl = "http://" + host + ":" + port + "/fhem";
+        this.roundTripEstimator = FhemBackendDefaults.newRoundTripEstimator();
+    }
+
+    @Override
+    public void start(IFhemEventListener eventListener) throws FhemException, InterruptedException {
+        this.eventListener = eventListener;
+        this.requestConfig =
+                RequestConfig.custom().setConnectTimeout((int) FhemBackendDefaults.DEFAULT_TIMEOUT.toMillis())
+                        .setSocketTimeout(0).build();
+        this.client = HttpAsyncClients.custom().setMaxConnPerRoute(this.maxConnections)
+                .setMaxConnTotal(this.maxConnections).setDefaultRequestConfig(this.requestConfig).build();
+        this.client.start();
+
+        this.logger.info("Starting new connection to FHEMWEB on " + this.baseUrl);
+        try {
+            final String response = DevicePowerManager.await(this.command("version"), this.getTimeoutMillis());
+            if (!response.contains("fhem.pl")) {
+                this.logger.error("FHEMWEB did not send a matching response. Expected 'fhem.pl' but got:\n" +
+                        response);
+                throw new FhemException("Der FHEM-Server hat unerwartet geantwortet.");
+            }
+        } catch (IOException e) {
+            throw new FhemException("Konnte nicht mit dem FHEM-Server kommunizieren.", e);
+        }
+        this.openEventStream();
+
+        this.keepAliveService = Executors.newSingleThreadScheduledExecutor(r -> {
+            final Thread t = new Thread(r, "FhemWebBackend.KeepAlive");
+            t.setDaemon(true);
+            return t;
+        });
+        final FhemReconnectSupervisor supervisor = FhemBackendDefaults.newReconnectSupervisor(this.keepAliveService);
+        this.eventsSession = supervisor.register("fhemweb events " + this.baseUrl, this::openEventStream);
+        this.keepAliveService.scheduleWithFixedDelay(this::checkEventStream,
+                FhemBackendDefaults.KEEP_ALIVE_INTERVAL.toMillis(), FhemBackendDefaults.KEEP_ALIVE_INTERVAL.toMillis(),
+                TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Sendet einen Befehl an FHEMWEB.
+     *
+     * @param command Der zu sendende Befehl.
+     * @return Die Antwort des Servers ohne leere Zeilen.
+     * @throws IOException Falls die Verbindung geschlossen ist.
+     */
+    private CompletableFuture<String> command(String command) throws IOException {
+        return this.command(command, this.getTimeoutMillis());
+    }
+
+    /**
+     * Sendet einen Befehl an FHEMWEB.
+     *
+     * @param command       Der zu sendende Befehl.
+     * @param timeoutMillis Die Zeit, nach welcher die Verbindung ohne eintreffende Daten abgebrochen wird.
+     * @return Die Antwort des Servers ohne leere Zeilen.
+     * @throws IOException Falls die Verbindung geschlossen ist.
+     */
+    private CompletableFuture<String> command(String command, long timeoutMillis) throws IOException {
+        if (this.shutdown || this.client == null) {
+            throw new IOException("Die Verbindung zu FHEMWEB ist geschlossen.");
+        }
+        final RequestConfig config =
+                RequestConfig.copy(this.requestConfig).setSocketTimeout((int) timeoutMillis).build();
+        final CompletableFuture<String> res = new CompletableFuture<>();
+        this.send(command, config, res, true);
+        return res;
+    }
+
+    /**
+     * Sendet einen Befehl und vervollständigt die Antwort, sobald sie eingetroffen ist.
+     *
+     * @param retry True, falls der Befehl mit einem neuen Token wiederholt werden darf, wenn FHEMWEB den bisherigen
+     *              abgelehnt hat.
+     */
+    private void send(String command, RequestConfig config, CompletableFuture<String> res, boolean retry) {
+        final String token = this.csrfToken;
+        final HttpGet request = new HttpGet(this.baseUrl + "?cmd=" + encode(command) + "&XHR=1" +
+                (token != null ? "&fwcsrf=" + encode(token) : ""));
+        request.setConfig(config);
+        final long sentNanos = System.nanoTime();
+        final Future<HttpResponse> exchange = this.client.execute(request, new FutureCallback<HttpResponse>() {
+            @Override
+            public void completed(HttpResponse response) {
+                FhemWebBackend.this.updateCsrfToken(response);
+                final int status = response.getStatusLine().getStatusCode();
+                final String body;
+                try {
+                    body = response.getEntity() != null ?
+                            EntityUtils.toString(response.getEntity(), StandardCharsets.UTF_8) : "";
+                } catch (final IOException e) {
+                    res.completeExceptionally(e);
+                    return;
+                }
+                if (status == 400 && retry && !res.isDone() && FhemWebBackend.this.csrfToken != null &&
+                        !FhemWebBackend.this.csrfToken.equals(token)) {
+                    // FHEMWEB wurde neu gestartet und verlangt einen neuen Token
+                    FhemWebBackend.this.send(command, config, res, false);
+                    return;
+                }
+                if (status != 200) {
+                    res.completeExceptionally(new IOException(
+                            "FHEMWEB hat den Befehl '" + command + "' mit dem Status " + status + " abgelehnt."));
+                    return;
+                }
+                FhemWebBackend.this.roundTripEstimator.addSample(System.nanoTime() - sentNanos);
+                if (FhemWebBackend.this.roundTripEstimator.getSampleCount() %
+                        FhemBackendDefaults.LOG_ROUND_TRIP_INTERVAL == 0) {
+                    FhemWebBackend.this.logger
+                            .info("Round-trip time to FHEMWEB: " + FhemWebBackend.this.roundTripEstimator);
+                }
+                res.complete(removeEmptyLines(body));
+            }
+
+            @Override
+            public void failed(Exception e) {
+                res.completeExceptionally(e instanceof IOException ? e :
+                        new IOException("Fehler bei der Kommunikation mit FHEMWEB.", e));
+            }
+
+            @Override
+            public void cancelled() {
+                res.cancel(false);
+            }
+        });
+        // Gibt die Verbindung frei, falls der Aufrufer nicht mehr auf die Antwort wartet
+        res.whenComplete((r, e) -> {
+            if (res.isCancelled()) {
+                exchange.cancel(true);
+            }
+        });
+    }
+
+    private void updateCsrfToken(HttpResponse response) {
+        final Header header = response.getFirstHeader(CSRF_TOKEN_HEADER);
+        if (header != null) {
+            this.csrfToken = header.getValue();
+        }
+    }
+
+    /**
+     * Öffnet einen neuen Ereignis-Strom mit dem aktuellen Filter und schließt
+     * den bisherigen.
+     *
+     * @throws FhemException Falls FHEMWEB den Ereignis-Strom nicht rechtzeitig geöffnet hat.
+     */
+    private void openEventStream() throws FhemException, InterruptedException {
+        final EventStream previous = this.eventStream;
+        if (previous != null) {
+            previous.close();
+        }
+        this.logger.info("Starting new event stream from FHEMWEB on " + this.baseUrl);
+        final String filter = this.eventFilter;
+        final String token = this.csrfToken;
+        final String url = this.baseUrl + "?XHR=1&inform=type=raw;filter=" + encode(filter != null ? filter : ".*") +
+                (token != null ? "&fwcsrf=" + encode(token) : "");
+
+        final EventStream stream = new EventStream();
+        this.eventStream = stream;
+        stream.exchange = this.client.execute(HttpAsyncMethods.createGet(url), stream, new FutureCallback<Void>() {
+            @Override
+            public void completed(Void result) {
+                FhemWebBackend.this.onEventStreamEnded(stream);
+            }
+
+            @Override
+            public void failed(Exception e) {
+                stream.opened.completeExceptionally(e);
+                FhemWebBackend.this.onEventStreamEnded(stream);
+            }
+
+            @Override
+            public void cancelled() {
+                FhemWebBackend.this.onEventStreamEnded(stream);
+            }
+        });
+        try {
+            DevicePowerManager.await(stream.opened, this.getTimeoutMillis());
+        } catch (final IOException e) {
+            stream.close();
+            throw new FhemException("Konnte keine Events-Verbindung zum FHEM-Server aufbauen.", e);
+        }
+    }
+
+    /**
+     * Wird aufgerufen, sobald ein Ereignis-Strom beendet wurde.
+     */
+    private void onEventStreamEnded(EventStream stream) {
+        if (this.shutdown || stream != this.eventStream || this.eventsSession == null) {
+            // Absichtlich geschlossen oder bereits ersetzt
+            return;
+        }
+        this.eventsSession.reportFailure("The event stream of FHEMWEB has ended.");
+    }
+
+    /**
+     * Prüft, ob der Ereignis-Strom noch offen ist. Wird regelmäßig
+     * ausgeführt. Ruhige Zeiten ohne Ereignis sind mit dem Filter auf die
+     * verwalteten Geräte normal und kein Grund für einen neuen Strom.
+     */
+    private void checkEventStream() {
+        if (this.eventsSession.getState() != FhemReconnectSupervisor.CircuitState.CLOSED) {
+            return;
+        }
+        final EventStream stream = this.eventStream;
+        if (stream == null || stream.closed) {
+            this.eventsSession.reportFailure("The event stream of FHEMWEB is closed.");
+        }
+    }
+
+    @Override
+    public void setEventFilter(String filter) {
+        this.eventFilter = filter;
+        final ScheduledExecutorService service = this.keepAliveService;
+        final FhemReconnectSupervisor.Session session = this.eventsSession;
+        if (service == null || session == null || session.getState() != FhemReconnectSupervisor.CircuitState.CLOSED) {
+            // Wird beim nächsten Aufbau des Ereignis-Stroms verwendet
+            return;
+        }
+        // FHEMWEB kann den Filter eines offenen Ereignis-Stroms nicht ändern
+        service.execute(() -> {
+            try {
+                this.openEventStream();
+            } catch (final FhemException e) {
+                session.reportFailure("Could not update the event subscription.");
+            } catch (final InterruptedException e) {
+                // Terminate.
+            }
+        });
+    }
+
+    @Override
+    public CompletableFuture<String> setState(String name, String state) throws IOException {
+        // Der Aufrufer wartet auf die Antwort länger als auf andere Befehle
+        return this.command("set " + name + " " + state,
+                Math.max(this.getTimeoutMillis(), FhemBackendDefaults.SET_REPLY_TIMEOUT.toMillis()));
+    }
+
+    @Override
+    public CompletableFuture<String> getState(String name) throws IOException {
+        return this.command("get " + name + " param state");
+    }
+
+    @Override
+    public CompletableFuture<String> getStates(Collection<String> names) throws IOException {
+        return this.command("jsonlist2 " + String.join(",", names) + " state");
+    }
+
+    @Override
+    public long getTimeoutMillis() {
+        return this.roundTripEstimator.getTimeoutMillis();
+    }
+
+    @Override
+    public Duration getRoundTripTime() {
+        return this.roundTripEstimator.getSmoothedRoundTripTime();
+    }
+
+    @Override
+    public void shutdown() {
+        this.shutdown = true;
+        if (this.keepAliveService != null) {
+            this.keepAliveService.shutdownNow();
+        }
+        final EventStream stream = this.eventStream;
+        if (stream != null) {
+            stream.close();
+        }
+        if (this.client != null) {
+            try {
+                this.client.close();
+            } catch (final IOException e) {
+                this.logger.warn("Could not close the connections to FHEMWEB.", e);
+            }
+        }
+    }
+
+    /**
+     * Kodiert einen Parameter für die Verwendung in einer URL. Leerzeichen
+     * werden als {@code %20} kodiert.
+     */
+    private static String encode(String value) {
+        try {
+            return URLEncoder.encode(value, StandardCharsets.UTF_8.name()).replace("+", "%20");
+        } catch (final UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Entfernt die leeren Zeilen einer Antwort, wie es der Befehlskanal der
+     * Telnet-Schnittstelle tut.
+     */
+    private static String removeEmptyLines(String body) {
+        final StringBuilder res = new StringBuilder();
+        for (final String line : body.split("\r?\n")) {
+            if (line.isEmpty()) {
+                continue;
+            }
+            if (res.length() > 0) {
+                res.append('\n');
+            }
+            res.append(line);
+        }
+        return res.toString();
+    }
+
+    /**
+     * Ein Ereignis-Strom von FHEMWEB. Zerlegt die empfangenen Zeichen in
+     * Zeilen und gibt jede Zeile als Ereignis weiter.
+     */
+    private class EventStream extends AsyncCharConsumer<Void> {
+        /**
+         * Wird vervollständigt, sobald FHEMWEB den Strom angenommen hat.
+         */
+        private final CompletableFuture<Void> opened = new CompletableFuture<>();
+        /**
+         * Die bisher empfangenen Zeichen der aktuellen Zeile. Wird nur vom
+         * I/O-Thread verwendet.
+         */
+        private final StringBuilder line = new StringBuilder();
+        private volatile Future<Void> exchange;
+        private volatile boolean closed = false;
+
+        @Override
+        protected void onResponseReceived(HttpResponse response) throws HttpException, IOException {
+            FhemWebBackend.this.updateCsrfToken(response);
+            final int status = response.getStatusLine().getStatusCode();
+            if (status != 200) {
+                final IOException e =
+                        new IOException("FHEMWEB hat den Ereignis-Strom mit dem Status " + status + " abgelehnt.");
+                this.opened.completeExceptionally(e);
+                throw e;
+            }
+            this.opened.complete(null);
+        }
+
+        @Override
+        protected void onCharReceived(CharBuffer buf, IOControl ioctrl) throws IOException {
+            if (this.closed) {
+                ioctrl.shutdown();
+                return;
+            }
+            while (buf.hasRemaining()) {
+                final char c = buf.get();
+                if (c == '\n') {
+                    this.dispatchLine();
+                } else if (c != '\r') {
+                    this.line.append(c);
+                }
+            }
+        }
+
+        /**
+         * Gibt die aktuelle Zeile ohne den Zeilenumbruch {@code <br>}, welchen
+         * FHEMWEB anhängt, als Ereignis weiter.
+         */
+        private void dispatchLine() {
+            int end = this.line.length();
+            if (end >= 4 && this.line.charAt(end - 4) == '<' && this.line.charAt(end - 3) == 'b' &&
+                    this.line.charAt(end - 2) == 'r' && this.line.charAt(end - 1) == '>') {
+                end -= 4;
+                this.line.setLength(end);
+            }
+            if (end > 0) {
+                FhemWebBackend.this.eventListener.onEventReceived(this.line);
+            }
+            this.line.setLength(0);
+        }
+
+        @Override
+        protected Void buildResult(HttpContext context) {
+            return null;
+        }
+
+        /**
+         * Schließt den Ereignis-Strom.
+         */
+        void close() {
+            this.closed = true;
+            final Future<Void> f = this.exchange;
+            if (f != null) {
+                f.cancel(true);
+            }
+        }
+    }
+}
@@ -0,0 +1,348 @@
+package org.kabieror.elwasys.raspiclient.executions;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.time.Duration;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Ein Zeitgeber-Rad für Fristen wie das Ende einer Programmausführung oder ein geplantes automatisches Ende.
+ * <p>
+ * Die Zeit ist in Schritte fester Dauer geteilt, welche reihum auf die Fächer des Rads verteilt sind. Ein Zeitgeber
+ * liegt in einer doppelt verketteten Liste im Fach seines Schritts, sodass Einfügen und Entfernen unabhängig von der
+ * Anzahl der Zeitgeber konstanten Aufwand haben. Ein einziger Thread bewegt das Rad anhand von
+ * {@link System#nanoTime()} weiter und übergibt fällige Aufgaben an einen {@link Executor}.
+ * <p>
+ * Andere Threads verändern die Listen nie selbst. Wird eine Frist nach hinten verschoben oder ein Zeitgeber
+ * abgebrochen, wird nur ein Feld gesetzt; das Rad prüft die Frist erneut, wenn es das Fach erreicht. Nur neue oder
+ * vorgezogene Fristen werden dem Rad über eine Warteschlange übergeben.
+ *
+ * @author Oliver Kabierschke
+ */
+class HashedTimerWheel {
+
+    private final Logger logger = LoggerFactory.getLogger(this.getClass());
+
+    private final long tickNanos;
+
+    private final Timer[] buckets;
+
+    private final int mask;
+
+    /**
+     * Führt die fälligen Aufgaben aus.
+     */
+    private final Executor executor;
+
+    /**
+     * Zeitgeber, die das Rad neu einordnen muss.
+     */
+    private final Queue<Timer> pending = new ConcurrentLinkedQueue<>();
+
+    /**
+     * Der Thread des Rads oder null, falls das Rad mit {@link #advanceTo(long)} weiterbewegt wird.
+     */
+    private final Thread thread;
+
+    /**
+     * Der Beginn des ersten Schritts nach {@link System#nanoTime()}.
+     */
+    private final long startNanos;
+
+    /**
+     * Der Schritt, den das Rad gerade bearbeitet. Wird nur vom Thread des Rads verwendet.
+     */
+    private long tick = 0;
+
+    private volatile boolean shutdown = false;
+
+    /**
+     * Erstellt ein Zeitgeber-Rad und startet seinen Thread.
+     *
+     * @param tick     Die Dauer eines Schritts. Fristen werden höchstens um diese Dauer verspätet ausgelöst.
+     * @param size     Die Anzahl der Fächer. Wird auf die nächste Zweierpotenz aufgerundet.
+     * @param executor Führt die fälligen Aufgaben aus.
+     */
+    HashedTimerWheel(Duration tick, int size, Executor executor) {
+        this(tick, size, executor, System.nanoTime(), true);
+    }
+
+    /**
+     * Erstellt ein Zeitgeber-Rad ohne eigenen Thread, welches nur mit {@link #advanceTo(long)} weiterbewegt wird.
+     *
+     * @param tick       Die Dauer eines Schritts.
+     * @param size       Die Anzahl der Fächer. Wird auf die nächste Zweierpotenz aufgerundet.
+     * @param executor   Führt die fälligen Aufgaben aus.
+     * @param startNanos Der Beginn des ersten Schritts nach {@link System#nanoTime()}.
+     */
+    HashedTimerWheel(Duration tick, int size, Executor executor, long startNanos) {
+        this(tick, size, executor, startNanos, false);
+    }
+
+    private HashedTimerWheel(Duration tick, int size, Executor executor, long startNanos, boolean ownThread) {
+        if (tick.isNegative() || tick.isZero()) {
+            throw new IllegalArgumentException("Die Dauer eines Schritts muss positiv sein.");
+        }
+        if (size <= 0 || size > 1 << 30) {
+            throw new IllegalArgumentException("Die Anzahl der Fächer ist ungültig: " + size);
+        }
+        this.tickNanos = tick.toNanos();
+        int length = 1;
+        while (length < size) {
+            length <<= 1;
+        }
+        this.buckets = new Timer[length];
+        this.mask = this.buckets.length - 1;
+        this.executor = executor;
+        this.startNanos = startNanos;
+        if (ownThread) {
+            this.thread = new Thread(this::run, "HashedTimerWheel");
+            this.thread.setDaemon(true);
+            this.thread.start();
+        } else {
+            this.thread = null;
+        }
+    }
+
+    /**
+     * Erstellt einen Zeitgeber, der noch nicht gestellt ist.
+     *
+     * @param task Die Aufgabe, welche bei Erreichen der Frist ausgeführt wird.
+     * @return Den Zeitgeber.
+     */
+    Timer newTimer(Runnable task) {
+        return new Timer(task);
+    }
+
+    /**
+     * Hält das Rad an. Bereits gestellte Zeitgeber werden nicht mehr ausgelöst.
+     */
+    void shutdown() {
+        this.shutdown = true;
+        if (this.thread != null) {
+            this.thread.interrupt();
+        }
+    }
+
+    /**
+     * Bearbeitet alle Schritte, die bis zum gegebenen Zeitpunkt begonnen haben. Nur für ein Rad ohne eigenen Thread.
+     *
+     * @param nowNanos Der aktuelle Zeitpunkt nach {@link System#nanoTime()}.
+     */
+    void advanceTo(long nowNanos) {
+        if (this.thread != null) {
+            throw new IllegalStateException("Das Rad wird von seinem eigenen Thread bewegt.");
+        }
+        while (!this.shutdown && this.startNanos + this.tick * this.tickNanos - nowNanos <= 0) {
+            this.step();
+        }
+    }
+
+    private void run() {
+        while (!this.shutdown) {
+            // Warte auf den Beginn des Schritts
+            final long tickStart = this.startNanos + this.tick * this.tickNanos;
+            long wait;
+            while ((wait = tickStart - System.nanoTime()) > 0) {
+                LockSupport.parkNanos(this, wait);
+                if (this.shutdown) {
+                    return;
+                }
+            }
+            this.step();
+        }
+    }
+
+    private void step() {
+        this.processPending();
+        this.expire(this.tick & this.mask);
+        this.tick++;
+    }
+
+    /**
+     * Ordnet die übergebenen Zeitgeber in ihre Fächer ein.
+     */
+    private void processPending() {
+        Timer t;
+        while ((t = this.pending.poll()) != null) {
+            synchronized (t) {
+                t.queued = false;
+                if (t.armed) {
+                    this.place(t, this.tick);
+                } else if (t.linked) {
+                    this.unlink(t);
+                }
+            }
+        }
+    }
+
+    /**
+     * Löst die fälligen Zeitgeber eines Fachs aus.
+     */
+    private void expire(long bucket) {
+        Timer t = this.buckets[(int) bucket];
+        while (t != null) {
+            final Timer next = t.next;
+            synchronized (t) {
+                if (!t.armed) {
+                    this.unlink(t);
+                } else if (t.targetTick <= this.tick) {
+                    final long due = this.tickOf(t.deadline);
+                    if (due > this.tick) {
+                        // Die Frist wurde nach hinten verschoben
+                        this.place(t, due);
+                    } else {
+                        t.armed = false;
+                        this.unlink(t);
+                        this.dispatch(t.task);
+                    }
+                }
+            }
+            t = next;
+        }
+    }
+
+    private void dispatch(Runnable task) {
+        try {
+            this.executor.execute(task);
+        } catch (final RejectedExecutionException e) {
+            this.logger.warn("Could not run a due timer.", e);
+        }
+    }
+
+    /**
+     * Legt einen Zeitgeber in das Fach seiner Frist. Muss mit der Sperre des Zeitgebers aufgerufen werden.
+     *
+     * @param earliest Der früheste Schritt, in dem der Zeitgeber ausgelöst werden darf.
+     */
+    private void place(Timer t, long earliest) {
+        if (t.linked) {
+            this.unlink(t);
+        }
+        t.targetTick = Math.max(this.tickOf(t.deadline), earliest);
+        t.placedDeadline = t.deadline;
+        final int bucket = (int) (t.targetTick & this.mask);
+        t.bucket = bucket;
+        t.prev = null;
+        t.next = this.buckets[bucket];
+        if (t.next != null) {
+            t.next.prev = t;
+        }
+        this.buckets[bucket] = t;
+        t.linked = true;
+    }
+
+    /**
+     * Entfernt einen Zeitgeber aus seinem Fach. Muss mit der Sperre des Zeitgebers aufgerufen werden.
+     */
+    private void unlink(Timer t) {
+        if (t.prev != null) {
+            t.prev.next = t.next;
+        } else {
+            this.buckets[t.bucket] = t.next;
+        }
+        if (t.next != null) {
+            t.next.prev = t.prev;
+        }
+        t.prev = null;
+        t.next = null;
+        t.linked = false;
+    }
+
+    /**
+     * Gibt den ersten Schritt zurück, dessen Beginn nicht vor der Frist liegt.
+     */
+    private long tickOf(long deadlineNanos) {
+        final long offset = deadlineNanos - this.startNanos;
+        return offset <= 0 ? 0 : (offset + this.tickNanos - 1) / this.tickNanos;
+    }
+
+    /**
+     * Ein Zeitgeber, welcher beliebig oft gestellt, verschoben und abgebrochen werden kann.
+     */
+    class Timer {
+        private final Runnable task;
+
+        /**
+         * Die Frist nach {@link System#nanoTime()}.
+         */
+        private long deadline;
+
+        private boolean armed = false;
+
+        /**
+         * True, solange der Zeitgeber in der Warteschlange des Rads steht.
+         */
+        private boolean queued = false;
+
+        /**
+         * True, solange der Zeitgeber in einem Fach liegt.
+         */
+        private boolean linked = false;
+
+        /**
+         * Die Frist, für die das Fach gewählt wurde.
+         */
+        private long placedDeadline;
+
+        /**
+         * Die folgenden Felder werden nur vom Thread des Rads verwendet.
+         */
+        private long targetTick;
+        private int bucket;
+        private Timer prev;
+        private Timer next;
+
+        private Timer(Runnable task) {
+            this.task = task;
+        }
+
+        /**
+         * Stellt den Zeitgeber auf eine neue Frist. Ist er bereits gestellt, wird nur die Frist ersetzt.
+         *
+         * @param deadlineNanos Die Frist nach {@link System#nanoTime()}.
+         */
+        synchronized void schedule(long deadlineNanos) {
+            this.deadline = deadlineNanos;
+            this.armed = true;
+            // Liegt der Zeitgeber bereits in einem Fach, das nicht nach der
+            // Frist erreicht wird, genügt die neue Frist.
+            if (!this.queued && !(this.linked && deadlineNanos - this.placedDeadline >= 0)) {
+                this.queued = true;
+                HashedTimerWheel.this.pending.add(this);
+            }
+        }
+
+        /**
+         * Stellt den Zeitgeber auf eine Frist nach der gegebenen Dauer ab dem aktuellen Zeitpunkt.
+         *
+         * @param delay Die Dauer bis zur Frist.
+         */
+        void schedule(Duration delay) {
+            this.schedule(System.nanoTime() + delay.toNanos());
+        }
+
+        /**
+         * Bricht den Zeitgeber ab.
+         *
+         * @return True, falls der Zeitgeber gestellt war.
+         */
+        synchronized boolean cancel() {
+            final boolean wasArmed = this.armed;
+            this.armed = false;
+            return wasArmed;
+        }
+
+        /**
+         * @return True, falls der Zeitgeber gestellt und noch nicht ausgelöst ist.
+         */
+        synchronized boolean isArmed() {
+            return this.armed;
+        }
+    }
+}
@@ -0,0 +1,37 @@
+package org.kabieror.elwasys.raspiclient.executions;
+
+/**
+ * Das Gerät gilt als untätig, sobald die Leistung unter die untere Schwelle fällt, und erst wieder als tätig, sobald
+ * sie die obere Schwelle überschreitet.
+ * <p>
+ * Messwerte zwischen den Schwellen ändern den Zustand nicht. So beenden verrauschte Messwerte um die untere Schwelle
+ * die geplante Beendigung nicht ständig und planen sie neu.
+ *
+ * @author Oliver Kabierschke
+ */
+class HysteresisAutoEndDetector implements AutoEndDetector {
+
+    private final double lowThreshold;
+    private final double highThreshold;
+
+    private boolean idle = true;
+
+    /**
+     * @param lowThreshold  Die Leistung in Watt, unter welcher das Gerät als untätig gilt.
+     * @param highThreshold Die Leistung in Watt, über welcher das Gerät wieder als tätig gilt.
+     */
+    HysteresisAutoEndDetector(double lowThreshold, double highThreshold) {
+        this.lowThreshold = lowThreshold;
+        this.highThreshold = Math.max(lowThreshold, highThreshold);
+    }
+
+    @Override
+    public boolean onSample(long timeNanos, double power) {
+        if (power < this.lowThreshold) {
+            this.idle = true;
+        } else if (power > this.highThreshold) {
+            this.idle = false;
+        }
+        return this.idle;
+    }
+}
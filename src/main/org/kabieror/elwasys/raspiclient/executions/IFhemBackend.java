@@ -0,0 +1,83 @@
+package org.kabieror.elwasys.raspiclient.executions;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.Collection;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Die Verbindung zu einem FHEM-Server, über welche Schalter gesetzt und abgefragt sowie Ereignisse empfangen werden.
+ * <p>
+ * Die Antworten entsprechen der Ausgabe der jeweiligen FHEM-Befehle ohne leere Zeilen, unabhängig davon, über welchen
+ * Weg sie übertragen werden. Die Auswertung übernimmt der {@link DevicePowerManager}.
+ *
+ * @author Oliver Kabierschke
+ */
+public interface IFhemBackend {
+
+    /**
+     * Baut die Verbindung zum FHEM-Server auf und beginnt mit dem Empfang von Ereignissen.
+     *
+     * @param eventListener Der Empfänger der Ereignisse.
+     * @throws FhemException Falls die Verbindung nicht aufgebaut werden konnte.
+     */
+    void start(IFhemEventListener eventListener) throws FhemException, InterruptedException;
+
+    /**
+     * Setzt den Zustand eines Schalters ({@code set <Name> <Zustand>}).
+     *
+     * @param name  Der Name des Schalters im FHEM-Server.
+     * @param state Der neue Zustand.
+     * @return Die Antwort des FHEM-Servers. Ein leerer String bedeutet, dass der Befehl ausgeführt wurde.
+     * @throws IOException   Falls der Befehl nicht gesendet werden kann.
+     * @throws FhemException Falls der FHEM-Server derzeit nicht erreichbar ist.
+     */
+    CompletableFuture<String> setState(String name, String state) throws IOException, FhemException;
+
+    /**
+     * Fragt den Zustand eines Schalters ab ({@code get <Name> param state}).
+     *
+     * @param name Der Name des Schalters im FHEM-Server.
+     * @return Den Zustand, wie ihn der FHEM-Server ausgibt.
+     * @throws IOException   Falls der Befehl nicht gesendet werden kann.
+     * @throws FhemException Falls der FHEM-Server derzeit nicht erreichbar ist.
+     */
+    CompletableFuture<String> getState(String name) throws IOException, FhemException;
+
+    /**
+     * Fragt den Zustand mehrerer Schalter mit einer einzigen Anfrage ab ({@code jsonlist2 <Namen> state}).
+     *
+     * @param names Die Namen der Schalter im FHEM-Server.
+     * @return Die Antwort des FHEM-Servers im JSON-Format.
+     * @throws IOException   Falls der Befehl nicht gesendet werden kann.
+     * @throws FhemException Falls der FHEM-Server derzeit nicht erreichbar ist.
+     */
+    CompletableFuture<String> getStates(Collection<String> names) throws IOException, FhemException;
+
+    /**
+     * Beschränkt die empfangenen Ereignisse auf die Geräte, deren Name oder "Name:Ereignis" auf den gegebenen
+     * regulären Ausdruck passt.
+     *
+     * @param filter Der reguläre Ausdruck oder null, um alle Ereignisse zu empfangen.
+     */
+    void setEventFilter(String filter);
+
+    /**
+     * Gibt die Zeit zurück, die auf die Antwort eines Befehls gewartet werden soll.
+     *
+     * @return Die Wartezeit in Millisekunden.
+     */
+    long getTimeoutMillis();
+
+    /**
+     * Gibt die geglättete Antwortzeit des FHEM-Servers zurück.
+     *
+     * @return Die Antwortzeit oder null, falls noch keine gemessen wurde.
+     */
+    Duration getRoundTripTime();
+
+    /**
+     * Schließt alle Verbindungen zum FHEM-Server.
+     */
+    void shutdown();
+}
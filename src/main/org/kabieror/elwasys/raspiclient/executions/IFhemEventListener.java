@@ -0,0 +1,18 @@
+package org.kabieror.elwasys.raspiclient.executions;
+
+/**
+ * Dieser Listener wird über die Ereignisse eines FHEM-Servers benachrichtigt.
+ *
+ * @author Oliver Kabierschke
+ */
+public interface IFhemEventListener {
+    /**
+     * Wird auf dem Empfangs-Thread der Verbindung aufgerufen, sobald ein Ereignis empfangen wurde.
+     * <p>
+     * Die übergebene Zeichenfolge ist nur während dieses Aufrufs gültig. Wird sie länger benötigt, muss sie mit {@code
+     * toString()} kopiert werden.
+     *
+     * @param event Das Ereignis in der Form {@code [Zeitstempel] <Typ> <Name> <Ereignis>}.
+     */
+    void onEventReceived(CharSequence event);
+}
@@ -0,0 +1,65 @@
+package org.kabieror.elwasys.raspiclient.executions;
+
+import java.time.Duration;
+
+/**
+ * Das Gerät gilt als untätig, solange der gleitende Mittelwert der Leistung unter einer Schwelle liegt.
+ * <p>
+ * Der Mittelwert wird exponentiell über die Zeit gewichtet. Da die Leistungsmesser in unregelmäßigen Abständen
+ * melden, hängt das Gewicht einer Messung vom Abstand zur vorherigen ab und nicht von der Anzahl der Messungen. Eine
+ * kurze Pause im Schleudergang senkt den Mittelwert daher nur wenig.
+ *
+ * @author Oliver Kabierschke
+ */
+class MovingAverageAutoEndDetector implements AutoEndDetector {
+
+    private final double threshold;
+    private final double timeConstantNanos;
+
+    private boolean initialized = false;
+    private long lastNanos;
+    private double lastPower;
+    private double average;
+
+    /**
+     * @param threshold    Die Leistung in Watt, unter welcher das Gerät als untätig gilt.
+     * @param timeConstant Die Zeitkonstante des Mittelwerts. Nach dieser Zeit ist der Einfluss älterer Messungen auf
+     *                     etwa ein Drittel gesunken.
+     */
+    MovingAverageAutoEndDetector(double threshold, Duration timeConstant) {
+        this.threshold = threshold;
+        this.timeConstantNanos = Math.max(1, timeConstant.toNanos());
+    }
+
+    @Override
+    public boolean onSample(long timeNanos, double power) {
+        if (!this.initialized) {
+            this.initialized = true;
+            this.average = power;
+        } else {
+            // Die vorherige Leistung lag bis zu dieser Messung an
+            final double dt = Math.max(0, timeNanos - this.lastNanos);
+            final double weight = 1 - Math.exp(-dt / this.timeConstantNanos);
+            this.average += weight * (this.lastPower - this.average);
+        }
+        this.lastNanos = timeNanos;
+        this.lastPower = power;
+        return this.average < this.threshold;
+    }
+
+    @Override
+    public long getIdleDelayNanos() {
+        if (!this.initialized) {
+            return -1;
+        }
+        if (this.average < this.threshold) {
+            return 0;
+        }
+        if (this.lastPower >= this.threshold) {
+            return -1;
+        }
+        // Der Mittelwert nähert sich der zuletzt gemessenen Leistung exponentiell an
+        final double ratio = (this.average - this.lastPower) / (this.threshold - this.lastPower);
+        return (long) Math.ceil(this.timeConstantNanos * Math.log(ratio)) + 1;
+    }
+}
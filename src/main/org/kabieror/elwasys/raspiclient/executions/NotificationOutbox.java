@@ -0,0 +1,501 @@
+package org.kabieror.elwasys.raspiclient.executions;
+
+import com.mashape.unirest.http.HttpResponse;
+import com.mashape.unirest.http.JsonNode;
+import com.mashape.unirest.http.Unirest;
+import com.mashape.unirest.http.exceptions.UnirestException;
+import net.pushover.client.MessagePriority;
+import net.pushover.client.PushoverException;
+import net.pushover.client.PushoverMessage;
+import net.pushover.client.PushoverRestClient;
+import net.pushover.client.Status;
+import org.apache.commons.mail.EmailException;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.kabieror.elwasys.common.User;
+import org.kabieror.elwasys.raspiclient.application.ElwaManager;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.mail.Address;
+import javax.mail.SendFailedException;
+import javax.mail.internet.AddressException;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+/**
+ * Versendet die Benachrichtigungen über beendete Ausführungen unabhängig vom Beenden der Ausführung.
+ * <p>
+ * Benachrichtigungen werden je Kanal in eine Warteschlange eingereiht, welche ein eigener Thread abarbeitet. Schlägt
+ * der Versand fehl, wartet der Kanal mit wachsendem Abstand auf den nächsten Versuch, ohne die übrigen Kanäle
+ * aufzuhalten. Die Warteschlangen werden bei jeder Änderung in eine Datei geschrieben und beim Start wieder
+ * eingelesen. Benachrichtigungen per E-Mail werden nur im Speicher gehalten, da zu ihrem Versand der Benutzer
+ * benötigt wird.
+ *
+ * @author Oliver Kabierschke
+ */
+class NotificationOutbox {
+
+    /**
+     * Die Version des Formats der Datei.
+     */
+    private static final int FILE_VERSION = 1;
+
+    /**
+     * Die Anzahl der Benachrichtigungen, welche höchstens in einem Durchgang eines Kanals versendet werden.
+     */
+    private static final int BATCH_SIZE = 50;
+
+    private static final Duration MIN_BACKOFF = Duration.ofSeconds(5);
+
+    private static final Duration MAX_BACKOFF = Duration.ofMinutes(10);
+
+    /**
+     * Das Alter, ab dem eine Benachrichtigung nicht mehr versendet wird.
+     */
+    private static final Duration MAX_AGE = Duration.ofHours(12);
+
+    /**
+     * Das Format der Schlüssel von Benutzern bei Pushover.
+     */
+    private static final Pattern PUSHOVER_KEY = Pattern.compile("[A-Za-z0-9]{30}");
+
+    private final Logger logger = LoggerFactory.getLogger(this.getClass());
+
+    private final Object lock = new Object();
+
+    private final Map<Channel, Lane> lanes = new EnumMap<>(Channel.class);
+
+    private final File file;
+
+    private final Thread worker;
+
+    private boolean shutdown = false;
+
+    /**
+     * Erstellt den Postausgang, liest die in der Datei gespeicherten Benachrichtigungen ein und startet den Versand.
+     *
+     * @param file Die Datei, in welche die ausstehenden Benachrichtigungen geschrieben werden.
+     */
+    NotificationOutbox(File file) {
+        this.file = file;
+        for (final Channel c : Channel.values()) {
+            this.lanes.put(c, new Lane());
+        }
+        this.load();
+        this.worker = new Thread(this::work, "NotificationOutbox");
+        this.worker.setDaemon(true);
+        this.worker.start();
+    }
+
+    /**
+     * Reiht eine Benachrichtigung per E-Mail ein.
+     *
+     * @param user    Der Empfänger.
+     * @param title   Der Betreff.
+     * @param message Der Text.
+     */
+    void sendEmail(User user, String title, String message) {
+        this.add(new Notification(Channel.EMAIL, user.getEmail(), title, message, System.currentTimeMillis(), user));
+    }
+
+    /**
+     * Reiht eine Benachrichtigung über Pushover ein.
+     *
+     * @param userKey Der Schlüssel des Empfängers bei Pushover.
+     * @param title   Der Titel.
+     * @param message Der Text.
+     */
+    void sendPushover(String userKey, String title, String message) {
+        this.add(new Notification(Channel.PUSHOVER, userKey, title, message, System.currentTimeMillis(), null));
+    }
+
+    /**
+     * Reiht eine Benachrichtigung an die elwaApp ein.
+     *
+     * @param ionicId Die Id des Empfängers beim Ionic-Push-Dienst.
+     * @param title   Der Titel.
+     * @param message Der Text.
+     */
+    void sendIonic(String ionicId, String title, String message) {
+        this.add(new Notification(Channel.IONIC, ionicId, title, message, System.currentTimeMillis(), null));
+    }
+
+    /**
+     * Beendet den Versand. Noch nicht versendete Benachrichtigungen bleiben in der Datei erhalten.
+     */
+    void shutdown() {
+        synchronized (this.lock) {
+            this.shutdown = true;
+            this.lock.notifyAll();
+            final int emails = this.lanes.get(Channel.EMAIL).items.size();
+            if (emails > 0) {
+                this.logger.warn(emails + " notification mails have not been sent and are discarded.");
+            }
+        }
+    }
+
+    private void add(Notification n) {
+        synchronized (this.lock) {
+            this.lanes.get(n.channel).items.addLast(n);
+            this.save();
+            this.lock.notifyAll();
+        }
+    }
+
+    private void work() {
+        while (true) {
+            final Channel channel;
+            final List<Notification> batch;
+            synchronized (this.lock) {
+                Channel due = null;
+                while (!this.shutdown) {
+                    final long now = System.currentTimeMillis();
+                    long wait = Long.MAX_VALUE;
+                    for (final Map.Entry<Channel, Lane> e : this.lanes.entrySet()) {
+                        final Lane lane = e.getValue();
+                        if (lane.items.isEmpty()) {
+                            continue;
+                        }
+                        if (lane.nextAttempt <= now) {
+                            due = e.getKey();
+                            break;
+                        }
+                        wait = Math.min(wait, lane.nextAttempt - now);
+                    }
+                    if (due != null) {
+                        break;
+                    }
+                    try {
+                        this.lock.wait(wait == Long.MAX_VALUE ? 0 : wait);
+                    } catch (final InterruptedException e) {
+                        return;
+                    }
+                }
+                if (this.shutdown) {
+                    return;
+                }
+                channel = due;
+                batch = this.takeBatch(this.lanes.get(channel));
+            }
+
+            int sent;
+            try {
+                sent = this.send(channel, batch);
+            } catch (final RuntimeException e) {
+                this.logger.error("Could not send " + channel + " notifications.", e);
+                sent = 0;
+            }
+
+            synchronized (this.lock) {
+                final Lane lane = this.lanes.get(channel);
+                // Nur dieser Thread entfernt Benachrichtigungen, der Stapel
+                // liegt daher noch am Anfang der Warteschlange.
+                for (int i = 0; i < sent; i++) {
+                    lane.items.removeFirst();
+                }
+                if (sent < batch.size()) {
+                    lane.backoff = lane.backoff == 0 ? MIN_BACKOFF.toMillis() :
+                            Math.min(lane.backoff * 2, MAX_BACKOFF.toMillis());
+                    lane.nextAttempt = System.currentTimeMillis() + lane.backoff;
+                    this.logger.warn(String.format("%d %s notifications are pending. Retrying in %ds.",
+                            lane.items.size(), channel, lane.backoff / 1000));
+                } else {
+                    lane.backoff = 0;
+                    lane.nextAttempt = 0;
+                }
+                this.save();
+            }
+        }
+    }
+
+    /**
+     * Verwirft veraltete Benachrichtigungen am Anfang einer Warteschlange und gibt die nächsten zu versendenden
+     * zurück. Muss mit der Sperre aufgerufen werden.
+     */
+    private List<Notification> takeBatch(Lane lane) {
+        final long oldest = System.currentTimeMillis() - MAX_AGE.toMillis();
+        while (!lane.items.isEmpty() && lane.items.peekFirst().created < oldest) {
+            final Notification n = lane.items.removeFirst();
+            this.logger.warn("Discarding outdated " + n.channel + " notification to " + n.recipient);
+        }
+        final List<Notification> batch = new ArrayList<>(Math.min(lane.items.size(), BATCH_SIZE));
+        for (final Notification n : lane.items) {
+            if (batch.size() == BATCH_SIZE) {
+                break;
+            }
+            batch.add(n);
+        }
+        return batch;
+    }
+
+    /**
+     * Versendet einen Stapel von Benachrichtigungen eines Kanals.
+     *
+     * @return Die Anzahl der Benachrichtigungen vom Anfang des Stapels, welche erledigt sind. Nicht zustellbare
+     * Benachrichtigungen gelten als erledigt, nur vorübergehende Fehler führen zu einem erneuten Versuch.
+     */
+    private int send(Channel channel, List<Notification> batch) {
+        switch (channel) {
+            case EMAIL:
+                return this.sendEmails(batch);
+            case PUSHOVER:
+                return this.sendPushovers(batch);
+            case IONIC:
+                return this.sendIonics(batch);
+            default:
+                throw new IllegalArgumentException("Unknown channel " + channel);
+        }
+    }
+
+    private int sendEmails(List<Notification> batch) {
+        for (int i = 0; i < batch.size(); i++) {
+            final Notification n = batch.get(i);
+            try {
+                ElwaManager.instance.getUtilities().sendEmail(n.title, n.message, n.user);
+                this.logger.debug("Sent notification to " + n.recipient);
+            } catch (final EmailException e) {
+                if (isPermanent(e)) {
+                    this.logger.error("Could not send the notification mail to " + n.recipient + ". Discarding it.",
+                            e);
+                    continue;
+                }
+                this.logger.error("Could not send the notification mail.", e);
+                return i;
+            }
+        }
+        return batch.size();
+    }
+
+    private int sendPushovers(List<Notification> batch) {
+        final PushoverRestClient client = new PushoverRestClient();
+        final String token = ElwaManager.instance.getConfigurationManager().getPushoverApiToken();
+        for (int i = 0; i < batch.size(); i++) {
+            final Notification n = batch.get(i);
+            if (n.recipient == null || !PUSHOVER_KEY.matcher(n.recipient).matches()) {
+                this.logger.error("Invalid pushover user key '" + n.recipient + "'. Discarding push notification.");
+                continue;
+            }
+            try {
+                final Status result = client.pushMessage(PushoverMessage.builderWithApiToken(token)
+                        .setUserId(n.recipient).setMessage(n.message).setPriority(MessagePriority.HIGH)
+                        .setTitle(n.title).setUrl("http://waschportal.hilaren.de").setTitleForURL("Waschportal")
+                        .build());
+                if (result.getStatus() != 1) {
+                    // Pushover hat die Nachricht abgelehnt, etwa wegen eines unbekannten Empfängers
+                    this.logger.error("Pushover rejected the push notification to " + n.recipient + ". Status: " +
+                            result.getStatus() + ". Discarding it.");
+                    continue;
+                }
+                this.logger.debug("Sent push notification. Status: " + result.getStatus());
+            } catch (final PushoverException e) {
+                this.logger.error("Could not send push notification.", e);
+                return i;
+            }
+        }
+        return batch.size();
+    }
+
+    /**
+     * Prüft, ob eine E-Mail auch bei einem erneuten Versuch nicht versendet werden kann, weil die Adresse ungültig ist
+     * oder die Nachricht nicht erstellt werden konnte. Fehler bei der Verbindung zum Mail-Server sind vorübergehend.
+     */
+    private static boolean isPermanent(EmailException e) {
+        if (e.getCause() == null) {
+            // Die Nachricht ist unvollständig, z.B. ohne Empfänger
+            return true;
+        }
+        for (Throwable t = e.getCause(); t != null; t = t.getCause()) {
+            if (t instanceof AddressException) {
+                return true;
+            }
+            if (t instanceof SendFailedException) {
+                final Address[] invalid = ((SendFailedException) t).getInvalidAddresses();
+                if (invalid != null && invalid.length > 0) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Versendet Benachrichtigungen an die elwaApp. Aufeinanderfolgende Benachrichtigungen mit gleichem Titel und
+     * Text werden mit einer Anfrage an alle Empfänger versendet.
+     */
+    private int sendIonics(List<Notification> batch) {
+        final String token = ElwaManager.instance.getConfigurationManager().getIonicApiToken();
+        int done = 0;
+        while (done < batch.size()) {
+            final Notification first = batch.get(done);
+            final JSONArray recipients = new JSONArray();
+            int end = done;
+            while (end < batch.size() && batch.get(end).title.equals(first.title) &&
+                    batch.get(end).message.equals(first.message)) {
+                recipients.put(batch.get(end).recipient);
+                end++;
+            }
+            try {
+                final HttpResponse<JsonNode> jsonResponse = Unirest.post("https://api.ionic.io/push/notifications")
+                        .header("PROFILE_TAG", "dev")
+                        .header("Authorization", "Bearer " + token)
+                        .header("Content-Type", "application/json")
+                        .body(new JSONObject()
+                                .put("user_ids", recipients)
+                                .put("profile", "dev")
+                                .put("notification", new JSONObject()
+                                        .put("title", first.title)
+                                        .put("message", first.message))
+                        )
+                        .asJson();
+                if (jsonResponse.getStatus() == 429 || jsonResponse.getStatus() > 499) {
+                    this.logger.warn("Could not send ionic notification. Status: " + jsonResponse.getStatus() + " "
+                            + jsonResponse.getStatusText());
+                    return done;
+                } else if (jsonResponse.getStatus() > 299) {
+                    this.logger.error("Could not send ionic notification. Status: " + jsonResponse.getStatus() + " "
+                            + jsonResponse.getStatusText() + "\n" + jsonResponse.getBody().toString());
+                } else {
+                    this.logger.debug("Sent ionic notification to " + recipients.length() + " recipients. "
+                            + jsonResponse.getStatus() + " " + jsonResponse.getStatusText());
+                }
+            } catch (final UnirestException e) {
+                this.logger.error("Could not send ionic notification.", e);
+                return done;
+            }
+            done = end;
+        }
+        return done;
+    }
+
+    /**
+     * Schreibt die ausstehenden Benachrichtigungen in die Datei. Muss mit der Sperre aufgerufen werden.
+     */
+    private void save() {
+        final List<Notification> stored = new ArrayList<>();
+        for (final Lane lane : this.lanes.values()) {
+            for (final Notification n : lane.items) {
+                if (n.channel != Channel.EMAIL) {
+                    stored.add(n);
+                }
+            }
+        }
+        try {
+            if (stored.isEmpty()) {
+                Files.deleteIfExists(this.file.toPath());
+                return;
+            }
+            final File tmp = new File(this.file.getPath() + ".tmp");
+            try (FileOutputStream fileOut = new FileOutputStream(tmp);
+                 DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fileOut))) {
+                out.writeInt(FILE_VERSION);
+                out.writeInt(stored.size());
+                for (final Notification n : stored) {
+                    out.writeUTF(n.channel.name());
+                    out.writeUTF(n.recipient);
+                    out.writeUTF(n.title);
+                    out.writeUTF(n.message);
+                    out.writeLong(n.created);
+                }
+                // Die Datei muss vollständig auf dem Datenträger liegen, bevor sie die bisherige ersetzt
+                out.flush();
+                fileOut.getFD().sync();
+            }
+            Files.move(tmp.toPath(), this.file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } catch (final IOException e) {
+            this.logger.warn("Could not write the notification outbox " + this.file.getPath(), e);
+        }
+    }
+
+    private void load() {
+        if (!this.file.exists()) {
+            return;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(this.file)))) {
+            final int version = in.readInt();
+            if (version != FILE_VERSION) {
+                this.logger.warn("The notification outbox " + this.file.getPath() + " has the unknown version " +
+                        version + " and is ignored.");
+                return;
+            }
+            final int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                final Channel channel = Channel.valueOf(in.readUTF());
+                final Notification n =
+                        new Notification(channel, in.readUTF(), in.readUTF(), in.readUTF(), in.readLong(), null);
+                this.lanes.get(channel).items.addLast(n);
+            }
+            this.logger.info("Loaded " + count + " pending notifications from " + this.file.getPath());
+        } catch (final IOException | IllegalArgumentException e) {
+            this.logger.warn("Could not read the notification outbox " + this.file.getPath(), e);
+        }
+    }
+
+    private enum Channel {
+        EMAIL, PUSHOVER, IONIC
+    }
+
+    /**
+     * Die Warteschlange eines Kanals.
+     */
+    private static class Lane {
+        private final Deque<Notification> items = new ArrayDeque<>();
+
+        /**
+         * Der frühste Zeitpunkt des nächsten Versuchs in Millisekunden seit 1970.
+         */
+        private long nextAttempt = 0;
+
+        /**
+         * Der aktuelle Abstand zwischen zwei Versuchen in Millisekunden oder 0, falls der letzte Versuch gelang.
+         */
+        private long backoff = 0;
+    }
+
+    private static class Notification {
+        private final Channel channel;
+
+        /**
+         * Die E-Mail-Adresse, der Pushover-Schlüssel oder die Ionic-Id des Empfängers.
+         */
+        private final String recipient;
+        private final String title;
+        private final String message;
+
+        /**
+         * Der Zeitpunkt des Einreihens in Millisekunden seit 1970.
+         */
+        private final long created;
+
+        /**
+         * Der Empfänger einer E-Mail, sonst null.
+         */
+        private final User user;
+
+        Notification(Channel channel, String recipient, String title, String message, long created, User user) {
+            this.channel = channel;
+            this.recipient = recipient;
+            this.title = title;
+            this.message = message;
+            this.created = created;
+            this.user = user;
+        }
+    }
+}
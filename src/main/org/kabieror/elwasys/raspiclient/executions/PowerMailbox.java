@@ -0,0 +1,102 @@
+package org.kabieror.elwasys.raspiclient.executions;
+
+import org.kabieror.elwasys.common.Execution;
+
+/**
+ * Nimmt die Leistungsmessungen zu einer laufenden Ausführung mit dem Zeitpunkt ihres Empfangs entgegen, bis sie
+ * verarbeitet werden.
+ * <p>
+ * Es werden höchstens {@link #CAPACITY} Messwerte in Feldern primitiver Typen aufbewahrt. Treffen mehr Messwerte ein,
+ * bevor sie abgeholt wurden, ersetzt jeder neue den ältesten und wird gezählt. So kostet auch eine Flut von
+ * Ereignissen, etwa nach einem Neuaufbau der Verbindung zum FHEM-Server, nur eine begrenzte Verarbeitung je Abholung.
+ * Die Messwerte werden nur von einem Thread abgeholt.
+ *
+ * @author Oliver Kabierschke
+ */
+class PowerMailbox {
+
+    /**
+     * Die Anzahl der Messwerte, die höchstens bis zur Abholung aufbewahrt werden.
+     */
+    static final int CAPACITY = 16;
+
+    private final Execution execution;
+
+    private final long[] nanos = new long[CAPACITY];
+    private final double[] watts = new double[CAPACITY];
+    private int head = 0;
+    private int size = 0;
+    private int dropped;
+
+    /**
+     * Die abgeholten Messwerte. Werden nur von dem abholenden Thread verwendet.
+     */
+    private final long[] polledNanos = new long[CAPACITY];
+    private final double[] polledWatts = new double[CAPACITY];
+
+    PowerMailbox(Execution execution) {
+        this.execution = execution;
+    }
+
+    Execution getExecution() {
+        return this.execution;
+    }
+
+    /**
+     * Legt einen neuen Messwert ab.
+     *
+     * @param timeNanos Der Zeitpunkt des Empfangs nach {@link System#nanoTime()}.
+     * @param power     Die gemessene Leistung in Watt.
+     */
+    synchronized void offer(long timeNanos, double power) {
+        if (this.size == CAPACITY) {
+            this.head = (this.head + 1) % CAPACITY;
+            this.size--;
+            this.dropped++;
+        }
+        final int idx = (this.head + this.size) % CAPACITY;
+        this.nanos[idx] = timeNanos;
+        this.watts[idx] = power;
+        this.size++;
+    }
+
+    /**
+     * Holt die aufbewahrten Messwerte ab und übergibt sie in der Reihenfolge ihres Empfangs. Der Empfänger wird ohne
+     * die Sperre dieses Postfachs aufgerufen.
+     *
+     * @param consumer Erhält die Messwerte.
+     * @return Die Anzahl der älteren Messwerte, die seit der letzten Abholung verworfen wurden.
+     */
+    int poll(Consumer consumer) {
+        final int count;
+        final int d;
+        synchronized (this) {
+            count = this.size;
+            for (int i = 0; i < count; i++) {
+                final int idx = (this.head + i) % CAPACITY;
+                this.polledNanos[i] = this.nanos[idx];
+                this.polledWatts[i] = this.watts[idx];
+            }
+            d = this.dropped;
+            this.head = 0;
+            this.size = 0;
+            this.dropped = 0;
+        }
+        for (int i = 0; i < count; i++) {
+            consumer.accept(this.execution, this.polledNanos[i], this.polledWatts[i]);
+        }
+        return d;
+    }
+
+    /**
+     * Verarbeitet einen abgeholten Messwert.
+     */
+    interface Consumer {
+        /**
+         * @param execution Die Ausführung, zu welcher der Messwert gehört.
+         * @param timeNanos Der Zeitpunkt des Empfangs nach {@link System#nanoTime()}.
+         * @param power     Die gemessene Leistung in Watt.
+         */
+        void accept(Execution execution, long timeNanos, double power);
+    }
+}
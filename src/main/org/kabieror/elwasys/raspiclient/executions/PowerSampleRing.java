@@ -0,0 +1,167 @@
+package org.kabieror.elwasys.raspiclient.executions;
+
+import java.time.Duration;
+
+/**
+ * Die letzten Leistungsmessungen eines Leistungsmessers in einem Ringpuffer fester Größe.
+ * <p>
+ * Zeitpunkte und Messwerte liegen in zwei Feldern primitiver Typen, sodass weder beim Hinzufügen noch beim Abfragen
+ * Objekte erzeugt werden. Ist der Puffer voll, ersetzt jede neue Messung die älteste.
+ *
+ * @author Oliver Kabierschke
+ */
+public class PowerSampleRing {
+
+    /**
+     * Die Zeitpunkte der Messungen nach {@link System#nanoTime()}.
+     */
+    private final long[] nanos;
+    private final float[] watts;
+
+    /**
+     * Der Index, an dem die nächste Messung abgelegt wird.
+     */
+    private int next = 0;
+    private int size = 0;
+
+    /**
+     * Erstellt einen leeren Ringpuffer.
+     *
+     * @param capacity Die Anzahl der Messungen, die höchstens aufbewahrt werden.
+     */
+    public PowerSampleRing(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Die Kapazität muss positiv sein.");
+        }
+        this.nanos = new long[capacity];
+        this.watts = new float[capacity];
+    }
+
+    /**
+     * Legt eine neue Messung ab.
+     *
+     * @param timeNanos Der Zeitpunkt der Messung nach {@link System#nanoTime()}.
+     * @param power     Die gemessene Leistung in Watt.
+     */
+    public synchronized void add(long timeNanos, float power) {
+        this.nanos[this.next] = timeNanos;
+        this.watts[this.next] = power;
+        this.next = (this.next + 1) % this.nanos.length;
+        if (this.size < this.nanos.length) {
+            this.size++;
+        }
+    }
+
+    /**
+     * Gibt die Anzahl der aufbewahrten Messungen zurück.
+     */
+    public synchronized int size() {
+        return this.size;
+    }
+
+    /**
+     * Gibt die Anzahl der Messungen zurück, die höchstens aufbewahrt werden.
+     */
+    public int capacity() {
+        return this.nanos.length;
+    }
+
+    /**
+     * Gibt die zuletzt gemessene Leistung zurück.
+     *
+     * @return Die Leistung in Watt oder NaN, falls keine Messung vorliegt.
+     */
+    public synchronized float getLatestPower() {
+        return this.size == 0 ? Float.NaN : this.watts[this.index(this.size - 1)];
+    }
+
+    /**
+     * Gibt den Zeitpunkt der letzten Messung zurück.
+     *
+     * @return Der Zeitpunkt nach {@link System#nanoTime()} oder 0, falls keine Messung vorliegt.
+     */
+    public synchronized long getLatestNanos() {
+        return this.size == 0 ? 0 : this.nanos[this.index(this.size - 1)];
+    }
+
+    /**
+     * Gibt das Alter der letzten Messung zurück.
+     *
+     * @return Das Alter oder null, falls keine Messung vorliegt.
+     */
+    public synchronized Duration getLatestAge() {
+        return this.size == 0 ? null : Duration.ofNanos(System.nanoTime() - this.nanos[this.index(this.size - 1)]);
+    }
+
+    /**
+     * Gibt die durchschnittliche Leistung im gegebenen Zeitraum vor dem aktuellen Zeitpunkt zurück. Zwischen zwei
+     * Messungen wird die zuvor gemessene Leistung angenommen, da die Leistungsmesser nur bei Änderungen melden. Reichen
+     * die aufbewahrten Messungen nicht so weit zurück, wird ab der ältesten gemittelt.
+     *
+     * @param window Der Zeitraum, z.B. die letzten 10 Minuten.
+     * @return Die durchschnittliche Leistung in Watt oder NaN, falls keine Messung vorliegt.
+     */
+    public float getAveragePower(Duration window) {
+        return this.getAveragePower(System.nanoTime(), window);
+    }
+
+    /**
+     * Gibt die durchschnittliche Leistung im gegebenen Zeitraum vor dem gegebenen Zeitpunkt zurück.
+     *
+     * @param nowNanos Das Ende des Zeitraums nach {@link System#nanoTime()}.
+     * @param window   Der Zeitraum.
+     * @return Die durchschnittliche Leistung in Watt oder NaN, falls keine Messung vorliegt.
+     */
+    synchronized float getAveragePower(long nowNanos, Duration window) {
+        if (this.size == 0) {
+            return Float.NaN;
+        }
+        final long since = nowNanos - window.toNanos();
+        final int first = this.firstWithin(since);
+        // Die Messung vor dem Zeitraum gilt bis zu der ersten darin
+        final long from = first > 0 ? since : this.nanos[this.index(0)];
+        long t = from;
+        double sum = 0;
+        for (int i = Math.max(0, first - 1); i < this.size; i++) {
+            final long until = i + 1 < this.size ? this.nanos[this.index(i + 1)] : nowNanos;
+            if (until - t > 0) {
+                sum += this.watts[this.index(i)] * (double) (until - t);
+                t = until;
+            }
+        }
+        if (nowNanos - from <= 0) {
+            return this.getLatestPower();
+        }
+        return (float) (sum / (nowNanos - from));
+    }
+
+    /**
+     * Sucht die älteste Messung ab dem gegebenen Zeitpunkt. Die Zeitpunkte sind aufsteigend, daher genügt eine binäre
+     * Suche.
+     *
+     * @param sinceNanos Der Zeitpunkt nach {@link System#nanoTime()}.
+     * @return Die Position der Messung, gezählt ab der ältesten aufbewahrten Messung, oder size, falls keine so neu
+     * ist.
+     */
+    synchronized int firstWithin(long sinceNanos) {
+        int low = 0;
+        int high = this.size;
+        while (low < high) {
+            final int mid = (low + high) >>> 1;
+            if (this.nanos[this.index(mid)] - sinceNanos < 0) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Rechnet eine Position, gezählt ab der ältesten aufbewahrten Messung, in einen Index der Felder um.
+     */
+    private int index(int position) {
+        final int start = this.next - this.size;
+        return (start + position + this.nanos.length) % this.nanos.length;
+    }
+}
@@ -0,0 +1,112 @@
+package org.kabieror.elwasys.raspiclient.executions;
+
+import java.time.Duration;
+
+/**
+ * Schätzt die Antwortzeit einer Verbindung zum FHEM-Server und leitet daraus die Wartezeit auf Antworten ab.
+ * <p>
+ * Verwendet das Verfahren von Jacobson und Karels: Die geglättete Antwortzeit und ihre mittlere Abweichung werden mit
+ * jedem Messwert exponentiell nachgeführt. Die Wartezeit beträgt die geglättete Antwortzeit zuzüglich der vierfachen
+ * Abweichung, begrenzt auf ein Minimum und ein Maximum.
+ *
+ * @author Oliver Kabierschke
+ */
+class RoundTripEstimator {
+
+    /**
+     * Gewicht eines neuen Messwerts für die geglättete Antwortzeit.
+     */
+    private static final double ALPHA = 1.0 / 8;
+
+    /**
+     * Gewicht eines neuen Messwerts für die Abweichung.
+     */
+    private static final double BETA = 1.0 / 4;
+
+    private final long initialTimeoutNanos;
+    private final long minTimeoutNanos;
+    private final long maxTimeoutNanos;
+
+    private long smoothedNanos = -1;
+    private long variationNanos;
+    private long sampleCount;
+
+    /**
+     * Erstellt einen neuen Schätzer.
+     *
+     * @param initialTimeout Die Wartezeit, solange noch keine Messung vorliegt.
+     * @param minTimeout     Die minimale Wartezeit.
+     * @param maxTimeout     Die maximale Wartezeit.
+     */
+    RoundTripEstimator(Duration initialTimeout, Duration minTimeout, Duration maxTimeout) {
+        this.initialTimeoutNanos = initialTimeout.toNanos();
+        this.minTimeoutNanos = minTimeout.toNanos();
+        this.maxTimeoutNanos = maxTimeout.toNanos();
+    }
+
+    /**
+     * Nimmt eine gemessene Antwortzeit auf.
+     *
+     * @param rttNanos Die Antwortzeit in Nanosekunden.
+     */
+    synchronized void addSample(long rttNanos) {
+        if (rttNanos < 0) {
+            return;
+        }
+        if (this.smoothedNanos < 0) {
+            this.smoothedNanos = rttNanos;
+            this.variationNanos = rttNanos / 2;
+        } else {
+            final long error = rttNanos - this.smoothedNanos;
+            this.variationNanos += (long) (BETA * (Math.abs(error) - this.variationNanos));
+            this.smoothedNanos += (long) (ALPHA * error);
+        }
+        this.sampleCount++;
+    }
+
+    /**
+     * Gibt die geglättete Antwortzeit zurück oder null, falls noch keine Messung vorliegt.
+     */
+    synchronized Duration getSmoothedRoundTripTime() {
+        return this.smoothedNanos < 0 ? null : Duration.ofNanos(this.smoothedNanos);
+    }
+
+    /**
+     * Gibt die mittlere Abweichung der Antwortzeit zurück.
+     */
+    synchronized Duration getRoundTripTimeVariation() {
+        return Duration.ofNanos(this.variationNanos);
+    }
+
+    /**
+     * Gibt die Anzahl der aufgenommenen Messwerte zurück.
+     */
+    synchronized long getSampleCount() {
+        return this.sampleCount;
+    }
+
+    /**
+     * Gibt die Zeit zurück, die auf eine Antwort gewartet werden soll.
+     *
+     * @return Die Wartezeit in Millisekunden.
+     */
+    synchronized long getTimeoutMillis() {
+        final long timeout;
+        if (this.smoothedNanos < 0) {
+            timeout = this.initialTimeoutNanos;
+        } else {
+            timeout = Math.max(this.minTimeoutNanos,
+                    Math.min(this.maxTimeoutNanos, this.smoothedNanos + 4 * this.variationNanos));
+        }
+        return Math.max(1, timeout / 1_000_000);
+    }
+
+    @Override
+    public synchronized String toString() {
+        if (this.smoothedNanos < 0) {
+            return "no samples, timeout=" + this.getTimeoutMillis() + "ms";
+        }
+        return String.format("srtt=%.1fms rttvar=%.1fms timeout=%dms samples=%d", this.smoothedNanos / 1e6,
+                this.variationNanos / 1e6, this.getTimeoutMillis(), this.sampleCount);
+    }
+}
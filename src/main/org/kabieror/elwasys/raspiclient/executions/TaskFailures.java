@@ -0,0 +1,56 @@
+package org.kabieror.elwasys.raspiclient.executions;
+
+import java.lang.reflect.UndeclaredThrowableException;
+
+/**
+ * Wirft die Ursache eines fehlgeschlagenen Hintergrund-Tasks, etwa aus einer
+ * {@link java.util.concurrent.ExecutionException}, mit ihrem ursprünglichen Typ erneut.
+ *
+ * @author Oliver Kabierschke
+ */
+public final class TaskFailures {
+
+    private TaskFailures() {
+    }
+
+    /**
+     * Wirft die Ursache erneut, falls sie einem der erwarteten Typen entspricht oder ungeprüft ist. Andere geprüfte
+     * Ausnahmen werden in eine {@link UndeclaredThrowableException} gehüllt.
+     * <p>
+     * Die Methode kehrt nie zurück. Der Rückgabewert erlaubt {@code throw TaskFailures.rethrow(...)}, damit der
+     * Compiler das Ende des Blocks erkennt.
+     *
+     * @param cause Die Ursache.
+     * @param a     Ein erwarteter Typ.
+     * @param b     Ein weiterer erwarteter Typ.
+     */
+    public static <A extends Exception, B extends Exception> RuntimeException rethrow(Throwable cause, Class<A> a,
+                                                                                      Class<B> b) throws A, B {
+        throw rethrow(cause, a, b, b);
+    }
+
+    /**
+     * Wirft die Ursache erneut, falls sie einem der erwarteten Typen entspricht oder ungeprüft ist.
+     *
+     * @see #rethrow(Throwable, Class, Class)
+     */
+    public static <A extends Exception, B extends Exception, C extends Exception> RuntimeException rethrow(
+            Throwable cause, Class<A> a, Class<B> b, Class<C> c) throws A, B, C {
+        if (a.isInstance(cause)) {
+            throw a.cast(cause);
+        }
+        if (b.isInstance(cause)) {
+            throw b.cast(cause);
+        }
+        if (c.isInstance(cause)) {
+            throw c.cast(cause);
+        }
+        if (cause instanceof RuntimeException) {
+            throw (RuntimeException) cause;
+        }
+        if (cause instanceof Error) {
+            throw (Error) cause;
+        }
+        throw new UndeclaredThrowableException(cause);
+    }
+}
@@ -0,0 +1,23 @@
+package org.kabieror.elwasys.raspiclient.executions;
+
+/**
+ * Das Gerät gilt als untätig, solange die zuletzt gemessene Leistung unter einer Schwelle liegt.
+ *
+ * @author Oliver Kabierschke
+ */
+class ThresholdAutoEndDetector implements AutoEndDetector {
+
+    private final double threshold;
+
+    /**
+     * @param threshold Die Leistung in Watt, unter welcher das Gerät als untätig gilt.
+     */
+    ThresholdAutoEndDetector(double threshold) {
+        this.threshold = threshold;
+    }
+
+    @Override
+    public boolean onSample(long timeNanos, double power) {
+        return power < this.threshold;
+    }
+}
@@ -0,0 +1,24 @@
+package org.kabieror.elwasys.raspiclient.io;
+
+/**
+ * Dieser Listener wird benachrichtigt, sobald ein {@link TelnetClient} eine vollständige Zeile empfangen hat.
+ *
+ * @author Oliver Kabierschke
+ */
+public interface ITelnetLineListener {
+    /**
+     * Wird auf dem I/O-Thread aufgerufen, sobald eine vollständige Zeile empfangen wurde.
+     * <p>
+     * Die übergebene Zeichenfolge ist ein wiederverwendeter Puffer und nur während dieses Aufrufs gültig. Wird die
+     * Zeile länger benötigt, muss sie mit {@code toString()} kopiert werden.
+     *
+     * @param line Die empfangene Zeile ohne Zeilenumbruch.
+     */
+    void onLineReceived(CharSequence line);
+
+    /**
+     * Wird aufgerufen, sobald die Verbindung geschlossen wurde, egal ob absichtlich oder aufgrund eines Fehlers.
+     */
+    default void onConnectionClosed() {
+    }
+}
@@ -3,23 +3,46 @@ package org.kabieror.elwasys.raspiclient.io;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.io.BufferedReader;
-import java.io.DataOutputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
 import java.net.InetSocketAddress;
-import java.net.Socket;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.TimeUnit;
 
 /**
  * Diese Klasse verbindet sich mit einem Telnet-Server und kann mit ihm
  * kommunizieren.
+ * <p>
+ * Alle Verbindungen werden von einem gemeinsamen I/O-Thread ({@link TelnetSelector}) bedient. Empfangene Daten werden
+ * in wiederverwendeten Puffern in Zeilen zerlegt.
+ * <p>
+ * Befehle werden in einen wiederverwendeten Puffer kodiert und nicht sofort, sondern vom I/O-Thread geschrieben. Alle
+ * Befehle, die bis dahin hinzukommen, werden mit demselben Systemaufruf übertragen.
  *
  * @author Oliver Kabierschke
  */
 public class TelnetClient {
 
+    /**
+     * The maximum amount of lines kept in the response buffer. If more lines are
+     * received without being fetched, the oldest ones are discarded.
+     */
+    private static final int RESPONSE_BUFFER_CAPACITY = 1024;
+
+    /**
+     * The maximum length of a single line in bytes. Longer lines are truncated.
+     */
+    private static final int MAX_LINE_LENGTH = 1024 * 1024;
+
     private final Logger logger = LoggerFactory.getLogger(this.getClass());
 
     private final String serverName;
@@ -27,17 +50,51 @@ public class TelnetClient {
     /**
      * When the server sends an answer, it is stored in this variable.
      */
-    private final LinkedBlockingQueue<String> response = new LinkedBlockingQueue<>();
-    private final Runnable dataReceiverRunnable;
-    private Socket connection;
-    private DataOutputStream out;
-    private BufferedReader in;
+    private final BlockingQueue<String> response = new ArrayBlockingQueue<>(RESPONSE_BUFFER_CAPACITY);
+    /**
+     * Buffer for data read from the socket. Only used by the I/O thread.
+     */
+    private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(8192);
+    /**
+     * Buffer for data to be written to the socket. Guarded by writeLock.
+     */
+    private final ByteBuffer writeBuffer = ByteBuffer.allocateDirect(8192);
+    private final Object writeLock = new Object();
+    private final CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder()
+            .onMalformedInput(CodingErrorAction.REPLACE).onUnmappableCharacter(CodingErrorAction.REPLACE);
+    /**
+     * True, while the I/O thread has been asked to flush the write buffer but has not done so yet. Commands sent in
+     * the meantime are written together with the pending ones. Guarded by writeLock.
+     */
+    private boolean flushScheduled;
+    /**
+     * Statistics about the write path. Guarded by writeLock.
+     */
+    private long commandCount;
+    private long bytesWritten;
+    private long writeCount;
+    private final CharsetDecoder decoder = StandardCharsets.UTF_8.newDecoder()
+            .onMalformedInput(CodingErrorAction.REPLACE).onUnmappableCharacter(CodingErrorAction.REPLACE);
+    /**
+     * The bytes of the line currently being received. Only used by the I/O thread.
+     */
+    private ByteBuffer lineBytes = ByteBuffer.allocate(256);
+    /**
+     * The decoded characters of the last complete line. Only used by the I/O thread.
+     */
+    private CharBuffer lineChars = CharBuffer.allocate(256);
+    private volatile SocketChannel channel;
+    private volatile SelectionKey selectionKey;
+    private volatile boolean closed = true;
+    /**
+     * The time of the last received data according to {@link System#nanoTime()}.
+     */
+    private volatile long lastReadNanos;
     /**
-     * This thread is being interrupted when a new answer has been received from
-     * the server.
+     * If set, received lines are passed to this listener instead of being stored
+     * in the response buffer.
      */
-    private Thread newAnswerBlockerThread;
-    private Thread dataReceiverThread;
+    private volatile ITelnetLineListener lineListener;
 
     /**
      * Constructor
@@ -46,24 +103,8 @@ public class TelnetClient {
      * @param port       The port to use for the connection.
      */
     public TelnetClient(String serverName, int port) {
-        this.connection = new Socket();
         this.serverName = serverName;
         this.port = port;
-
-        this.dataReceiverRunnable = () -> {
-            while (!Thread.interrupted()) {
-                try {
-                    final String answer = this.in.readLine();
-                    this.response.add(answer);
-                    this.logger.trace("From " + this.serverName + ": '" + answer + "'");
-                } catch (final IOException e) {
-                    if (!Thread.interrupted()) {
-                        this.logger.error("IOException while waiting for data.", e);
-                    }
-                    break;
-                }
-            }
-        };
     }
 
     /**
@@ -72,8 +113,18 @@ public class TelnetClient {
      * @return True, if the connection to the server is established.
      */
     public boolean isAlive() {
-        return (this.connection != null && this.connection.isConnected()) ||
-                (this.dataReceiverThread != null && this.dataReceiverThread.isAlive());
+        final SocketChannel c = this.channel;
+        return !this.closed && c != null && c.isOpen() && c.isConnected();
+    }
+
+    /**
+     * Gibt die Zeit zurück, die seit dem Empfang der letzten Daten bzw. dem
+     * Öffnen der Verbindung vergangen ist.
+     *
+     * @return Die Zeit in Nanosekunden.
+     */
+    public long getReadIdleNanos() {
+        return System.nanoTime() - this.lastReadNanos;
     }
 
     /**
@@ -83,21 +134,26 @@ public class TelnetClient {
      * @throws IOException If the connection cannot be opened.
      */
     public void openConnection(int timeout) throws IOException {
-        if (this.connection != null && !this.connection.isClosed()) {
-            try {
-                this.connection.close();
-            } catch (final IOException e) {
-                // Ignore exception while closing.
-            }
+        this.closeChannel();
+        final SocketChannel c = SocketChannel.open();
+        try {
+            c.socket().connect(new InetSocketAddress(this.serverName, this.port), timeout);
+            c.socket().setKeepAlive(true);
+            // Befehle werden bereits gesammelt geschrieben. Nagle würde die Antwort auf kurze Befehle nur verzögern.
+            c.socket().setTcpNoDelay(true);
+            c.configureBlocking(false);
+        } catch (final IOException e) {
+            c.close();
+            throw e;
         }
-        if (this.dataReceiverThread != null && this.dataReceiverThread.isAlive()) {
-            this.dataReceiverThread.interrupt();
+        synchronized (this.writeLock) {
+            this.writeBuffer.clear();
+            this.flushScheduled = false;
         }
-        this.connection = new Socket();
-        this.connection.connect(new InetSocketAddress(this.serverName, this.port), timeout);
-        this.out = new DataOutputStream(this.connection.getOutputStream());
-        this.in = new BufferedReader(new InputStreamReader(this.connection.getInputStream()));
-        this.startDataReceiverThread();
+        this.channel = c;
+        this.closed = false;
+        this.lastReadNanos = System.nanoTime();
+        TelnetSelector.getInstance().register(c, this);
     }
 
     /**
@@ -106,27 +162,82 @@ public class TelnetClient {
      */
     public void shutdown() {
         this.logger.debug("Closing connection to " + this.serverName);
-        if (this.dataReceiverThread != null && this.dataReceiverThread.isAlive()) {
-            this.dataReceiverThread.interrupt();
-        }
-        if (this.connection != null) {
-            try {
-                this.connection.close();
-            } catch (final IOException e) {
-                this.logger.warn("Cannot close the connection.", e);
-            }
-        }
+        this.closeChannel();
+    }
+
+    /**
+     * Setzt den Listener, welcher über empfangene Zeilen benachrichtigt wird. Ist ein Listener gesetzt, werden
+     * empfangene Zeilen nicht mehr im Antwortpuffer abgelegt.
+     *
+     * @param lineListener Der Listener oder null, um empfangene Zeilen wieder im Antwortpuffer abzulegen.
+     */
+    public void setLineListener(ITelnetLineListener lineListener) {
+        this.lineListener = lineListener;
     }
 
     /**
      * Sends a command to the server.
+     * <p>
+     * The command is written by the I/O thread. Commands sent before it gets to it are written together.
      *
      * @param command The command to send.
      * @throws IOException If the command cannot be sent.
      */
-    public void sendCommand(String command) throws IOException {
-        this.logger.trace("To " + this.serverName + ": '" + command + "'");
-        this.out.writeBytes(command + "\n\r");
+    public void sendCommand(CharSequence command) throws IOException {
+        if (this.logger.isTraceEnabled()) {
+            this.logger.trace("To " + this.serverName + ": '" + command + "'");
+        }
+        final SocketChannel c = this.channel;
+        if (c == null || !this.isAlive()) {
+            throw new IOException("The connection is broken.");
+        }
+        synchronized (this.writeLock) {
+            if (!this.encode(command)) {
+                // Der Puffer ist voll. Ausstehende Daten sofort schreiben, um Platz zu schaffen.
+                this.flush(c);
+                if (!this.encode(command)) {
+                    throw new IOException("The send buffer is full.");
+                }
+            }
+            this.commandCount++;
+            if (!this.flushScheduled && this.writeBuffer.position() > 0) {
+                this.flushScheduled = true;
+                TelnetSelector.getInstance().flush(this);
+            }
+        }
+    }
+
+    /**
+     * Gibt die Anzahl der bisher gesendeten Befehle zurück.
+     *
+     * @return Die Anzahl der Befehle.
+     */
+    public long getCommandCount() {
+        synchronized (this.writeLock) {
+            return this.commandCount;
+        }
+    }
+
+    /**
+     * Gibt die Anzahl der bisher geschriebenen Bytes zurück.
+     *
+     * @return Die Anzahl der Bytes.
+     */
+    public long getBytesWritten() {
+        synchronized (this.writeLock) {
+            return this.bytesWritten;
+        }
+    }
+
+    /**
+     * Gibt die Anzahl der bisherigen Schreibaufrufe auf dem Socket zurück.
+     *
+     * @return Die Anzahl der Schreibaufrufe.
+     */
+    public long getWriteCount() {
+        synchronized (this.writeLock) {
+            return this.writeCount;
+        }
     }
 
     /**
@@ -147,24 +258,214 @@ public class TelnetClient {
 
     /**
      * Returns the data that has been received since the last call of this
-     * method or {@link waitForResponse()}.
+     * method or {@link #waitForResponse(int, TimeUnit)}.
      *
-     * @return The lines that have been received since the last call of this method or {@link waitForResponse()}.
+     * @return The lines that have been received since the last call of this method or {@link #waitForResponse(int,
+     * TimeUnit)}.
      */
     public String emptyResponseBuffer() {
-        String res = "";
-        while (!this.response.isEmpty()) {
-            res += this.response.poll();
+        final StringBuilder res = new StringBuilder();
+        String line;
+        while ((line = this.response.poll()) != null) {
+            res.append(line);
         }
-        return res;
+        return res.toString();
     }
 
     /**
-     * Starts listening for incoming data from the server.
+     * Wird vom I/O-Thread aufgerufen, sobald der Kanal registriert ist.
      */
-    private void startDataReceiverThread() {
-        this.dataReceiverThread = new Thread(this.dataReceiverRunnable);
-        this.dataReceiverThread.setName("TelnetClient.DataReceiverThread");
-        this.dataReceiverThread.start();
+    void setSelectionKey(SelectionKey key) {
+        if (key.channel() != this.channel) {
+            // Die Verbindung wurde zwischenzeitlich ersetzt.
+            key.cancel();
+            return;
+        }
+        this.lineBytes.clear();
+        this.selectionKey = key;
+        synchronized (this.writeLock) {
+            if (this.writeBuffer.position() > 0) {
+                key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+            }
+        }
+    }
+
+    /**
+     * Wird vom I/O-Thread aufgerufen, um die seit der Anforderung gesammelten Befehle zu schreiben.
+     */
+    void onFlushRequested() {
+        final SocketChannel c = this.channel;
+        try {
+            synchronized (this.writeLock) {
+                this.flushScheduled = false;
+                if (c != null && c.isOpen() && this.writeBuffer.position() > 0) {
+                    this.flush(c);
+                }
+            }
+        } catch (final IOException e) {
+            this.onConnectionLost(c, e);
+        }
+    }
+
+    /**
+     * Wird vom I/O-Thread aufgerufen, sobald Daten gelesen werden können.
+     */
+    void onReadable(SelectionKey key) throws IOException {
+        final SocketChannel c = this.currentChannel(key);
+        if (c == null) {
+            return;
+        }
+        int read;
+        while ((read = c.read(this.readBuffer)) > 0) {
+            this.lastReadNanos = System.nanoTime();
+            this.readBuffer.flip();
+            while (this.readBuffer.hasRemaining()) {
+                final byte b = this.readBuffer.get();
+                if (b == '\n') {
+                    this.emitLine();
+                } else if (b != '\r') {
+                    this.appendToLine(b);
+                }
+            }
+            this.readBuffer.clear();
+        }
+        if (read < 0) {
+            throw new IOException("The connection has been closed by the server.");
+        }
+    }
+
+    /**
+     * Wird vom I/O-Thread aufgerufen, sobald Daten geschrieben werden können.
+     */
+    void onWritable(SelectionKey key) throws IOException {
+        final SocketChannel c = this.currentChannel(key);
+        if (c == null) {
+            return;
+        }
+        synchronized (this.writeLock) {
+            this.flush(c);
+        }
+    }
+
+    /**
+     * Wird aufgerufen, sobald die Verbindung unerwartet getrennt wurde.
+     */
+    void onConnectionLost(SocketChannel c, Exception e) {
+        if (this.closed || c != this.channel) {
+            return;
+        }
+        this.logger.error("Connection to " + this.serverName + " lost.", e);
+        this.closeChannel();
+    }
+
+    /**
+     * Gibt den Kanal des Schlüssels zurück, falls dieser zur aktuellen Verbindung gehört. Schlüssel ersetzter
+     * Verbindungen werden verworfen.
+     */
+    private SocketChannel currentChannel(SelectionKey key) {
+        if (key.channel() != this.channel) {
+            key.cancel();
+            return null;
+        }
+        return this.channel;
+    }
+
+    /**
+     * Kodiert einen Befehl samt Zeilenende in den Schreibpuffer. Muss mit writeLock aufgerufen werden.
+     *
+     * @return False, falls der Befehl nicht vollständig in den Puffer passt. Der Puffer bleibt dann unverändert.
+     */
+    private boolean encode(CharSequence command) {
+        final int start = this.writeBuffer.position();
+        this.encoder.reset();
+        final CharBuffer chars = CharBuffer.wrap(command);
+        CoderResult result = this.encoder.encode(chars, this.writeBuffer, true);
+        if (!result.isOverflow()) {
+            result = this.encoder.flush(this.writeBuffer);
+        }
+        if (result.isOverflow() || this.writeBuffer.remaining() < 2) {
+            this.writeBuffer.position(start);
+            return false;
+        }
+        this.writeBuffer.put((byte) '\n').put((byte) '\r');
+        return true;
+    }
+
+    /**
+     * Schreibt so viele ausstehende Daten wie möglich. Muss mit writeLock aufgerufen werden.
+     */
+    private void flush(SocketChannel c) throws IOException {
+        this.writeBuffer.flip();
+        try {
+            this.bytesWritten += c.write(this.writeBuffer);
+            this.writeCount++;
+        } finally {
+            this.writeBuffer.compact();
+        }
+        final SelectionKey key = this.selectionKey;
+        if (key != null && key.channel() == c) {
+            TelnetSelector.getInstance().setWriteInterest(key, this.writeBuffer.position() > 0);
+        }
+    }
+
+    private void appendToLine(byte b) {
+        if (!this.lineBytes.hasRemaining()) {
+            if (this.lineBytes.capacity() >= MAX_LINE_LENGTH) {
+                return;
+            }
+            final ByteBuffer larger = ByteBuffer.allocate(Math.min(this.lineBytes.capacity() * 2, MAX_LINE_LENGTH));
+            this.lineBytes.flip();
+            larger.put(this.lineBytes);
+            this.lineBytes = larger;
+            this.lineChars = CharBuffer.allocate(larger.capacity());
+        }
+        this.lineBytes.put(b);
+    }
+
+    private void emitLine() {
+        this.lineBytes.flip();
+        this.lineChars.clear();
+        this.decoder.reset();
+        this.decoder.decode(this.lineBytes, this.lineChars, true);
+        this.decoder.flush(this.lineChars);
+        this.lineChars.flip();
+        this.lineBytes.clear();
+
+        final ITelnetLineListener listener = this.lineListener;
+        if (listener != null) {
+            if (this.logger.isTraceEnabled()) {
+                this.logger.trace("From " + this.serverName + ": '" + this.lineChars + "'");
+            }
+            listener.onLineReceived(this.lineChars);
+        } else {
+            final String answer = this.lineChars.toString();
+            this.logger.trace("From " + this.serverName + ": '" + answer + "'");
+            if (!this.response.offer(answer)) {
+                this.logger.warn("Response buffer of " + this.serverName + " is full. Discarding oldest line.");
+                this.response.poll();
+                this.response.offer(answer);
+            }
+        }
+    }
+
+    private void closeChannel() {
+        final boolean wasOpen = !this.closed;
+        this.closed = true;
+        final SocketChannel c = this.channel;
+        if (c != null) {
+            try {
+                c.close();
+            } catch (final IOException e) {
+                this.logger.warn("Cannot close the connection.", e);
+            }
+        }
+        final SelectionKey key = this.selectionKey;
+        if (key != null) {
+            key.cancel();
+        }
+        final ITelnetLineListener listener = this.lineListener;
+        if (wasOpen && listener != null) {
+            listener.onConnectionClosed();
+        }
     }
 }
@@ -0,0 +1,235 @@
+package org.kabieror.elwasys.raspiclient.io;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Gemeinsamer I/O-Thread aller {@link TelnetClient}-Verbindungen. Ein einziger Selector bedient alle offenen
+ * Verbindungen, sodass nicht mehr pro Verbindung ein blockierender Empfangs-Thread benötigt wird.
+ * <p>
+ * Fällt der Selector aus, werden alle seine Verbindungen getrennt und der nächste Aufruf von {@link #getInstance()}
+ * startet einen neuen I/O-Thread, über den die Verbindungen wieder aufgebaut werden.
+ *
+ * @author Oliver Kabierschke
+ */
+final class TelnetSelector {
+
+    private static TelnetSelector instance;
+
+    private final Logger logger = LoggerFactory.getLogger(this.getClass());
+
+    private final Selector selector;
+
+    /**
+     * Aufgaben, die auf dem I/O-Thread ausgeführt werden müssen, z.B. das Registrieren neuer Kanäle.
+     */
+    private final Queue<Runnable> pendingTasks = new ConcurrentLinkedQueue<>();
+
+    private final Thread selectorThread;
+
+    /**
+     * Der Fehler, an dem der Selector ausgefallen ist, oder null, solange er läuft.
+     */
+    private volatile IOException failure;
+
+    private TelnetSelector() throws IOException {
+        this.selector = Selector.open();
+        this.selectorThread = new Thread(this::selectLoop);
+        this.selectorThread.setName("TelnetClient.SelectorThread");
+        this.selectorThread.setDaemon(true);
+        this.selectorThread.start();
+    }
+
+    /**
+     * Gibt den gemeinsamen I/O-Thread zurück und startet ihn beim ersten Aufruf.
+     *
+     * @return Den gemeinsamen I/O-Thread.
+     * @throws IOException Falls der Selector nicht geöffnet werden kann.
+     */
+    static synchronized TelnetSelector getInstance() throws IOException {
+        if (instance == null) {
+            instance = new TelnetSelector();
+        }
+        return instance;
+    }
+
+    /**
+     * Registriert einen verbundenen Kanal für das Lesen eingehender Daten.
+     *
+     * @param channel Der verbundene, nicht-blockierende Kanal.
+     * @param client  Der Client, welcher über eingehende Daten benachrichtigt wird.
+     */
+    void register(SocketChannel channel, TelnetClient client) {
+        this.runOnSelectorThread(new Registration(channel, client));
+    }
+
+    /**
+     * Meldet Interesse am Schreiben auf einem Kanal an oder ab.
+     *
+     * @param key     Der Schlüssel des Kanals.
+     * @param enabled True, falls der I/O-Thread ausstehende Daten schreiben soll.
+     */
+    void setWriteInterest(SelectionKey key, boolean enabled) {
+        this.runOnSelectorThread(() -> {
+            if (key.isValid()) {
+                if (enabled) {
+                    key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                } else {
+                    key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+                }
+            }
+        });
+    }
+
+    /**
+     * Lässt den I/O-Thread die gesammelten Befehle eines Clients schreiben. Bis der I/O-Thread dazu kommt, werden
+     * weitere Befehle im selben Puffer gesammelt.
+     *
+     * @param client Der Client, dessen Schreibpuffer geschrieben werden soll.
+     */
+    void flush(TelnetClient client) {
+        this.runOnSelectorThread(client::onFlushRequested);
+    }
+
+    /**
+     * Führt eine Aufgabe auf dem I/O-Thread aus.
+     */
+    private void runOnSelectorThread(Runnable task) {
+        if (Thread.currentThread() == this.selectorThread) {
+            task.run();
+        } else {
+            this.pendingTasks.add(task);
+            this.selector.wakeup();
+            // Ist der I/O-Thread bereits beendet, führt niemand mehr die Aufgabe aus
+            final IOException e = this.failure;
+            if (e != null) {
+                this.failPendingTasks(e);
+            }
+        }
+    }
+
+    private void selectLoop() {
+        while (!Thread.interrupted()) {
+            try {
+                this.selector.select();
+            } catch (final IOException e) {
+                this.logger.error("Selector failed. Closing all connections.", e);
+                this.fail(e);
+                return;
+            }
+
+            Runnable task;
+            while ((task = this.pendingTasks.poll()) != null) {
+                // Ein Fehler einer Aufgabe darf den gemeinsamen Thread nicht beenden
+                try {
+                    task.run();
+                } catch (final RuntimeException e) {
+                    this.logger.error("A task on the selector thread failed.", e);
+                }
+            }
+
+            final Iterator<SelectionKey> keys = this.selector.selectedKeys().iterator();
+            while (keys.hasNext()) {
+                final SelectionKey key = keys.next();
+                keys.remove();
+                final TelnetClient client = (TelnetClient) key.attachment();
+                try {
+                    if (key.isValid() && key.isReadable()) {
+                        client.onReadable(key);
+                    }
+                    if (key.isValid() && key.isWritable()) {
+                        client.onWritable(key);
+                    }
+                } catch (final IOException | CancelledKeyException e) {
+                    key.cancel();
+                    client.onConnectionLost((SocketChannel) key.channel(), e);
+                } catch (final RuntimeException e) {
+                    // Z.B. ein Fehler eines Listeners. Nur diese Verbindung wird getrennt.
+                    this.logger.error("Handling data of a connection failed. Closing the connection.", e);
+                    key.cancel();
+                    try {
+                        client.onConnectionLost((SocketChannel) key.channel(), e);
+                    } catch (final RuntimeException e1) {
+                        this.logger.error("Could not close the connection.", e1);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Gibt den ausgefallenen Selector auf. Seine Verbindungen und die noch nicht registrierten Kanäle werden getrennt,
+     * damit sie über einen neuen Selector wieder aufgebaut werden.
+     */
+    private void fail(IOException e) {
+        synchronized (TelnetSelector.class) {
+            if (instance == this) {
+                instance = null;
+            }
+        }
+        this.failure = e;
+        for (final SelectionKey key : this.selector.keys()) {
+            this.closeConnection((TelnetClient) key.attachment(), (SocketChannel) key.channel(), e);
+        }
+        this.failPendingTasks(e);
+        try {
+            this.selector.close();
+        } catch (final IOException e1) {
+            this.logger.warn("Could not close the selector.", e1);
+        }
+    }
+
+    /**
+     * Trennt die Kanäle der noch nicht ausgeführten Registrierungen und verwirft die übrigen Aufgaben.
+     */
+    private void failPendingTasks(IOException e) {
+        Runnable task;
+        while ((task = this.pendingTasks.poll()) != null) {
+            if (task instanceof Registration) {
+                final Registration r = (Registration) task;
+                this.closeConnection(r.client, r.channel, e);
+            }
+        }
+    }
+
+    private void closeConnection(TelnetClient client, SocketChannel channel, IOException e) {
+        try {
+            client.onConnectionLost(channel, e);
+        } catch (final RuntimeException e1) {
+            this.logger.error("Could not close the connection.", e1);
+        }
+    }
+
+    /**
+     * Registriert einen verbundenen Kanal auf dem I/O-Thread.
+     */
+    private final class Registration implements Runnable {
+        private final SocketChannel channel;
+        private final TelnetClient client;
+
+        Registration(SocketChannel channel, TelnetClient client) {
+            this.channel = channel;
+            this.client = client;
+        }
+
+        @Override
+        public void run() {
+            try {
+                this.client.setSelectionKey(
+                        this.channel.register(TelnetSelector.this.selector, SelectionKey.OP_READ, this.client));
+            } catch (final ClosedChannelException e) {
+                this.client.onConnectionLost(this.channel, e);
+            }
+        }
+    }
+}
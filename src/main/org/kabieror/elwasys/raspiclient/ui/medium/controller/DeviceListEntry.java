@@ -15,6 +15,7 @@ import javafx.scene.layout.VBox;
 import org.kabieror.elwasys.common.*;
 import org.kabieror.elwasys.raspiclient.application.ActionContainer;
 import org.kabieror.elwasys.raspiclient.application.ElwaManager;
+import org.kabieror.elwasys.raspiclient.executions.DeviceStateStore;
 import org.kabieror.elwasys.raspiclient.executions.IExecutionErrorListener;
 import org.kabieror.elwasys.raspiclient.executions.IExecutionFinishedListener;
 import org.kabieror.elwasys.raspiclient.executions.IExecutionStartedListener;
@@ -31,6 +32,7 @@ import org.slf4j.LoggerFactory;
 import java.io.IOException;
 import java.net.URL;
 import java.sql.SQLException;
+import java.time.Duration;
 import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
 import java.time.format.FormatStyle;
@@ -48,6 +50,11 @@ public class DeviceListEntry implements Initializable, IViewController, IExecuti
 
     private static final DateTimeFormatter endDateFormatter =
             DateTimeFormatter.ofLocalizedDateTime(FormatStyle.MEDIUM, FormatStyle.SHORT);
+
+    /**
+     * Der Zeitraum, über den die angezeigte Leistung gemittelt wird
+     */
+    private static final Duration POWER_AVERAGE_WINDOW = Duration.ofMinutes(1);
     private final Integer LOCK = 0;
     private final Logger logger = LoggerFactory.getLogger(DeviceListEntry.class);
 
@@ -264,10 +271,15 @@ public class DeviceListEntry implements Initializable, IViewController, IExecuti
                     this.state = DeviceListEntryState.OCCUPIED;
                 }
 
-                // Regelmäßige Aktualisierung der verbleibenden Zeit
+                // Regelmäßige Aktualisierung der verbleibenden Zeit und der Leistung
                 this.updateFuture = this.mainFormController.getUpdateService().scheduleAtFixedRate(() -> {
-                    Platform.runLater(() -> this.remainingTime.set(FormatUtilities
-                            .formatDuration(e.getRemainingTime(), e.getProgram().getType() != ProgramType.OPEN_DOOR)));
+                    Platform.runLater(() -> {
+                        this.remainingTime.set(FormatUtilities.formatDuration(e.getRemainingTime(),
+                                e.getProgram().getType() != ProgramType.OPEN_DOOR));
+                        if (this.state == DeviceListEntryState.OCCUPIED) {
+                            this.statusText.set(this.getOccupiedStatusText());
+                        }
+                    });
                 }, 0, 1, TimeUnit.SECONDS);
 
                 this.refresh(true);
@@ -414,7 +426,7 @@ public class DeviceListEntry implements Initializable, IViewController, IExecuti
                 UiUtilities.setStyleClass(this.deviceListEntry, "status-free", false);
                 UiUtilities.setStyleClass(this.deviceListEntry, "status-occupied", true);
                 this.lastUserName.set(this.runningExecution.getUser().getName());
-                this.statusText.set("belegt");
+                this.statusText.set(this.getOccupiedStatusText());
                 this.endDate.set(endDateFormatter.format(this.runningExecution.getEndDate()));
                 break;
             case ERROR:
@@ -437,6 +449,27 @@ public class DeviceListEntry implements Initializable, IViewController, IExecuti
         }
     }
 
+    /**
+     * Gibt den Status-Text eines belegten Geräts zurück. Ist eine aktuelle Leistungsmessung bekannt, wird die
+     * Leistung der letzten Minute angezeigt, damit kurze Spitzen die Anzeige nicht springen lassen, sowie die seit dem
+     * Start aufgenommene Energie.
+     */
+    private String getOccupiedStatusText() {
+        final DeviceStateStore.DeviceState deviceState =
+                ElwaManager.instance.getDevicePowerManager().getStateStore().get(this.device);
+        if (deviceState.hasPower() && deviceState.getPowerAge()
+                .compareTo(ElwaManager.instance.getConfigurationManager().getFhemStateMaxAge()) <= 0) {
+            final double power = deviceState.getAveragePower(POWER_AVERAGE_WINDOW);
+            final double energy = this.runningExecution != null ?
+                    ElwaManager.instance.getExecutionManager().getConsumedEnergy(this.runningExecution) : Double.NaN;
+            if (!Double.isNaN(energy)) {
+                return String.format("belegt (%.0f W, %.2f kWh)", power, energy);
+            }
+            return String.format("belegt (%.0f W)", power);
+        }
+        return "belegt";
+    }
+
     /**
      * Wechselt den Zustand der Gerätekachel zur Anzeige eines Fehlers
      *
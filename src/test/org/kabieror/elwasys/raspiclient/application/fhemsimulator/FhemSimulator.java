@@ -1,20 +1,32 @@
 package org.kabieror.elwasys.raspiclient.application.fhemsimulator;
 
+import com.sun.net.httpserver.HttpServer;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.io.OutputStream;
 import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.Executors;
 import java.util.concurrent.LinkedBlockingDeque;
 import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
 
 /**
  * Diese Klasse simuliert einen Fhem-Server.
@@ -24,6 +36,10 @@ import java.util.concurrent.ScheduledExecutorService;
 public class FhemSimulator {
 
     public static int communicationTimeout = 2000;
+    /**
+     * Der Token gegen Cross-Site-Request-Forgery, welchen die Nachbildung von FHEMWEB verlangt.
+     */
+    private static final String CSRF_TOKEN = "csrf_simulator";
     static ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(4);
     private static FhemSimulator instance;
     Logger logger = LoggerFactory.getLogger(this.getClass());
@@ -34,6 +50,11 @@ public class FhemSimulator {
 
     private Map<String, SimulatedDevice> devices = new HashMap<>();
 
+    /**
+     * Perl-Ausdrücke der Form { "text" }, wie sie als Endmarke von Befehlen verwendet werden.
+     */
+    private Pattern perlStringPattern = Pattern.compile("^\\{\\s*\"([^\"]*)\"\\s*\\}$");
+
     public FhemSimulator() {
         devices.put("wm1sw", new SwitchDevice());
         devices.put("wm2sw", new SwitchDevice());
@@ -50,6 +71,11 @@ public class FhemSimulator {
             return;
         }
         instance.startListen();
+        try {
+            instance.startWebServer(8083);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
 
 
         // Wait for commands
@@ -169,6 +195,89 @@ public class FhemSimulator {
         t.start();
     }
 
+    /**
+     * Startet eine vereinfachte Nachbildung von FHEMWEB. Befehle werden über den Parameter "cmd" angenommen, Events
+     * über den Parameter "inform" als Long-Polling-Aufruf ausgeliefert.
+     *
+     * @param port Der Port, auf welchem gehört wird.
+     */
+    private void startWebServer(int port) throws IOException {
+        final HttpServer server = HttpServer.create(new InetSocketAddress(port), 0);
+        server.createContext("/fhem", exchange -> {
+            final Map<String, String> params = new HashMap<>();
+            final String query = exchange.getRequestURI().getRawQuery();
+            if (query != null) {
+                for (String param : query.split("&")) {
+                    final String[] kv = param.split("=", 2);
+                    params.put(URLDecoder.decode(kv[0], "UTF-8"),
+                            kv.length > 1 ? URLDecoder.decode(kv[1], "UTF-8") : "");
+                }
+            }
+            exchange.getResponseHeaders().set("X-FHEM-csrfToken", CSRF_TOKEN);
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=UTF-8");
+            if (!CSRF_TOKEN.equals(params.get("fwcsrf"))) {
+                exchange.sendResponseHeaders(400, -1);
+                exchange.close();
+                return;
+            }
+            if (params.containsKey("inform")) {
+                // Event-Benachrichtigung, z.B. inform=type=raw;filter=.*
+                Pattern filter = null;
+                for (String option : params.get("inform").split(";")) {
+                    if (option.startsWith("filter=")) {
+                        try {
+                            filter = Pattern.compile(option.substring(7));
+                        } catch (PatternSyntaxException e) {
+                            exchange.sendResponseHeaders(400, -1);
+                            exchange.close();
+                            return;
+                        }
+                    }
+                }
+                exchange.sendResponseHeaders(200, 0);
+                final OutputStream body = exchange.getResponseBody();
+                try {
+                    while (!Thread.interrupted()) {
+                        final String event = eventsQueue.take();
+                        if (matchesInformFilter(filter, event)) {
+                            body.write((event + "<br>\n").getBytes(StandardCharsets.UTF_8));
+                            body.flush();
+                        }
+                    }
+                } catch (InterruptedException | IOException e) {
+                    this.logger.debug("Events longpoll ending");
+                }
+                exchange.close();
+                return;
+            }
+            final String command = params.get("cmd");
+            final byte[] response =
+                    (command != null ? this.executeCommand(command) : "").getBytes(StandardCharsets.UTF_8);
+            exchange.sendResponseHeaders(200, response.length > 0 ? response.length : -1);
+            if (response.length > 0) {
+                exchange.getResponseBody().write(response);
+            }
+            exchange.close();
+        });
+        server.setExecutor(Executors.newCachedThreadPool());
+        server.start();
+        logger.info("FHEMWEB simulation listening on port " + port);
+    }
+
+    /**
+     * Prüft, ob ein Event den Filter der Event-Benachrichtigung passiert. Wie bei FHEM wird der Filter mit dem
+     * Gerätenamen und mit "Gerätename:Event" verglichen.
+     */
+    private static boolean matchesInformFilter(Pattern filter, String event) {
+        if (filter == null) {
+            return true;
+        }
+        final String[] parts = event.trim().split(" ", 2);
+        final String name = parts[0];
+        final String text = parts.length > 1 ? parts[1] : "";
+        return filter.matcher(name).find() || filter.matcher(name + ":" + text).find();
+    }
+
     private void startHandleConnection(Socket socket) {
         Thread t = new Thread(() -> {
             logger.info("Incoming connection from " + socket.getInetAddress().getHostAddress());
@@ -176,6 +285,8 @@ public class FhemSimulator {
             final PrintWriter out;
 
             Thread eventThread = null;
+            // Filter der Event-Benachrichtigung, wie bei "inform on <regexp>"
+            final AtomicReference<Pattern> informFilter = new AtomicReference<>();
             try {
                 in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
                 out = new PrintWriter(socket.getOutputStream(), true);
@@ -202,94 +313,67 @@ public class FhemSimulator {
                 if (command.isEmpty()) {
                     continue;
                 }
-                String[] commandParts = command.trim().split(" ");
-                if (commandParts.length == 2 && commandParts[0].equals("inform")) {
-                    switch (commandParts[1]) {
-                        case "on":
-                            // Starte Event-Benachrichtigung
-                            if (eventThread == null) {
-                                eventThread = new Thread(() -> {
-                                    while (!Thread.interrupted()) {
-                                        try {
-                                            out.println(eventsQueue.take());
-                                        } catch (InterruptedException e) {
-                                            this.logger.debug("Events informer thread ending");
-                                            break;
-                                        }
-                                    }
-                                });
-                                eventThread.setName("EventThread");
-                                eventThread.start();
-                            }
-                            break;
-                        case "off":
-                            if (eventThread != null) {
-                                eventThread.interrupt();
-                            }
-                            break;
-                        default:
-                            out.println(String.format("Unknown state '%1s'", commandParts[1]));
-                            break;
-                    }
-                } else if (commandParts.length == 4 && commandParts[0].equals("get")) {
-                    // Get parameter
-                    String devName = commandParts[1];
-                    if (!this.devices.containsKey(devName)) {
-                        out.println(String.format("unknown device '%1s'", devName));
+                // Befehlsketten wie "set a on;{ "END-1" }" werden mit einem einzigen Schreibaufruf beantwortet
+                final StringWriter replyBuffer = new StringWriter();
+                final PrintWriter reply = new PrintWriter(replyBuffer);
+                for (final String part : splitCommandChain(command)) {
+                    if (part.trim().isEmpty()) {
                         continue;
                     }
-
-                    SimulatedDevice dev = this.devices.get(devName);
-                    String paramName = commandParts[3];
-                    String value = dev.getParameterValue(paramName);
-                    if (value == null) {
-                        out.println(String.format("unknown param '%1s'", paramName));
-                        continue;
-                    }
-                    out.println(value);
-                } else if (commandParts.length == 3 && commandParts[0].equals("set")) {
-                    // Set state
-                    String devName = commandParts[1];
-                    if (!this.devices.containsKey(devName)) {
-                        out.println(String.format("unknown device '%1s'", devName));
-                        continue;
-                    }
-
-                    SimulatedDevice simDev = this.devices.get(devName);
-                    if (!(simDev instanceof SwitchDevice)) {
-                        out.println("this device cannot be switched");
-                        continue;
-                    }
-                    SwitchDevice sw = (SwitchDevice) simDev;
-
-                    String newState = commandParts[2];
-                    switch (newState) {
-                        case "on":
-                            sw.switchOn();
-                            break;
-                        case "off":
-                            sw.switchOff();
-                            break;
-                        default:
-                            out.println(String.format("unknown state '%1s'", newState));
-                            continue;
+                    String[] commandParts = part.trim().split(" ");
+                    Matcher perlMatcher = perlStringPattern.matcher(part.trim());
+                    if (perlMatcher.matches()) {
+                        // Perl-Ausdruck, welcher nur eine Zeichenkette zurückgibt
+                        reply.println(perlMatcher.group(1));
+                    } else if ((commandParts.length == 2 || commandParts.length == 3) &&
+                            commandParts[0].equals("inform")) {
+                        switch (commandParts[1]) {
+                            case "on":
+                                try {
+                                    informFilter.set(commandParts.length == 3 ? Pattern.compile(commandParts[2]) : null);
+                                } catch (PatternSyntaxException e) {
+                                    reply.println("Bad regexp: " + e.getMessage());
+                                    continue;
+                                }
+                                // Starte Event-Benachrichtigung
+                                if (eventThread == null) {
+                                    eventThread = new Thread(() -> {
+                                        while (!Thread.interrupted()) {
+                                            try {
+                                                final String event = eventsQueue.take();
+                                                if (matchesInformFilter(informFilter.get(), event)) {
+                                                    out.println(event);
+                                                }
+                                            } catch (InterruptedException e) {
+                                                this.logger.debug("Events informer thread ending");
+                                                break;
+                                            }
+                                        }
+                                    });
+                                    eventThread.setName("EventThread");
+                                    eventThread.start();
+                                }
+                                break;
+                            case "off":
+                                if (eventThread != null) {
+                                    eventThread.interrupt();
+                                }
+                                break;
+                            default:
+                                reply.println(String.format("Unknown state '%1s'", commandParts[1]));
+                                break;
+                        }
+                    } else {
+                        final String response = this.executeCommand(part);
+                        if (!response.isEmpty()) {
+                            reply.println(response);
+                        }
                     }
-                } else if (commandParts.length == 1 && commandParts[0].equals("version")) {
-                    out.println("# $Id: fhem.pl 6913 2014-11-08 10:32:44Z rudolfkoenig $");
-                    out.println("# $Id: 10_CUL_HM.pm 6863 2014-11-02 09:04:57Z martinp876 $");
-                    out.println("# $Id: 01_FHEMWEB.pm 6884 2014-11-04 22:03:52Z rudolfkoenig $");
-                    out.println("# $Id: 92_FileLog.pm 6769 2014-10-15 17:03:30Z rudolfkoenig $");
-                    out.println("# $Id: 00_HMLAN.pm 6471 2014-08-27 12:32:38Z martinp876 $");
-                    out.println("# $Id: 99_SUNRISE_EL.pm 6765 2014-10-14 18:24:29Z rudolfkoenig $");
-                    out.println("# $Id: 98_SVG.pm 6756 2014-10-12 13:13:26Z rudolfkoenig $");
-                    out.println("# $Id: 99_Utils.pm 6660 2014-10-03 06:35:43Z rudolfkoenig $");
-                    out.println("# $Id: 98_autocreate.pm 6505 2014-09-06 12:24:48Z rudolfkoenig $");
-                    out.println("# $Id: 91_eventTypes.pm 6792 2014-10-19 16:03:13Z rudolfkoenig $");
-                    out.println("# $Id: 91_notify.pm 6371 2014-08-07 05:33:37Z rudolfkoenig $");
-                    out.println("# $Id: 98_telnet.pm 6611 2014-09-24 07:48:32Z rudolfkoenig $");
-                } else {
-                    out.println("unknown command");
-                    System.out.println("Received unknown command: " + command);
+                }
+                reply.flush();
+                if (replyBuffer.getBuffer().length() > 0) {
+                    out.print(replyBuffer);
+                    out.flush();
                 }
             }
             System.out.println("Closing connection from " + socket.getInetAddress().getHostAddress());
@@ -300,4 +384,131 @@ public class FhemSimulator {
         t.setName("ClientConnectionThread");
         t.start();
     }
+
+    /**
+     * Führt einen Befehl aus, welcher nicht an eine Verbindung gebunden ist.
+     *
+     * @param command Der Befehl.
+     * @return Die Ausgabe des Befehls oder einen leeren String, falls er keine Ausgabe hat.
+     */
+    String executeCommand(String command) {
+        final StringWriter buffer = new StringWriter();
+        final PrintWriter out = new PrintWriter(buffer);
+        String[] commandParts = command.trim().split(" ");
+        if (commandParts.length == 4 && commandParts[0].equals("get")) {
+            // Get parameter
+            String devName = commandParts[1];
+            if (!this.devices.containsKey(devName)) {
+                out.println(String.format("unknown device '%1s'", devName));
+                return toResponse(buffer);
+            }
+
+            SimulatedDevice dev = this.devices.get(devName);
+            String paramName = commandParts[3];
+            String value = dev.getParameterValue(paramName);
+            if (value == null) {
+                out.println(String.format("unknown param '%1s'", paramName));
+                return toResponse(buffer);
+            }
+            out.println(value);
+        } else if (commandParts.length == 3 && commandParts[0].equals("set")) {
+            // Set state
+            String devName = commandParts[1];
+            if (!this.devices.containsKey(devName)) {
+                out.println(String.format("unknown device '%1s'", devName));
+                return toResponse(buffer);
+            }
+
+            SimulatedDevice simDev = this.devices.get(devName);
+            if (!(simDev instanceof SwitchDevice)) {
+                out.println("this device cannot be switched");
+                return toResponse(buffer);
+            }
+            SwitchDevice sw = (SwitchDevice) simDev;
+
+            String newState = commandParts[2];
+            switch (newState) {
+                case "on":
+                    sw.switchOn();
+                    break;
+                case "off":
+                    sw.switchOff();
+                    break;
+                default:
+                    out.println(String.format("unknown state '%1s'", newState));
+                    return toResponse(buffer);
+            }
+        } else if (commandParts.length >= 2 && commandParts[0].equals("jsonlist2")) {
+            // Zustand mehrerer Geräte als JSON
+            StringBuilder results = new StringBuilder();
+            int count = 0;
+            for (String devName : commandParts[1].split(",")) {
+                if (!this.devices.containsKey(devName)) {
+                    continue;
+                }
+                if (count++ > 0) {
+                    results.append(",\n");
+                }
+                results.append(String.format("  { \"Name\":\"%1s\", \"Readings\": { \"state\": " +
+                        "{ \"Value\":\"%2s\" } } }", devName, this.devices.get(devName)
+                        .getParameterValue("state")));
+            }
+            out.println("{");
+            out.println("  \"Arg\":\"" + command.trim().substring(10) + "\",");
+            out.println("  \"Results\": [");
+            out.println(results);
+            out.println("  ],");
+            out.println("  \"totalResultsReturned\":" + count);
+            out.println("}");
+        } else if (commandParts.length == 1 && commandParts[0].equals("version")) {
+            out.println("# $Id: fhem.pl 6913 2014-11-08 10:32:44Z rudolfkoenig $");
+            out.println("# $Id: 10_CUL_HM.pm 6863 2014-11-02 09:04:57Z martinp876 $");
+            out.println("# $Id: 01_FHEMWEB.pm 6884 2014-11-04 22:03:52Z rudolfkoenig $");
+            out.println("# $Id: 92_FileLog.pm 6769 2014-10-15 17:03:30Z rudolfkoenig $");
+            out.println("# $Id: 00_HMLAN.pm 6471 2014-08-27 12:32:38Z martinp876 $");
+            out.println("# $Id: 99_SUNRISE_EL.pm 6765 2014-10-14 18:24:29Z rudolfkoenig $");
+            out.println("# $Id: 98_SVG.pm 6756 2014-10-12 13:13:26Z rudolfkoenig $");
+            out.println("# $Id: 99_Utils.pm 6660 2014-10-03 06:35:43Z rudolfkoenig $");
+            out.println("# $Id: 98_autocreate.pm 6505 2014-09-06 12:24:48Z rudolfkoenig $");
+            out.println("# $Id: 91_eventTypes.pm 6792 2014-10-19 16:03:13Z rudolfkoenig $");
+            out.println("# $Id: 91_notify.pm 6371 2014-08-07 05:33:37Z rudolfkoenig $");
+            out.println("# $Id: 98_telnet.pm 6611 2014-09-24 07:48:32Z rudolfkoenig $");
+        } else {
+            out.println("unknown command");
+            System.out.println("Received unknown command: " + command);
+        }
+        return toResponse(buffer);
+    }
+
+    /**
+     * Zerlegt eine Zeile an einzelnen Semikolons in ihre Befehle. Doppelte Semikolons stehen wie in FHEM für ein
+     * Semikolon innerhalb eines Befehls.
+     */
+    private static List<String> splitCommandChain(String line) {
+        final List<String> commands = new ArrayList<>();
+        final StringBuilder current = new StringBuilder();
+        for (int i = 0; i < line.length(); i++) {
+            final char c = line.charAt(i);
+            if (c == ';' && i + 1 < line.length() && line.charAt(i + 1) == ';') {
+                current.append(';');
+                i++;
+            } else if (c == ';') {
+                commands.add(current.toString());
+                current.setLength(0);
+            } else {
+                current.append(c);
+            }
+        }
+        commands.add(current.toString());
+        return commands;
+    }
+
+    private static String toResponse(StringWriter buffer) {
+        final String res = buffer.toString();
+        int end = res.length();
+        while (end > 0 && (res.charAt(end - 1) == '\n' || res.charAt(end - 1) == '\r')) {
+            end--;
+        }
+        return res.substring(0, end);
+    }
 }
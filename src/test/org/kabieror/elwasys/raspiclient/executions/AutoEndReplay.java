@@ -0,0 +1,563 @@
+package org.kabieror.elwasys.raspiclient.executions;
+
+import org.kabieror.elwasys.raspiclient.configuration.WashguardConfiguration;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Spielt die Leistungsmessungen eines FHEM-Logs durch die automatische Beendigung und bewertet verschiedene
+ * Schwellwerte und Wartezeiten.
+ * <p>
+ * Das Log wird in den Speicher abgebildet, an Zeilengrenzen in Abschnitte zerlegt und parallel eingelesen. Erwartet
+ * werden Zeilen der Form {@code 2016-05-01_12:00:00 wm1pw power: 123.4}. Als Programmlauf gilt eine Folge von
+ * Messungen ab der aktiven Leistung, welche von keiner Pause länger als die Endpause unterbrochen wird. Sein
+ * tatsächliches Ende ist die erste Messung unter der aktiven Leistung nach der letzten aktiven Messung.
+ * <p>
+ * Für jeden Leistungsmesser und jede Kombination aus Schwellwert, Parameter der Erkennung und Wartezeit wird jeder
+ * Programmlauf mit der Erkennung aus {@link ExecutionManager} nachgespielt. Gezählt werden zu frühe Beendigungen,
+ * nicht erkannte Enden und die Verzögerung zwischen dem tatsächlichen und dem erkannten Ende.
+ * <p>
+ * Der Parameter ist der Faktor der oberen Schwelle bei {@code hysteresis}, die Zeitkonstante in Sekunden bei
+ * {@code average} und die Länge des Zeitfensters in Sekunden bei {@code energy}. Ohne {@code --params} wird der Wert
+ * aus der Konfiguration verwendet.
+ * <p>
+ * Aufruf: {@code AutoEndReplay <Log> [--thresholds 1,2,5] [--waits 30,60,120] [--detector threshold]
+ * [--params 60,120] [--active 10] [--end-gap 900] [--out Bericht.csv]}
+ *
+ * @author Oliver Kabierschke
+ */
+public class AutoEndReplay {
+
+    /**
+     * Die Größe der Abschnitte, in welche das Log zerlegt wird.
+     */
+    private static final long CHUNK_SIZE = 64L * 1024 * 1024;
+
+    /**
+     * Längere Zeilen werden übersprungen.
+     */
+    private static final int MAX_LINE_LENGTH = 4096;
+
+    private static final byte[] POWER_READING = "power:".getBytes();
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1) {
+            System.out.println("Call this program with the path to a fhem log file as parameter\n" +
+                    "in which the power statistics can be found.");
+            return;
+        }
+        final Path log = Paths.get(args[0]);
+        double[] thresholds = {1, 2, 3, 5, 8, 12};
+        double[] waits = {30, 60, 120, 180, 300, 600};
+        String detector = WashguardConfiguration.AUTO_END_THRESHOLD;
+        double[] params = null;
+        double active = 10;
+        long endGap = 900;
+        Path out = null;
+        for (int i = 1; i + 1 < args.length; i += 2) {
+            switch (args[i]) {
+                case "--thresholds":
+                    thresholds = parseList(args[i + 1]);
+                    break;
+                case "--waits":
+                    waits = parseList(args[i + 1]);
+                    break;
+                case "--detector":
+                    detector = args[i + 1];
+                    break;
+                case "--params":
+                    params = parseList(args[i + 1]);
+                    break;
+                case "--active":
+                    active = Double.parseDouble(args[i + 1]);
+                    break;
+                case "--end-gap":
+                    endGap = Long.parseLong(args[i + 1]);
+                    break;
+                case "--out":
+                    out = Paths.get(args[i + 1]);
+                    break;
+                default:
+                    System.out.println("Unknown option " + args[i]);
+                    return;
+            }
+        }
+
+        if (params == null) {
+            params = new double[]{configuredParameter(detector)};
+        }
+
+        final long start = System.nanoTime();
+        final Map<String, Samples> samples = read(log);
+        System.out.println(String.format("Read %d power meters from %s in %d ms", samples.size(), log,
+                (System.nanoTime() - start) / 1000000));
+
+        final List<Result> results = new ArrayList<>();
+        for (final Map.Entry<String, Samples> e : new TreeMap<>(samples).entrySet()) {
+            final List<Run> runs = findRuns(e.getValue(), active, endGap);
+            final DetectorFactory factory = detectorFactory(detector);
+            final List<Result> deviceResults = new ArrayList<>();
+            for (final double threshold : thresholds) {
+                for (final double param : params) {
+                    for (final double wait : waits) {
+                        deviceResults.add(new Result(e.getKey(), threshold, param, (long) wait, runs.size()));
+                    }
+                }
+            }
+            // Die Kombinationen werden parallel im gemeinsamen Fork/Join-Pool nachgespielt
+            deviceResults.parallelStream().forEach(r -> r.replay(e.getValue(), runs, factory));
+            print(deviceResults);
+            results.addAll(deviceResults);
+        }
+        if (out != null) {
+            writeCsv(out, results);
+            System.out.println("Report written to " + out);
+        }
+    }
+
+    /**
+     * Liest die Leistungsmessungen aller Leistungsmesser aus dem Log.
+     *
+     * @return Die Messungen nach dem Namen des Leistungsmessers in zeitlicher Reihenfolge.
+     */
+    static Map<String, Samples> read(Path log) throws IOException {
+        try (FileChannel channel = FileChannel.open(log, StandardOpenOption.READ)) {
+            final List<long[]> chunks = splitAtLineBoundaries(channel);
+            if (chunks.isEmpty()) {
+                return Collections.emptyMap();
+            }
+            return ForkJoinPool.commonPool().invoke(new ChunkTask(channel, chunks, 0, chunks.size()));
+        }
+    }
+
+    /**
+     * Zerlegt die Datei in Abschnitte, welche jeweils mit einer vollständigen Zeile enden.
+     */
+    private static List<long[]> splitAtLineBoundaries(FileChannel channel) throws IOException {
+        final long size = channel.size();
+        final List<long[]> chunks = new ArrayList<>();
+        final ByteBuffer probe = ByteBuffer.allocate(MAX_LINE_LENGTH);
+        long start = 0;
+        while (start < size) {
+            long end = Math.min(size, start + CHUNK_SIZE);
+            while (end < size) {
+                probe.clear();
+                final int read = channel.read(probe, end);
+                int newline = -1;
+                for (int i = 0; i < read; i++) {
+                    if (probe.get(i) == '\n') {
+                        newline = i;
+                        break;
+                    }
+                }
+                if (newline >= 0) {
+                    end += newline + 1;
+                    break;
+                }
+                end += Math.max(read, 1);
+            }
+            chunks.add(new long[]{start, Math.min(end, size)});
+            start = end;
+        }
+        return chunks;
+    }
+
+    /**
+     * Liest einen Bereich von Abschnitten ein, indem er ihn teilt, bis nur noch ein Abschnitt übrig ist. Die
+     * Ergebnisse werden in der Reihenfolge der Abschnitte zusammengefügt.
+     */
+    private static class ChunkTask extends RecursiveTask<Map<String, Samples>> {
+        private final FileChannel channel;
+        private final List<long[]> chunks;
+        private final int from;
+        private final int to;
+
+        ChunkTask(FileChannel channel, List<long[]> chunks, int from, int to) {
+            this.channel = channel;
+            this.chunks = chunks;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected Map<String, Samples> compute() {
+            if (this.to - this.from == 1) {
+                try {
+                    final long[] chunk = this.chunks.get(this.from);
+                    return parse(this.channel.map(FileChannel.MapMode.READ_ONLY, chunk[0], chunk[1] - chunk[0]));
+                } catch (final IOException e) {
+                    throw new IllegalStateException("Could not map the log file.", e);
+                }
+            }
+            final int mid = (this.from + this.to) >>> 1;
+            final ChunkTask left = new ChunkTask(this.channel, this.chunks, this.from, mid);
+            final ChunkTask right = new ChunkTask(this.channel, this.chunks, mid, this.to);
+            right.fork();
+            final Map<String, Samples> res = left.compute();
+            for (final Map.Entry<String, Samples> e : right.join().entrySet()) {
+                res.computeIfAbsent(e.getKey(), k -> new Samples()).addAll(e.getValue());
+            }
+            return res;
+        }
+    }
+
+    /**
+     * Liest die Leistungsmessungen eines Abschnitts.
+     */
+    private static Map<String, Samples> parse(MappedByteBuffer buffer) {
+        final Map<String, Samples> res = new LinkedHashMap<>();
+        final byte[] line = new byte[MAX_LINE_LENGTH];
+        int length = 0;
+        while (buffer.hasRemaining()) {
+            final byte b = buffer.get();
+            if (b == '\n') {
+                parseLine(line, length, res);
+                length = 0;
+            } else if (length < line.length) {
+                line[length++] = b;
+            } else {
+                // Zu lange Zeile, wird beim nächsten Zeilenende verworfen
+                length = line.length + 1;
+            }
+        }
+        parseLine(line, length, res);
+        return res;
+    }
+
+    /**
+     * Liest eine Zeile der Form {@code 2016-05-01_12:00:00 wm1pw power: 123.4}. Andere Zeilen werden übersprungen.
+     */
+    private static void parseLine(byte[] line, int length, Map<String, Samples> res) {
+        if (length > line.length) {
+            return;
+        }
+        while (length > 0 && line[length - 1] == '\r') {
+            length--;
+        }
+        if (length < 21 || line[4] != '-' || line[7] != '-' || line[10] != '_' || line[13] != ':' ||
+                line[16] != ':' || line[19] != ' ') {
+            return;
+        }
+        final int nameStart = 20;
+        int nameEnd = nameStart;
+        while (nameEnd < length && line[nameEnd] != ' ') {
+            nameEnd++;
+        }
+        final int reading = nameEnd + 1;
+        if (reading + POWER_READING.length + 1 >= length) {
+            return;
+        }
+        for (int i = 0; i < POWER_READING.length; i++) {
+            if (line[reading + i] != POWER_READING[i]) {
+                return;
+            }
+        }
+        final double power = parseDecimal(line, reading + POWER_READING.length + 1, length);
+        if (Double.isNaN(power)) {
+            return;
+        }
+        final int year = digits(line, 0, 4);
+        final int month = digits(line, 5, 7);
+        final int day = digits(line, 8, 10);
+        if (year < 0 || month < 1 || month > 12 || day < 1 || day > 31) {
+            return;
+        }
+        final long seconds = LocalDate.of(year, month, day).toEpochDay() * 86400 + digits(line, 11, 13) * 3600 +
+                digits(line, 14, 16) * 60 + digits(line, 17, 19);
+        final String name = new String(line, nameStart, nameEnd - nameStart);
+        res.computeIfAbsent(name, k -> new Samples()).add(seconds, (float) power);
+    }
+
+    private static int digits(byte[] line, int from, int to) {
+        int res = 0;
+        for (int i = from; i < to; i++) {
+            if (line[i] < '0' || line[i] > '9') {
+                return -1;
+            }
+            res = res * 10 + line[i] - '0';
+        }
+        return res;
+    }
+
+    private static double parseDecimal(byte[] line, int from, int to) {
+        double res = 0;
+        double scale = 0;
+        boolean any = false;
+        for (int i = from; i < to; i++) {
+            final byte b = line[i];
+            if (b >= '0' && b <= '9') {
+                any = true;
+                if (scale == 0) {
+                    res = res * 10 + b - '0';
+                } else {
+                    res += (b - '0') * scale;
+                    scale /= 10;
+                }
+            } else if (b == '.' && scale == 0) {
+                scale = 0.1;
+            } else if (b == ' ') {
+                // Einheit o.ä. nach dem Wert
+                break;
+            } else {
+                return Double.NaN;
+            }
+        }
+        return any ? res : Double.NaN;
+    }
+
+    /**
+     * Findet die Programmläufe in den Messungen eines Leistungsmessers.
+     *
+     * @param active Die Leistung in Watt, ab welcher das Gerät als laufend gilt.
+     * @param endGap Die Pause in Sekunden, nach welcher ein Programmlauf als beendet gilt.
+     */
+    static List<Run> findRuns(Samples s, double active, long endGap) {
+        final List<Run> runs = new ArrayList<>();
+        int start = -1;
+        long lastActive = 0;
+        long end = -1;
+        for (int i = 0; i < s.size; i++) {
+            final long t = s.seconds[i];
+            if (start >= 0 && end >= 0 && t - lastActive >= endGap) {
+                runs.add(new Run(start, end, lastActive + endGap));
+                start = -1;
+            }
+            if (s.watts[i] >= active) {
+                if (start < 0) {
+                    start = i;
+                }
+                lastActive = t;
+                end = -1;
+            } else if (start >= 0 && end < 0) {
+                end = t;
+            }
+        }
+        if (start >= 0 && end >= 0) {
+            runs.add(new Run(start, end, Math.max(end, lastActive + endGap)));
+        }
+        return runs;
+    }
+
+    private static DetectorFactory detectorFactory(String detector) {
+        switch (detector) {
+            case WashguardConfiguration.AUTO_END_HYSTERESIS:
+                return (threshold, factor) -> new HysteresisAutoEndDetector(threshold, threshold * factor);
+            case WashguardConfiguration.AUTO_END_MOVING_AVERAGE:
+                return (threshold, seconds) -> new MovingAverageAutoEndDetector(threshold,
+                        Duration.ofMillis((long) (seconds * 1000)));
+            case WashguardConfiguration.AUTO_END_ENERGY_WINDOW:
+                return (threshold, seconds) -> new EnergyWindowAutoEndDetector(threshold,
+                        Duration.ofMillis((long) (seconds * 1000)));
+            default:
+                return (threshold, unused) -> new ThresholdAutoEndDetector(threshold);
+        }
+    }
+
+    /**
+     * Liest den Parameter einer Erkennung aus der Konfiguration im Arbeitsverzeichnis.
+     */
+    private static double configuredParameter(String detector) throws Exception {
+        if (!detector.equals(WashguardConfiguration.AUTO_END_HYSTERESIS) &&
+                !detector.equals(WashguardConfiguration.AUTO_END_MOVING_AVERAGE) &&
+                !detector.equals(WashguardConfiguration.AUTO_END_ENERGY_WINDOW)) {
+            return 0;
+        }
+        final WashguardConfiguration config = new WashguardConfiguration();
+        switch (detector) {
+            case WashguardConfiguration.AUTO_END_HYSTERESIS:
+                return config.getAutoEndHysteresisFactor();
+            case WashguardConfiguration.AUTO_END_MOVING_AVERAGE:
+                return config.getAutoEndAverageTime().toMillis() / 1000.0;
+            default:
+                return config.getAutoEndEnergyWindow().toMillis() / 1000.0;
+        }
+    }
+
+    private static double[] parseList(String list) {
+        return Arrays.stream(list.split(",")).mapToDouble(Double::parseDouble).toArray();
+    }
+
+    private static void print(List<Result> results) {
+        Result best = null;
+        for (final Result r : results) {
+            if (r.early == 0 && r.missed == 0 && (best == null || r.meanLatency() < best.meanLatency())) {
+                best = r;
+            }
+        }
+        for (final Result r : results) {
+            System.out.println(String.format("%-12s threshold=%6.1fW param=%6.1f wait=%4ds runs=%4d early=%4d " +
+                            "missed=%4d latency mean=%6.0fs p95=%6ds%s", r.device, r.threshold, r.parameter,
+                    r.waitSeconds, r.runs, r.early, r.missed, r.meanLatency(), r.percentileLatency(95),
+                    r == best ? "  <- best" : ""));
+        }
+    }
+
+    private static void writeCsv(Path out, List<Result> results) throws IOException {
+        try (PrintWriter w = new PrintWriter(Files.newBufferedWriter(out))) {
+            w.println("device;threshold;parameter;wait;runs;early;missed;latencyMean;latencyP95;earlyByMean");
+            for (final Result r : results) {
+                w.println(String.join(";", r.device, Double.toString(r.threshold), Double.toString(r.parameter),
+                        Long.toString(r.waitSeconds),
+                        Integer.toString(r.runs), Integer.toString(r.early), Integer.toString(r.missed),
+                        String.format("%.0f", r.meanLatency()), Long.toString(r.percentileLatency(95)),
+                        String.format("%.0f", r.early == 0 ? 0 : (double) r.earlyBySum / r.early)));
+            }
+        }
+    }
+
+    /**
+     * Erstellt eine Erkennung des Programmendes für einen Schwellwert und einen Parameter.
+     */
+    private interface DetectorFactory {
+        AutoEndDetector create(double threshold, double parameter);
+    }
+
+    /**
+     * Die Messungen eines Leistungsmessers in Feldern primitiver Typen.
+     */
+    static final class Samples {
+        private long[] seconds = new long[1024];
+        private float[] watts = new float[1024];
+        private int size = 0;
+
+        void add(long time, float power) {
+            if (this.size == this.seconds.length) {
+                this.seconds = Arrays.copyOf(this.seconds, this.size * 2);
+                this.watts = Arrays.copyOf(this.watts, this.size * 2);
+            }
+            this.seconds[this.size] = time;
+            this.watts[this.size] = power;
+            this.size++;
+        }
+
+        void addAll(Samples other) {
+            final int needed = this.size + other.size;
+            if (needed > this.seconds.length) {
+                this.seconds = Arrays.copyOf(this.seconds, Math.max(needed, this.seconds.length * 2));
+                this.watts = Arrays.copyOf(this.watts, this.seconds.length);
+            }
+            System.arraycopy(other.seconds, 0, this.seconds, this.size, other.size);
+            System.arraycopy(other.watts, 0, this.watts, this.size, other.size);
+            this.size = needed;
+        }
+    }
+
+    /**
+     * Ein Programmlauf im Log.
+     */
+    static final class Run {
+        /**
+         * Der Index der ersten Messung ab der aktiven Leistung.
+         */
+        final int startIndex;
+        /**
+         * Das tatsächliche Ende in Sekunden.
+         */
+        final long end;
+        /**
+         * Der Zeitpunkt in Sekunden, bis zu welchem ein erkanntes Ende dem Lauf zugerechnet wird.
+         */
+        final long windowEnd;
+
+        Run(int startIndex, long end, long windowEnd) {
+            this.startIndex = startIndex;
+            this.end = end;
+            this.windowEnd = windowEnd;
+        }
+    }
+
+    /**
+     * Das Ergebnis einer Kombination aus Schwellwert, Parameter der Erkennung und Wartezeit für einen Leistungsmesser.
+     */
+    static final class Result {
+        final String device;
+        final double threshold;
+        final double parameter;
+        final long waitSeconds;
+        final int runs;
+        int early = 0;
+        int missed = 0;
+        long earlyBySum = 0;
+        private long[] latencies = new long[0];
+
+        Result(String device, double threshold, double parameter, long waitSeconds, int runs) {
+            this.device = device;
+            this.threshold = threshold;
+            this.parameter = parameter;
+            this.waitSeconds = waitSeconds;
+            this.runs = runs;
+        }
+
+        /**
+         * Spielt alle Programmläufe nach. Wie im {@link ExecutionManager} wird die Beendigung geplant, sobald der
+         * Detektor das Gerät als untätig meldet oder vorhersagt, wann es ohne weitere Messungen untätig wird, und
+         * abgebrochen, sobald er es wieder als dauerhaft tätig meldet. Die geplante Beendigung erfolgt nach der
+         * Wartezeit, auch wenn bis dahin keine Messung eintrifft.
+         */
+        void replay(Samples s, List<Run> runs, DetectorFactory factory) {
+            final long[] lat = new long[runs.size()];
+            int detected = 0;
+            for (final Run run : runs) {
+                final AutoEndDetector detector = factory.create(this.threshold, this.parameter);
+                long idleSince = -1;
+                long stop = -1;
+                for (int i = run.startIndex; i < s.size && s.seconds[i] <= run.windowEnd; i++) {
+                    final long t = s.seconds[i];
+                    if (idleSince >= 0 && t >= idleSince + this.waitSeconds) {
+                        stop = idleSince + this.waitSeconds;
+                        break;
+                    }
+                    final long idleDelay =
+                            detector.onSample(t * 1000000000L, s.watts[i]) ? 0 : detector.getIdleDelayNanos();
+                    if (idleDelay < 0) {
+                        idleSince = -1;
+                    } else if (idleDelay > 0 || idleSince < 0 || idleSince > t) {
+                        idleSince = t + (idleDelay + 999999999L) / 1000000000L;
+                    }
+                }
+                if (stop < 0 && idleSince >= 0 && idleSince + this.waitSeconds <= run.windowEnd) {
+                    stop = idleSince + this.waitSeconds;
+                }
+                if (stop < 0) {
+                    this.missed++;
+                } else if (stop < run.end) {
+                    this.early++;
+                    this.earlyBySum += run.end - stop;
+                } else {
+                    lat[detected++] = stop - run.end;
+                }
+            }
+            this.latencies = Arrays.copyOf(lat, detected);
+            Arrays.sort(this.latencies);
+        }
+
+        double meanLatency() {
+            return this.latencies.length == 0 ? Double.NaN :
+                    Arrays.stream(this.latencies).average().orElse(Double.NaN);
+        }
+
+        long percentileLatency(int percentile) {
+            return this.latencies.length == 0 ? -1 :
+                    this.latencies[Math.min(this.latencies.length - 1, this.latencies.length * percentile / 100)];
+        }
+    }
+}
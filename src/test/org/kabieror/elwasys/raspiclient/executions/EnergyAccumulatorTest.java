@@ -0,0 +1,87 @@
+package org.kabieror.elwasys.raspiclient.executions;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.time.Duration;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Prüft das Aufsummieren der Energie durch den {@link EnergyAccumulator}.
+ *
+ * @author Oliver Kabierschke
+ */
+public class EnergyAccumulatorTest {
+
+    private static final long SECOND = 1000000000L;
+
+    private EnergyAccumulator energy;
+
+    @Before
+    public void setUp() {
+        this.energy = new EnergyAccumulator(Duration.ofMinutes(10));
+    }
+
+    @Test
+    public void holdsThePreviousPowerUntilTheNextSample() {
+        this.energy.add(0, 1000);
+        this.energy.add(10 * 60 * SECOND, 2000);
+        this.energy.add(20 * 60 * SECOND, 0);
+
+        // 1000 W für 10 Minuten und 2000 W für 10 Minuten
+        assertEquals(0.5, this.energy.getKilowattHours(), 1e-9);
+        assertEquals(Duration.ZERO, this.energy.getUncoveredTime());
+    }
+
+    @Test
+    public void countsGapsOnlyUpToTheMaximum() {
+        this.energy.add(0, 600);
+        this.energy.add(25 * 60 * SECOND, 0);
+
+        // Von 25 Minuten ohne Messung werden 10 gezählt
+        assertEquals(0.1, this.energy.getKilowattHours(), 1e-9);
+        assertEquals(Duration.ofMinutes(15), this.energy.getUncoveredTime());
+    }
+
+    @Test
+    public void ignoresSamplesOlderThanThePreviousOne() {
+        this.energy.add(10 * SECOND, 3600);
+        this.energy.add(5 * SECOND, 100000);
+        this.energy.add(20 * SECOND, 0);
+
+        assertEquals(0.01, this.energy.getKilowattHours(), 1e-9);
+    }
+
+    @Test
+    public void ignoresInvalidPower() {
+        this.energy.add(0, 3600);
+        this.energy.add(5 * SECOND, Double.NaN);
+        this.energy.add(6 * SECOND, -1);
+        this.energy.add(10 * SECOND, 0);
+
+        assertEquals(0.01, this.energy.getKilowattHours(), 1e-9);
+    }
+
+    @Test
+    public void finishIsIdempotent() {
+        this.energy.add(0, 3600);
+        this.energy.finish(10 * SECOND);
+        assertEquals(0.01, this.energy.getKilowattHours(), 1e-9);
+
+        this.energy.finish(20 * SECOND);
+        this.energy.add(30 * SECOND, 3600);
+
+        assertEquals(0.01, this.energy.getKilowattHours(), 1e-9);
+    }
+
+    @Test
+    public void finishWithoutSamplesCountsNothing() {
+        this.energy.finish(10 * SECOND);
+        this.energy.add(20 * SECOND, 1000);
+        this.energy.add(30 * SECOND, 1000);
+
+        assertEquals(0, this.energy.getKilowattHours(), 0);
+        assertEquals(Duration.ZERO, this.energy.getUncoveredTime());
+    }
+}
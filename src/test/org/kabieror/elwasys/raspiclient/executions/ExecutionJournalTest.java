@@ -0,0 +1,185 @@
+package org.kabieror.elwasys.raspiclient.executions;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Prüft das Wiederherstellen und Abschneiden des {@link ExecutionJournal}.
+ *
+ * @author Oliver Kabierschke
+ */
+public class ExecutionJournalTest {
+
+    /**
+     * Die Länge eines Datensatzes in der Datei.
+     */
+    private static final int RECORD_SIZE = 17;
+
+    private File file;
+
+    private ExecutionJournal journal;
+
+    @Before
+    public void setUp() throws IOException {
+        this.file = File.createTempFile("execution-journal", null);
+        this.journal = new ExecutionJournal(this.file);
+    }
+
+    @After
+    public void tearDown() {
+        this.journal.close();
+        this.file.delete();
+    }
+
+    @Test
+    public void recoversTransitionsAndStopTime() throws IOException {
+        final long before = System.currentTimeMillis();
+        this.journal.append(ExecutionJournal.Transition.START, 1);
+        this.journal.append(ExecutionJournal.Transition.STOP, 1);
+        this.journal.append(ExecutionJournal.Transition.START, 2);
+
+        this.reopen();
+
+        assertTrue(this.journal.contains(ExecutionJournal.Transition.START, 1));
+        assertTrue(this.journal.contains(ExecutionJournal.Transition.STOP, 1));
+        assertFalse(this.journal.contains(ExecutionJournal.Transition.STOP_APPLIED, 1));
+        assertFalse(this.journal.contains(ExecutionJournal.Transition.STOP, 2));
+        final Long stoppedAt = this.journal.getStopTime(1);
+        assertNotNull(stoppedAt);
+        assertTrue(stoppedAt >= before && stoppedAt <= System.currentTimeMillis());
+        assertNull(this.journal.getStopTime(2));
+        final List<Integer> unsettled = this.journal.getUnsettled();
+        Collections.sort(unsettled);
+        assertEquals(Arrays.asList(1, 2), unsettled);
+    }
+
+    @Test
+    public void discardsPartiallyWrittenRecord() throws IOException {
+        this.journal.append(ExecutionJournal.Transition.START, 1);
+        this.journal.append(ExecutionJournal.Transition.STOP, 1);
+        this.journal.close();
+        try (RandomAccessFile raf = new RandomAccessFile(this.file, "rw")) {
+            // Ein beim Absturz nur zum Teil geschriebener Datensatz
+            raf.seek(raf.length());
+            raf.write(new byte[]{(byte) ExecutionJournal.Transition.STOP_APPLIED.ordinal(), 0, 0});
+        }
+
+        this.journal = new ExecutionJournal(this.file);
+
+        assertEquals(2 * RECORD_SIZE, this.file.length());
+        assertTrue(this.journal.contains(ExecutionJournal.Transition.STOP, 1));
+        assertFalse(this.journal.contains(ExecutionJournal.Transition.STOP_APPLIED, 1));
+    }
+
+    @Test
+    public void discardsEverythingFromACorruptRecord() throws IOException {
+        this.journal.append(ExecutionJournal.Transition.START, 1);
+        this.journal.append(ExecutionJournal.Transition.STOP, 1);
+        this.journal.append(ExecutionJournal.Transition.STOP_APPLIED, 1);
+        this.journal.close();
+        try (RandomAccessFile raf = new RandomAccessFile(this.file, "rw")) {
+            // Verfälsche den Zeitpunkt des zweiten Datensatzes
+            raf.seek(RECORD_SIZE + 7);
+            final int b = raf.read();
+            raf.seek(RECORD_SIZE + 7);
+            raf.write(b ^ 0xff);
+        }
+
+        this.journal = new ExecutionJournal(this.file);
+
+        assertEquals(RECORD_SIZE, this.file.length());
+        assertTrue(this.journal.contains(ExecutionJournal.Transition.START, 1));
+        assertFalse(this.journal.contains(ExecutionJournal.Transition.STOP, 1));
+        assertFalse(this.journal.contains(ExecutionJournal.Transition.STOP_APPLIED, 1));
+    }
+
+    @Test
+    public void appendsAfterRecoveredTail() throws IOException {
+        this.journal.append(ExecutionJournal.Transition.START, 1);
+        this.journal.close();
+        try (RandomAccessFile raf = new RandomAccessFile(this.file, "rw")) {
+            raf.seek(raf.length());
+            raf.write(new byte[5]);
+        }
+        this.journal = new ExecutionJournal(this.file);
+
+        this.journal.append(ExecutionJournal.Transition.STOP, 1);
+        this.reopen();
+
+        assertEquals(2 * RECORD_SIZE, this.file.length());
+        assertTrue(this.journal.contains(ExecutionJournal.Transition.STOP, 1));
+    }
+
+    @Test
+    public void truncatesWhenAllExecutionsAreSettled() throws IOException {
+        this.journal.append(ExecutionJournal.Transition.START, 1);
+        this.journal.append(ExecutionJournal.Transition.START, 2);
+        this.journal.append(ExecutionJournal.Transition.STOP, 1);
+        this.journal.append(ExecutionJournal.Transition.STOP_APPLIED, 1);
+        this.journal.append(ExecutionJournal.Transition.PAYMENT_APPLIED, 1);
+        assertEquals(5 * RECORD_SIZE, this.file.length());
+        assertNull(this.journal.getStopTime(1));
+
+        this.journal.append(ExecutionJournal.Transition.ABANDONED, 2);
+
+        assertEquals(0, this.file.length());
+        assertTrue(this.journal.getUnsettled().isEmpty());
+        this.reopen();
+        assertTrue(this.journal.getUnsettled().isEmpty());
+    }
+
+    @Test
+    public void keepsPendingCorrectionOpen() throws IOException {
+        this.journal.append(ExecutionJournal.Transition.START, 1);
+        this.journal.append(ExecutionJournal.Transition.STOP, 1);
+        this.journal.append(ExecutionJournal.Transition.STOP_APPLIED, 1);
+        this.journal.append(ExecutionJournal.Transition.CORRECTION_PENDING, 1);
+
+        this.reopen();
+
+        assertTrue(this.journal.contains(ExecutionJournal.Transition.CORRECTION_PENDING, 1));
+        assertNotNull(this.journal.getStopTime(1));
+        assertEquals(Collections.singletonList(1), this.journal.getUnsettled());
+        this.journal.append(ExecutionJournal.Transition.ABANDONED, 1);
+        assertEquals(0, this.file.length());
+    }
+
+    @Test
+    public void compactsWhileAnExecutionStaysOpen() throws IOException {
+        this.journal.append(ExecutionJournal.Transition.START, 1);
+        this.journal.append(ExecutionJournal.Transition.STOP, 1);
+        final Long stoppedAt = this.journal.getStopTime(1);
+        for (int id = 2; id < 600; id++) {
+            this.journal.append(ExecutionJournal.Transition.START, id);
+            this.journal.append(ExecutionJournal.Transition.PAYMENT_APPLIED, id);
+        }
+        assertTrue(this.file.length() < 600 * RECORD_SIZE);
+        assertEquals(0, this.file.length() % RECORD_SIZE);
+
+        this.reopen();
+
+        assertEquals(Collections.singletonList(1), this.journal.getUnsettled());
+        assertTrue(this.journal.contains(ExecutionJournal.Transition.START, 1));
+        assertEquals(stoppedAt, this.journal.getStopTime(1));
+        assertFalse(new File(this.file.getPath() + ".tmp").exists());
+    }
+
+    private void reopen() throws IOException {
+        this.journal.close();
+        this.journal = new ExecutionJournal(this.file);
+    }
+}
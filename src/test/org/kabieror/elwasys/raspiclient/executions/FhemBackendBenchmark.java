@@ -0,0 +1,86 @@
+package org.kabieror.elwasys.raspiclient.executions;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Vergleicht die Antwortzeiten der Schnittstellen zum FHEM-Server.
+ * <p>
+ * Benötigt einen laufenden FHEM-Server mit Telnet auf Port 7072 und FHEMWEB auf Port 8083, z.B. den FhemSimulator.
+ * Aufruf: {@code FhemBackendBenchmark [Host] [Schalter] [Wiederholungen]}
+ *
+ * @author Oliver Kabierschke
+ */
+public class FhemBackendBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        final String host = args.length > 0 ? args[0] : "127.0.0.1";
+        final String switchName = args.length > 1 ? args[1] : "wm1sw";
+        final int iterations = args.length > 2 ? Integer.parseInt(args[2]) : 1000;
+
+        run("telnet", new FhemTelnetBackend(host, 7072), switchName, iterations);
+        run("http", new FhemWebBackend(host, 8083), switchName, iterations);
+    }
+
+    private static void run(String name, IFhemBackend backend, String switchName, int iterations)
+            throws Exception {
+        backend.start(event -> {
+        });
+        try {
+            final List<String> names = Arrays.asList(switchName, switchName, switchName, switchName);
+
+            // Aufwärmen
+            for (int i = 0; i < iterations / 10; i++) {
+                DevicePowerManager.await(backend.getState(switchName), backend.getTimeoutMillis());
+            }
+
+            final long[] get = new long[iterations];
+            final long[] set = new long[iterations];
+            final long[] bulk = new long[iterations];
+            for (int i = 0; i < iterations; i++) {
+                long start = System.nanoTime();
+                DevicePowerManager.await(backend.getState(switchName), backend.getTimeoutMillis());
+                get[i] = System.nanoTime() - start;
+
+                start = System.nanoTime();
+                DevicePowerManager
+                        .await(backend.setState(switchName, i % 2 == 0 ? "on" : "off"), backend.getTimeoutMillis());
+                set[i] = System.nanoTime() - start;
+
+                start = System.nanoTime();
+                DevicePowerManager.await(backend.getStates(names), backend.getTimeoutMillis());
+                bulk[i] = System.nanoTime() - start;
+            }
+            print(name, "get", get);
+            print(name, "set", set);
+            print(name, "jsonlist2", bulk);
+
+            // Viele gleichzeitig ausstehende Anfragen
+            final long start = System.nanoTime();
+            final List<CompletableFuture<String>> pending = new ArrayList<>();
+            for (int i = 0; i < iterations; i++) {
+                pending.add(backend.getState(switchName));
+            }
+            for (final CompletableFuture<String> f : pending) {
+                f.get();
+            }
+            final double seconds = (System.nanoTime() - start) / 1e9;
+            System.out.println(String.format("%-6s %-10s %.0f requests/s", name, "parallel", iterations / seconds));
+            System.out.println(String.format("%-6s %-10s %s", name, "rtt", backend.getRoundTripTime()));
+        } finally {
+            backend.shutdown();
+        }
+    }
+
+    private static void print(String backend, String operation, long[] nanos) {
+        Arrays.sort(nanos);
+        double sum = 0;
+        for (final long n : nanos) {
+            sum += n;
+        }
+        System.out.println(String.format("%-6s %-10s mean=%.3fms p50=%.3fms p99=%.3fms", backend, operation,
+                sum / nanos.length / 1e6, nanos[nanos.length / 2] / 1e6, nanos[nanos.length * 99 / 100] / 1e6));
+    }
+}
@@ -0,0 +1,205 @@
+package org.kabieror.elwasys.raspiclient.executions;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.kabieror.elwasys.raspiclient.io.ITelnetLineListener;
+import org.kabieror.elwasys.raspiclient.io.TelnetClient;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Prüft das Zusammensetzen der Befehle und das Zuordnen der Antworten im {@link FhemCommandChannel}.
+ *
+ * @author Oliver Kabierschke
+ */
+public class FhemCommandChannelTest {
+
+    private RecordingTelnetClient telnet;
+
+    private FhemCommandChannel channel;
+
+    @Before
+    public void setUp() {
+        this.telnet = new RecordingTelnetClient();
+        this.channel = new FhemCommandChannel(this.telnet, FhemBackendDefaults.newRoundTripEstimator());
+    }
+
+    @Test
+    public void doublesSemicolonsAndAppendsEndMarker() throws IOException {
+        this.channel.send("set wama on;set trockner off");
+        this.channel.ping();
+
+        assertEquals("set wama on;;set trockner off;{ \"END-0\" }", this.telnet.lines.get(0));
+        assertEquals("{ \"END-1\" }", this.telnet.lines.get(1));
+    }
+
+    @Test
+    public void collectsResponseUntilEndMarker() throws Exception {
+        final CompletableFuture<String> response = this.channel.send("list wama");
+
+        this.receive("Internals:", "", "  STATE on");
+        assertFalse(response.isDone());
+        this.receive("END-0");
+
+        assertEquals("Internals:\n  STATE on", response.get());
+        assertEquals(0, this.channel.getPendingCount());
+    }
+
+    @Test
+    public void commandWithoutOutputHasEmptyResponse() throws Exception {
+        final CompletableFuture<String> response = this.channel.send("set wama on");
+        final CompletableFuture<String> ping = this.channel.ping();
+
+        this.receive("END-0", "END-1");
+
+        assertEquals("", response.get());
+        assertEquals("", ping.get());
+    }
+
+    @Test
+    public void failsCommandsWhoseEndMarkerIsMissing() throws Exception {
+        final CompletableFuture<String> lost = this.channel.send("set wama on");
+        final CompletableFuture<String> answered = this.channel.send("set trockner on");
+
+        this.receive("END-1");
+
+        assertFailed(lost);
+        assertEquals("", answered.get());
+        assertEquals(0, this.channel.getPendingCount());
+    }
+
+    @Test
+    public void ignoresUnexpectedEndMarker() throws Exception {
+        this.receive("END-7");
+        final CompletableFuture<String> first = this.channel.send("set wama on");
+        final CompletableFuture<String> second = this.channel.send("set trockner on");
+        this.receive("END-0");
+        // Eine wiederholte Endmarke gehört zu keinem ausstehenden Befehl und verwirft nur ihre Antwort
+        this.receive("Unknown command", "END-0");
+        assertFalse(second.isDone());
+        this.receive("END-1");
+
+        assertEquals("", first.get());
+        assertEquals("", second.get());
+    }
+
+    @Test
+    public void treatsMalformedMarkersAsResponseLines() throws Exception {
+        final CompletableFuture<String> response = this.channel.send("list");
+
+        this.receive("END-", "END-12a", "xEND-1", "END-0");
+
+        assertEquals("END-\nEND-12a\nxEND-1", response.get());
+    }
+
+    @Test
+    public void discardsStrayLinesWithoutPendingCommand() throws Exception {
+        this.receive("Welcome to fhem", "stray");
+        final CompletableFuture<String> response = this.channel.send("set wama on");
+        this.receive("END-0");
+
+        assertEquals("", response.get());
+    }
+
+    @Test
+    public void forwardsOtherLinesToEventListener() throws Exception {
+        final List<String> events = new ArrayList<>();
+        this.channel.setEventListener(new EventRecorder(events));
+        final CompletableFuture<String> response = this.channel.send("inform on");
+
+        this.receive("CUL_HM wama power: 12", "END-0", "CUL_HM wama on");
+
+        assertEquals("", response.get());
+        assertEquals(2, events.size());
+        assertEquals("CUL_HM wama on", events.get(1));
+    }
+
+    @Test
+    public void removesCommandThatCouldNotBeSent() throws IOException {
+        this.telnet.broken = true;
+        try {
+            this.channel.send("set wama on");
+            fail();
+        } catch (final IOException e) {
+            // Erwartet
+        }
+        assertEquals(0, this.channel.getPendingCount());
+
+        this.telnet.broken = false;
+        this.channel.send("set wama on");
+        assertEquals("set wama on;{ \"END-1\" }", this.telnet.lines.get(0));
+    }
+
+    @Test
+    public void failsPendingCommandsWhenConnectionCloses() throws IOException {
+        final CompletableFuture<String> response = this.channel.send("set wama on");
+
+        this.channel.onConnectionClosed();
+
+        assertFailed(response);
+        assertEquals(0, this.channel.getPendingCount());
+    }
+
+    private void receive(String... lines) {
+        for (final String line : lines) {
+            this.channel.onLineReceived(line);
+        }
+    }
+
+    private static void assertFailed(CompletableFuture<String> future) {
+        assertTrue(future.isDone());
+        try {
+            future.get();
+            fail();
+        } catch (final ExecutionException e) {
+            assertTrue(e.getCause() instanceof IOException);
+        } catch (final InterruptedException e) {
+            fail();
+        }
+    }
+
+    /**
+     * Merkt sich die gesendeten Zeilen, statt sie an einen Server zu schicken.
+     */
+    private static class RecordingTelnetClient extends TelnetClient {
+        private final List<String> lines = new ArrayList<>();
+        private boolean broken = false;
+
+        RecordingTelnetClient() {
+            super("localhost", 0);
+        }
+
+        @Override
+        public void sendCommand(CharSequence command) throws IOException {
+            if (this.broken) {
+                throw new IOException("Die Verbindung ist unterbrochen.");
+            }
+            this.lines.add(command.toString());
+        }
+    }
+
+    /**
+     * Merkt sich die weitergegebenen Zeilen.
+     */
+    private static class EventRecorder implements ITelnetLineListener {
+        private final List<String> lines;
+
+        EventRecorder(List<String> lines) {
+            this.lines = lines;
+        }
+
+        @Override
+        public void onLineReceived(CharSequence line) {
+            this.lines.add(line.toString());
+        }
+    }
+}
@@ -0,0 +1,205 @@
+package org.kabieror.elwasys.raspiclient.executions;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Prüft die Reihenfolge und die Beschränkungen, mit denen der {@link FhemCommandScheduler} Befehle ausführt.
+ * <p>
+ * Die Befehle warten auf Sperren, welche der Test öffnet, sodass die Reihenfolge nicht vom zeitlichen Ablauf abhängt.
+ *
+ * @author Oliver Kabierschke
+ */
+public class FhemCommandSchedulerTest {
+
+    private FhemCommandScheduler scheduler;
+
+    private final List<String> order = Collections.synchronizedList(new ArrayList<>());
+
+    @After
+    public void tearDown() {
+        this.scheduler.shutdown();
+    }
+
+    @Test
+    public void runsCommandsOfALaneInOrderAndOneAtATime() throws Exception {
+        this.scheduler = new FhemCommandScheduler(3, 1);
+        final AtomicInteger running = new AtomicInteger();
+        final Gate gate = this.block("wama");
+        final List<CompletableFuture<String>> results = new ArrayList<>();
+        for (int i = 1; i <= 5; i++) {
+            final String name = "wama-" + i;
+            results.add(this.scheduler.enqueue("wama", FhemCommandScheduler.Priority.INTERACTIVE, () -> {
+                assertEquals(1, running.incrementAndGet());
+                this.order.add(name);
+                running.decrementAndGet();
+                return name;
+            }));
+        }
+
+        gate.open();
+        for (final CompletableFuture<String> r : results) {
+            r.get(1, TimeUnit.SECONDS);
+        }
+
+        assertEquals(Arrays.asList("wama", "wama-1", "wama-2", "wama-3", "wama-4", "wama-5"), this.order);
+    }
+
+    @Test
+    public void waitingCommandLendsItsPriorityToItsLane() throws Exception {
+        this.scheduler = new FhemCommandScheduler(1, 1);
+        final Gate gate = this.block("gate");
+        final CompletableFuture<String> background =
+                this.scheduler.enqueue("wama", FhemCommandScheduler.Priority.BACKGROUND, this.record("wama-bg"));
+        final CompletableFuture<String> finish =
+                this.scheduler.enqueue("trockner", FhemCommandScheduler.Priority.FINISH, this.record("trockner"));
+        final CompletableFuture<String> interactive =
+                this.scheduler.enqueue("wama", FhemCommandScheduler.Priority.INTERACTIVE, this.record("wama-ia"));
+
+        gate.open();
+        background.get(1, TimeUnit.SECONDS);
+        interactive.get(1, TimeUnit.SECONDS);
+        finish.get(1, TimeUnit.SECONDS);
+
+        // Der Befehl im Hintergrund steht vor dem dringenden Befehl seines Geräts und wird daher vorgezogen
+        assertEquals(Arrays.asList("gate", "wama-bg", "wama-ia", "trockner"), this.order);
+    }
+
+    @Test
+    public void olderCommandWinsAtEqualPriority() throws Exception {
+        this.scheduler = new FhemCommandScheduler(1, 1);
+        final Gate gate = this.block("gate");
+        final CompletableFuture<String> first =
+                this.scheduler.enqueue("trockner", FhemCommandScheduler.Priority.FINISH, this.record("trockner"));
+        final CompletableFuture<String> second =
+                this.scheduler.enqueue("wama", FhemCommandScheduler.Priority.FINISH, this.record("wama"));
+
+        gate.open();
+        first.get(1, TimeUnit.SECONDS);
+        second.get(1, TimeUnit.SECONDS);
+
+        assertEquals(Arrays.asList("gate", "trockner", "wama"), this.order);
+    }
+
+    @Test
+    public void backgroundCommandsUseOnlyOneWorker() throws Exception {
+        this.scheduler = new FhemCommandScheduler(3, 1);
+        final Gate gate = this.block("wama", FhemCommandScheduler.Priority.BACKGROUND);
+        final CompletableFuture<String> waiting =
+                this.scheduler.enqueue("trockner", FhemCommandScheduler.Priority.BACKGROUND, this.record("trockner"));
+
+        // Ein wartender Benutzer kommt trotzdem sofort an die Reihe
+        this.scheduler.enqueue("trockner2", FhemCommandScheduler.Priority.INTERACTIVE, this.record("trockner2"))
+                .get(1, TimeUnit.SECONDS);
+        assertFalse(waiting.isDone());
+
+        gate.open();
+        waiting.get(1, TimeUnit.SECONDS);
+        assertEquals(Arrays.asList("wama", "trockner2", "trockner"), this.order);
+    }
+
+    @Test
+    public void failingCommandReleasesItsLane() throws Exception {
+        this.scheduler = new FhemCommandScheduler(1, 1);
+        final CompletableFuture<String> failed =
+                this.scheduler.enqueue("wama", FhemCommandScheduler.Priority.INTERACTIVE, () -> {
+                    throw new IOException("Nicht erreichbar.");
+                });
+        final CompletableFuture<String> error =
+                this.scheduler.enqueue("wama", FhemCommandScheduler.Priority.INTERACTIVE, () -> {
+                    throw new AssertionError("Unerwartet.");
+                });
+        final CompletableFuture<String> next =
+                this.scheduler.enqueue("wama", FhemCommandScheduler.Priority.INTERACTIVE, this.record("wama"));
+
+        assertEquals("wama", next.get(1, TimeUnit.SECONDS));
+        assertTrue(failed.isCompletedExceptionally());
+        assertTrue(error.isCompletedExceptionally());
+        try {
+            this.scheduler.execute(null, FhemCommandScheduler.Priority.INTERACTIVE, () -> {
+                throw new IOException("Nicht erreichbar.");
+            });
+            fail();
+        } catch (final IOException e) {
+            // Erwartet
+        }
+    }
+
+    @Test
+    public void shutdownFailsWaitingCommands() throws Exception {
+        this.scheduler = new FhemCommandScheduler(1, 1);
+        final Gate gate = this.block("wama");
+        final CompletableFuture<String> waiting =
+                this.scheduler.enqueue("wama", FhemCommandScheduler.Priority.INTERACTIVE, this.record("wama"));
+
+        this.scheduler.shutdown();
+        gate.open();
+
+        assertFailedWithFhemException(waiting);
+        assertFailedWithFhemException(
+                this.scheduler.enqueue("wama", FhemCommandScheduler.Priority.INTERACTIVE, this.record("wama")));
+    }
+
+    /**
+     * Reiht einen dringenden Befehl ein, der erst nach dem Öffnen der Sperre endet, und wartet, bis er läuft.
+     */
+    private Gate block(String lane) throws InterruptedException {
+        return this.block(lane, FhemCommandScheduler.Priority.INTERACTIVE);
+    }
+
+    private Gate block(String lane, FhemCommandScheduler.Priority priority) throws InterruptedException {
+        final Gate gate = new Gate();
+        this.scheduler.enqueue(lane, priority, () -> {
+            this.order.add(lane);
+            gate.started.countDown();
+            gate.release.await();
+            return null;
+        });
+        assertTrue(gate.started.await(1, TimeUnit.SECONDS));
+        return gate;
+    }
+
+    private FhemCommandScheduler.Command<String> record(String name) {
+        return () -> {
+            this.order.add(name);
+            return name;
+        };
+    }
+
+    private static void assertFailedWithFhemException(CompletableFuture<String> future) throws Exception {
+        try {
+            future.get(1, TimeUnit.SECONDS);
+            fail();
+        } catch (final ExecutionException e) {
+            assertTrue(e.getCause() instanceof FhemException);
+        }
+    }
+
+    /**
+     * Eine Sperre, auf welche ein laufender Befehl wartet.
+     */
+    private static class Gate {
+        private final CountDownLatch started = new CountDownLatch(1);
+        private final CountDownLatch release = new CountDownLatch(1);
+
+        void open() {
+            this.release.countDown();
+        }
+    }
+}
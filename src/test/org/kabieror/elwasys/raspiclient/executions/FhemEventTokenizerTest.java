@@ -0,0 +1,108 @@
+package org.kabieror.elwasys.raspiclient.executions;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Prüft das Zerlegen von Ereignis-Zeilen durch den {@link FhemEventTokenizer}.
+ *
+ * @author Oliver Kabierschke
+ */
+public class FhemEventTokenizerTest {
+
+    private FhemEventTokenizer tokenizer;
+
+    @Before
+    public void setUp() {
+        this.tokenizer = new FhemEventTokenizer();
+    }
+
+    @Test
+    public void parsesPowerMeasurement() {
+        final String line = "CUL_HM waschmaschine1 power: 1234.5";
+
+        assertSame(FhemEventTokenizer.EventType.POWER, this.tokenizer.parse(line));
+        assertEquals("waschmaschine1", this.name(line));
+        assertEquals(1234.5, this.tokenizer.power, 0);
+        assertNull(this.tokenizer.state);
+    }
+
+    @Test
+    public void skipsLeadingTimestamp() {
+        final String line = "2017-03-04 18:22:01 CUL_HM trockner power: 0";
+
+        assertSame(FhemEventTokenizer.EventType.POWER, this.tokenizer.parse(line));
+        assertEquals("trockner", this.name(line));
+        assertEquals(0, this.tokenizer.power, 0);
+    }
+
+    @Test
+    public void rejectsInvalidPowerValue() {
+        assertSame(FhemEventTokenizer.EventType.OTHER, this.tokenizer.parse("CUL_HM wama power: n/a"));
+        assertTrue(Double.isNaN(this.tokenizer.power));
+        assertSame(FhemEventTokenizer.EventType.OTHER, this.tokenizer.parse("power: 12"));
+    }
+
+    @Test
+    public void parsesStateWithAndWithoutPrefix() {
+        String line = "CUL_HM wama on";
+        assertSame(FhemEventTokenizer.EventType.STATE, this.tokenizer.parse(line));
+        assertEquals("wama", this.name(line));
+        assertSame(DevicePowerManager.DevicePowerState.ON, this.tokenizer.state);
+
+        line = "2017-03-04 18:22:01 CUL_HM wama state: off";
+        assertSame(FhemEventTokenizer.EventType.STATE, this.tokenizer.parse(line));
+        assertEquals("wama", this.name(line));
+        assertSame(DevicePowerManager.DevicePowerState.OFF, this.tokenizer.state);
+    }
+
+    @Test
+    public void parsesPendingStates() {
+        assertSame(FhemEventTokenizer.EventType.STATE, this.tokenizer.parse("CUL_HM wama set_on"));
+        assertSame(DevicePowerManager.DevicePowerState.SET_ON, this.tokenizer.state);
+        assertSame(FhemEventTokenizer.EventType.STATE, this.tokenizer.parse("CUL_HM wama  state:  set_off "));
+        assertSame(DevicePowerManager.DevicePowerState.SET_OFF, this.tokenizer.state);
+    }
+
+    @Test
+    public void ignoresOtherEvents() {
+        assertSame(FhemEventTokenizer.EventType.OTHER, this.tokenizer.parse(""));
+        assertSame(FhemEventTokenizer.EventType.OTHER, this.tokenizer.parse("wama on"));
+        assertSame(FhemEventTokenizer.EventType.OTHER, this.tokenizer.parse("wama state: on"));
+        assertSame(FhemEventTokenizer.EventType.OTHER, this.tokenizer.parse("CUL_HM wama energy: 12.3"));
+        assertSame(FhemEventTokenizer.EventType.OTHER, this.tokenizer.parse("CUL_HM wama onoff"));
+        assertNull(this.tokenizer.state);
+    }
+
+    @Test
+    public void parsesDecimalNumbers() {
+        assertEquals(42, this.parseDouble("42"), 0);
+        assertEquals(-3.25, this.parseDouble("-3.25"), 1e-12);
+        assertEquals(0.5, this.parseDouble(".5"), 1e-12);
+        assertEquals(7, this.parseDouble("7."), 0);
+        assertTrue(Double.isNaN(this.parseDouble("")));
+        assertTrue(Double.isNaN(this.parseDouble("-")));
+        assertTrue(Double.isNaN(this.parseDouble("1.2.3")));
+        assertTrue(Double.isNaN(this.parseDouble("1e3")));
+        assertTrue(Double.isNaN(this.parseDouble("1234567890123456789")));
+    }
+
+    @Test
+    public void parsesOnlyTheGivenRange() {
+        final String chars = "W=-12.5W";
+        assertEquals(-12.5, FhemEventTokenizer.parseDouble(chars, 2, 7), 1e-12);
+    }
+
+    private String name(String line) {
+        return line.substring(this.tokenizer.nameStart, this.tokenizer.nameEnd);
+    }
+
+    private double parseDouble(String s) {
+        return FhemEventTokenizer.parseDouble(s, 0, s.length());
+    }
+}
@@ -0,0 +1,315 @@
+package org.kabieror.elwasys.raspiclient.executions;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Prüft die Zustandsübergänge des Schutzschalters im {@link FhemReconnectSupervisor}.
+ * <p>
+ * Die geplanten Versuche werden vom Test selbst ausgeführt, sodass die Ergebnisse nicht vom zeitlichen Ablauf abhängen.
+ *
+ * @author Oliver Kabierschke
+ */
+public class FhemReconnectSupervisorTest {
+
+    private static final Duration INITIAL_BACKOFF = Duration.ofSeconds(2);
+    private static final Duration MAX_BACKOFF = Duration.ofSeconds(5);
+
+    private ManualScheduler scheduler;
+
+    private FhemReconnectSupervisor supervisor;
+
+    @Before
+    public void setUp() {
+        this.scheduler = new ManualScheduler();
+        this.supervisor = new FhemReconnectSupervisor(this.scheduler, INITIAL_BACKOFF, MAX_BACKOFF);
+    }
+
+    @Test
+    public void newSessionIsAvailable() throws FhemException {
+        final FhemReconnectSupervisor.Session session = this.supervisor.register("test", () -> fail());
+
+        assertSame(FhemReconnectSupervisor.CircuitState.CLOSED, session.getState());
+        session.checkAvailable();
+    }
+
+    @Test
+    public void failureOpensCircuitUntilReconnected() {
+        final List<FhemReconnectSupervisor.CircuitState> during = new ArrayList<>();
+        final FhemReconnectSupervisor.Session[] session = new FhemReconnectSupervisor.Session[1];
+        session[0] = this.supervisor.register("test", () -> during.add(session[0].getState()));
+
+        session[0].reportFailure("Verbindung verloren.");
+        assertSame(FhemReconnectSupervisor.CircuitState.OPEN, session[0].getState());
+        assertUnavailable(session[0]);
+        assertEquals(0, this.scheduler.runNext());
+
+        assertEquals(Collections.singletonList(FhemReconnectSupervisor.CircuitState.HALF_OPEN), during);
+        assertSame(FhemReconnectSupervisor.CircuitState.CLOSED, session[0].getState());
+        assertTrue(this.scheduler.tasks.isEmpty());
+    }
+
+    @Test
+    public void failedAttemptsAreRetriedWithGrowingBackoff() {
+        final Attempts attempts = new Attempts(3, new FhemException("Nicht erreichbar."));
+        final FhemReconnectSupervisor.Session session = this.supervisor.register("test", attempts);
+
+        session.reportFailure("Verbindung verloren.");
+        assertEquals(0, this.scheduler.runNext());
+        // Zufällig gestreut wird zwischen der Hälfte und dem Ganzen des Abstands gewartet
+        assertBetween(INITIAL_BACKOFF.toNanos() / 2, INITIAL_BACKOFF.toNanos(), this.scheduler.runNext());
+        assertSame(FhemReconnectSupervisor.CircuitState.OPEN, session.getState());
+        assertBetween(INITIAL_BACKOFF.toNanos(), 2 * INITIAL_BACKOFF.toNanos(), this.scheduler.runNext());
+        // Der Abstand wächst nicht über das Maximum
+        assertBetween(MAX_BACKOFF.toNanos() / 2, MAX_BACKOFF.toNanos(), this.scheduler.runNext());
+
+        assertEquals(4, attempts.count);
+        assertSame(FhemReconnectSupervisor.CircuitState.CLOSED, session.getState());
+        assertTrue(this.scheduler.tasks.isEmpty());
+    }
+
+    @Test
+    public void backoffStartsOverAfterReconnect() {
+        final Attempts attempts = new Attempts(1, new FhemException("Nicht erreichbar."));
+        final FhemReconnectSupervisor.Session session = this.supervisor.register("test", attempts);
+        session.reportFailure("Verbindung verloren.");
+        this.scheduler.runNext();
+        this.scheduler.runNext();
+
+        attempts.failures = 2;
+        session.reportFailure("Verbindung verloren.");
+        assertEquals(0, this.scheduler.runNext());
+
+        assertBetween(INITIAL_BACKOFF.toNanos() / 2, INITIAL_BACKOFF.toNanos(), this.scheduler.runNext());
+    }
+
+    @Test
+    public void unexpectedExceptionCountsAsFailedAttempt() {
+        final Attempts attempts = new Attempts(1, new IllegalStateException("Unerwartet."));
+        final FhemReconnectSupervisor.Session session = this.supervisor.register("test", attempts);
+
+        session.reportFailure("Verbindung verloren.");
+        this.scheduler.runNext();
+        assertSame(FhemReconnectSupervisor.CircuitState.OPEN, session.getState());
+        this.scheduler.runNext();
+
+        assertEquals(2, attempts.count);
+        assertSame(FhemReconnectSupervisor.CircuitState.CLOSED, session.getState());
+    }
+
+    @Test
+    public void furtherFailuresAreIgnoredWhileReconnecting() {
+        final FhemReconnectSupervisor.Session[] session = new FhemReconnectSupervisor.Session[1];
+        final Attempts attempts = new Attempts(0, null) {
+            @Override
+            public void connect() throws FhemException, InterruptedException {
+                super.connect();
+                session[0].reportFailure("Verbindung verloren.");
+            }
+        };
+        session[0] = this.supervisor.register("test", attempts);
+
+        session[0].reportFailure("Verbindung verloren.");
+        session[0].reportFailure("Verbindung verloren.");
+        assertEquals(1, this.scheduler.tasks.size());
+        this.scheduler.runNext();
+
+        assertEquals(1, attempts.count);
+        assertSame(FhemReconnectSupervisor.CircuitState.CLOSED, session[0].getState());
+        assertTrue(this.scheduler.tasks.isEmpty());
+    }
+
+    @Test
+    public void interruptedAttemptIsNotRetried() {
+        final Attempts attempts = new Attempts(0, null) {
+            @Override
+            public void connect() throws FhemException, InterruptedException {
+                super.connect();
+                throw new InterruptedException();
+            }
+        };
+        final FhemReconnectSupervisor.Session session = this.supervisor.register("test", attempts);
+
+        session.reportFailure("Verbindung verloren.");
+        this.scheduler.runNext();
+
+        assertSame(FhemReconnectSupervisor.CircuitState.OPEN, session.getState());
+        assertEquals(1, attempts.count);
+        assertTrue(this.scheduler.tasks.isEmpty());
+    }
+
+    @Test
+    public void nothingIsScheduledAfterShutdown() {
+        final Attempts attempts = new Attempts(0, null);
+        final FhemReconnectSupervisor.Session session = this.supervisor.register("test", attempts);
+        this.scheduler.shutdown();
+
+        session.reportFailure("Verbindung verloren.");
+
+        assertSame(FhemReconnectSupervisor.CircuitState.OPEN, session.getState());
+        assertTrue(this.scheduler.tasks.isEmpty());
+        assertEquals(0, attempts.count);
+    }
+
+    private static void assertUnavailable(FhemReconnectSupervisor.Session session) {
+        try {
+            session.checkAvailable();
+            fail();
+        } catch (final FhemException e) {
+            // Erwartet
+        }
+    }
+
+    private static void assertBetween(long min, long max, long actual) {
+        assertTrue(actual + " liegt nicht zwischen " + min + " und " + max, actual >= min && actual <= max);
+    }
+
+    /**
+     * Zählt die Versuche und schlägt bei den ersten Versuchen fehl.
+     */
+    private static class Attempts implements FhemReconnectSupervisor.Connector {
+        private final Exception failure;
+        private int failures;
+        private int count = 0;
+
+        Attempts(int failures, Exception failure) {
+            this.failures = failures;
+            this.failure = failure;
+        }
+
+        @Override
+        public void connect() throws FhemException, InterruptedException {
+            this.count++;
+            if (this.failures > 0 && this.failure != null) {
+                this.failures--;
+                if (this.failure instanceof FhemException) {
+                    throw (FhemException) this.failure;
+                }
+                throw (RuntimeException) this.failure;
+            }
+        }
+    }
+
+    /**
+     * Merkt sich die geplanten Aufgaben, bis der Test sie ausführt.
+     */
+    private static class ManualScheduler extends AbstractExecutorService implements ScheduledExecutorService {
+        private final Deque<ScheduledTask<?>> tasks = new ArrayDeque<>();
+        private boolean shutdown = false;
+
+        /**
+         * Führt die älteste geplante Aufgabe aus.
+         *
+         * @return Die Verzögerung, mit der die Aufgabe geplant wurde, in Nanosekunden.
+         */
+        long runNext() {
+            final ScheduledTask<?> task = this.tasks.pollFirst();
+            if (task == null) {
+                fail("Es ist keine Aufgabe geplant.");
+            }
+            task.run();
+            return task.delayNanos;
+        }
+
+        @Override
+        public ScheduledFuture<?> schedule(Runnable command, long delay, TimeUnit unit) {
+            return this.schedule(() -> {
+                command.run();
+                return null;
+            }, delay, unit);
+        }
+
+        @Override
+        public <V> ScheduledFuture<V> schedule(Callable<V> callable, long delay, TimeUnit unit) {
+            final ScheduledTask<V> task = new ScheduledTask<>(callable, unit.toNanos(delay));
+            this.tasks.addLast(task);
+            return task;
+        }
+
+        @Override
+        public ScheduledFuture<?> scheduleAtFixedRate(Runnable command, long initialDelay, long period,
+                                                      TimeUnit unit) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public ScheduledFuture<?> scheduleWithFixedDelay(Runnable command, long initialDelay, long delay,
+                                                         TimeUnit unit) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void execute(Runnable command) {
+            this.schedule(command, 0, TimeUnit.NANOSECONDS);
+        }
+
+        @Override
+        public void shutdown() {
+            this.shutdown = true;
+        }
+
+        @Override
+        public List<Runnable> shutdownNow() {
+            this.shutdown = true;
+            final List<Runnable> res = new ArrayList<>(this.tasks);
+            this.tasks.clear();
+            return res;
+        }
+
+        @Override
+        public boolean isShutdown() {
+            return this.shutdown;
+        }
+
+        @Override
+        public boolean isTerminated() {
+            return this.shutdown && this.tasks.isEmpty();
+        }
+
+        @Override
+        public boolean awaitTermination(long timeout, TimeUnit unit) {
+            return this.isTerminated();
+        }
+    }
+
+    /**
+     * Eine geplante Aufgabe mit der Verzögerung, mit der sie geplant wurde.
+     */
+    private static class ScheduledTask<V> extends FutureTask<V> implements ScheduledFuture<V> {
+        private final long delayNanos;
+
+        ScheduledTask(Callable<V> callable, long delayNanos) {
+            super(callable);
+            this.delayNanos = delayNanos;
+        }
+
+        @Override
+        public long getDelay(TimeUnit unit) {
+            return unit.convert(this.delayNanos, TimeUnit.NANOSECONDS);
+        }
+
+        @Override
+        public int compareTo(Delayed o) {
+            return Long.compare(this.getDelay(TimeUnit.NANOSECONDS), o.getDelay(TimeUnit.NANOSECONDS));
+        }
+    }
+}
@@ -0,0 +1,199 @@
+package org.kabieror.elwasys.raspiclient.executions;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.time.Duration;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Prüft das Auslösen, Verschieben und Abbrechen von Zeitgebern des {@link HashedTimerWheel}.
+ * <p>
+ * Das Rad wird vom Test mit {@link HashedTimerWheel#advanceTo(long)} bewegt, sodass die Ergebnisse nicht vom zeitlichen
+ * Ablauf abhängen.
+ *
+ * @author Oliver Kabierschke
+ */
+public class HashedTimerWheelTest {
+
+    /**
+     * Ein kleines Rad, damit Fristen schon nach wenigen Schritten über mehrere Umläufe reichen.
+     */
+    private static final Duration TICK = Duration.ofMillis(10);
+    private static final int SIZE = 4;
+
+    /**
+     * Ein beliebiger Beginn, damit auch der Überlauf von {@link System#nanoTime()} abgedeckt ist.
+     */
+    private static final long START = Long.MAX_VALUE - TimeUnit.MILLISECONDS.toNanos(100);
+
+    private HashedTimerWheel wheel;
+
+    @Before
+    public void setUp() {
+        this.wheel = new HashedTimerWheel(TICK, SIZE, Runnable::run, START);
+    }
+
+    @After
+    public void tearDown() {
+        this.wheel.shutdown();
+    }
+
+    @Test
+    public void firesAtDeadline() {
+        final AtomicInteger fired = new AtomicInteger();
+        final HashedTimerWheel.Timer timer = this.wheel.newTimer(fired::incrementAndGet);
+        timer.schedule(at(30));
+        assertTrue(timer.isArmed());
+
+        this.wheel.advanceTo(at(29));
+        assertEquals(0, fired.get());
+        this.wheel.advanceTo(at(30));
+
+        assertEquals(1, fired.get());
+        assertFalse(timer.isArmed());
+    }
+
+    @Test
+    public void deadlineBetweenTicksFiresAtTheNextTick() {
+        final AtomicInteger fired = new AtomicInteger();
+        this.wheel.newTimer(fired::incrementAndGet).schedule(at(25));
+
+        this.wheel.advanceTo(at(29));
+        assertEquals(0, fired.get());
+        this.wheel.advanceTo(at(30));
+        assertEquals(1, fired.get());
+    }
+
+    @Test
+    public void deadlineBeyondOneRevolutionWaitsForItsRound() {
+        // Das Rad umfasst 40 ms, die Frist liegt mehrere Umläufe später
+        final AtomicInteger fired = new AtomicInteger();
+        this.wheel.newTimer(fired::incrementAndGet).schedule(at(150));
+
+        this.wheel.advanceTo(at(149));
+        assertEquals(0, fired.get());
+        this.wheel.advanceTo(at(300));
+        assertEquals(1, fired.get());
+    }
+
+    @Test
+    public void rescheduleToLaterDeadlineFiresOnceAtTheNewDeadline() {
+        final AtomicInteger fired = new AtomicInteger();
+        final HashedTimerWheel.Timer timer = this.wheel.newTimer(fired::incrementAndGet);
+        timer.schedule(at(30));
+        this.wheel.advanceTo(at(10));
+        timer.schedule(at(200));
+
+        this.wheel.advanceTo(at(199));
+        assertEquals(0, fired.get());
+        assertTrue(timer.isArmed());
+        this.wheel.advanceTo(at(400));
+        assertEquals(1, fired.get());
+    }
+
+    @Test
+    public void rescheduleToEarlierDeadlineFiresEarly() {
+        final AtomicInteger fired = new AtomicInteger();
+        final HashedTimerWheel.Timer timer = this.wheel.newTimer(fired::incrementAndGet);
+        timer.schedule(at(10000));
+        this.wheel.advanceTo(at(10));
+        timer.schedule(at(30));
+
+        this.wheel.advanceTo(at(30));
+        assertEquals(1, fired.get());
+        this.wheel.advanceTo(at(20000));
+        assertEquals(1, fired.get());
+    }
+
+    @Test
+    public void pastDeadlineFiresAtTheNextTick() {
+        final AtomicInteger fired = new AtomicInteger();
+        this.wheel.advanceTo(at(50));
+        this.wheel.newTimer(fired::incrementAndGet).schedule(at(0));
+
+        this.wheel.advanceTo(at(60));
+        assertEquals(1, fired.get());
+    }
+
+    @Test
+    public void cancelledTimerDoesNotFire() {
+        final AtomicInteger fired = new AtomicInteger();
+        final HashedTimerWheel.Timer timer = this.wheel.newTimer(fired::incrementAndGet);
+        timer.schedule(at(30));
+        this.wheel.advanceTo(at(10));
+
+        assertTrue(timer.cancel());
+        assertFalse(timer.isArmed());
+        assertFalse(timer.cancel());
+        this.wheel.advanceTo(at(200));
+        assertEquals(0, fired.get());
+    }
+
+    @Test
+    public void timerCanBeScheduledAgainAfterFiringOrCancelling() {
+        final AtomicInteger fired = new AtomicInteger();
+        final HashedTimerWheel.Timer timer = this.wheel.newTimer(fired::incrementAndGet);
+        timer.schedule(at(20));
+        this.wheel.advanceTo(at(20));
+        assertEquals(1, fired.get());
+
+        timer.schedule(at(40));
+        timer.cancel();
+        timer.schedule(at(40));
+        this.wheel.advanceTo(at(300));
+        assertEquals(2, fired.get());
+    }
+
+    @Test
+    public void manyTimersFireIndependently() {
+        final int n = 1000;
+        final AtomicInteger fired = new AtomicInteger();
+        final HashedTimerWheel.Timer[] timers = new HashedTimerWheel.Timer[n];
+        for (int i = 0; i < n; i++) {
+            timers[i] = this.wheel.newTimer(fired::incrementAndGet);
+            timers[i].schedule(at(200 + i % 97));
+        }
+        for (int i = 0; i < n; i += 2) {
+            timers[i].cancel();
+        }
+
+        this.wheel.advanceTo(at(199));
+        assertEquals(0, fired.get());
+        this.wheel.advanceTo(at(400));
+        assertEquals(n / 2, fired.get());
+    }
+
+    @Test
+    public void ownThreadFiresAfterDeadline() throws InterruptedException {
+        final HashedTimerWheel running = new HashedTimerWheel(TICK, SIZE, Runnable::run);
+        try {
+            final CountDownLatch latch = new CountDownLatch(1);
+            final long start = System.nanoTime();
+            final long[] firedNanos = new long[1];
+            running.newTimer(() -> {
+                firedNanos[0] = System.nanoTime();
+                latch.countDown();
+            }).schedule(Duration.ofMillis(30));
+
+            assertTrue(latch.await(5, TimeUnit.SECONDS));
+            assertTrue(firedNanos[0] - start >= TimeUnit.MILLISECONDS.toNanos(30));
+        } finally {
+            running.shutdown();
+        }
+    }
+
+    /**
+     * Gibt den Zeitpunkt die gegebene Anzahl Millisekunden nach dem Beginn des Rads zurück.
+     */
+    private static long at(long millis) {
+        return START + TimeUnit.MILLISECONDS.toNanos(millis);
+    }
+}
@@ -0,0 +1,86 @@
+package org.kabieror.elwasys.raspiclient.executions;
+
+import org.junit.Test;
+
+import java.time.Duration;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Prüft das Aufbewahren und Abfragen der Messungen im {@link PowerSampleRing}.
+ *
+ * @author Oliver Kabierschke
+ */
+public class PowerSampleRingTest {
+
+    private static final long SECOND = 1000000000L;
+
+    @Test
+    public void replacesOldestWhenFull() {
+        final PowerSampleRing ring = new PowerSampleRing(4);
+        for (int i = 1; i <= 6; i++) {
+            ring.add(i * SECOND, i * 10);
+        }
+
+        assertEquals(4, ring.size());
+        assertEquals(4, ring.capacity());
+        assertEquals(60, ring.getLatestPower(), 0);
+        assertEquals(6 * SECOND, ring.getLatestNanos());
+        // Die Messungen bei 1s und 2s sind ersetzt, gemittelt wird ab der ältesten verbliebenen bei 3s
+        assertEquals((30 + 40 + 50 + 60) / 4f, ring.getAveragePower(7 * SECOND, Duration.ofSeconds(60)), 1e-4);
+    }
+
+    @Test
+    public void findsFirstSampleAcrossTheWrapAround() {
+        final PowerSampleRing ring = new PowerSampleRing(5);
+        for (int i = 1; i <= 8; i++) {
+            ring.add(i * SECOND, i);
+        }
+
+        // Aufbewahrt sind die Messungen bei 4s bis 8s, die älteste liegt nicht am Anfang der Felder
+        assertEquals(0, ring.firstWithin(0));
+        assertEquals(0, ring.firstWithin(4 * SECOND));
+        assertEquals(1, ring.firstWithin(4 * SECOND + 1));
+        assertEquals(2, ring.firstWithin(6 * SECOND));
+        assertEquals(4, ring.firstWithin(8 * SECOND));
+        assertEquals(5, ring.firstWithin(8 * SECOND + 1));
+    }
+
+    @Test
+    public void findsFirstSampleBeforeTheWrapAround() {
+        final PowerSampleRing ring = new PowerSampleRing(8);
+        ring.add(SECOND, 1);
+        ring.add(3 * SECOND, 1);
+        ring.add(3 * SECOND, 2);
+        ring.add(7 * SECOND, 1);
+
+        assertEquals(1, ring.firstWithin(2 * SECOND));
+        assertEquals(1, ring.firstWithin(3 * SECOND));
+        assertEquals(3, ring.firstWithin(4 * SECOND));
+        assertEquals(0, new PowerSampleRing(3).firstWithin(0));
+    }
+
+    @Test
+    public void averagesOverTimeHoldingTheLastPower() {
+        final PowerSampleRing ring = new PowerSampleRing(8);
+        ring.add(0, 1000);
+        ring.add(10 * SECOND, 0);
+        ring.add(50 * SECOND, 2000);
+
+        // 1000 W von 0s bis 10s, 0 W bis 50s und 2000 W bis 60s
+        assertEquals(500, ring.getAveragePower(60 * SECOND, Duration.ofSeconds(60)), 1e-3);
+        // Die Messung bei 10s gilt ab dem Beginn des Zeitraums bei 40s
+        assertEquals(1000, ring.getAveragePower(60 * SECOND, Duration.ofSeconds(20)), 1e-3);
+        // Keine Messung im Zeitraum, die letzte gilt weiter
+        assertEquals(2000, ring.getAveragePower(120 * SECOND, Duration.ofSeconds(30)), 1e-3);
+    }
+
+    @Test
+    public void averageWithoutSamplesIsUndefined() {
+        final PowerSampleRing ring = new PowerSampleRing(2);
+
+        assertTrue(Float.isNaN(ring.getAveragePower(SECOND, Duration.ofSeconds(60))));
+        assertTrue(Float.isNaN(ring.getLatestPower()));
+    }
+}
@@ -0,0 +1,93 @@
+package org.kabieror.elwasys.raspiclient.io;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Misst, wie viele Bytes und Schreibaufrufe der {@link TelnetClient} pro gesendetem Befehl benötigt.
+ * <p>
+ * Mehrere Threads senden kurze Befehle an einen lokalen Server, welcher alle Daten verwirft. Aufruf:
+ * {@code TelnetClientWriteBenchmark [Threads] [Befehle pro Thread]}
+ *
+ * @author Oliver Kabierschke
+ */
+public class TelnetClientWriteBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        final int threads = args.length > 0 ? Integer.parseInt(args[0]) : 4;
+        final int commands = args.length > 1 ? Integer.parseInt(args[1]) : 100000;
+
+        final AtomicLong received = new AtomicLong();
+        try (ServerSocket server = new ServerSocket()) {
+            server.bind(new InetSocketAddress("127.0.0.1", 0));
+            final Thread sink = new Thread(() -> {
+                try (Socket s = server.accept(); InputStream in = s.getInputStream()) {
+                    final byte[] buffer = new byte[65536];
+                    int read;
+                    while ((read = in.read(buffer)) >= 0) {
+                        received.addAndGet(read);
+                    }
+                } catch (final IOException e) {
+                    e.printStackTrace();
+                }
+            });
+            sink.setDaemon(true);
+            sink.start();
+
+            final TelnetClient client = new TelnetClient("127.0.0.1", server.getLocalPort());
+            client.openConnection(1000);
+
+            final String command = "get wm1sw param state";
+            final long expectedBytes = (long) threads * commands * (command.length() + 2);
+            final Thread[] senders = new Thread[threads];
+            final long start = System.nanoTime();
+            for (int t = 0; t < threads; t++) {
+                senders[t] = new Thread(() -> {
+                    try {
+                        for (int i = 0; i < commands; i++) {
+                            sendWithRetry(client, command);
+                        }
+                    } catch (final IOException | InterruptedException e) {
+                        e.printStackTrace();
+                    }
+                });
+                senders[t].start();
+            }
+            for (final Thread sender : senders) {
+                sender.join();
+            }
+            while (received.get() < expectedBytes) {
+                Thread.sleep(1);
+            }
+            final double seconds = (System.nanoTime() - start) / 1e9;
+
+            final double ops = client.getCommandCount();
+            System.out.println(String.format("threads=%d commands=%.0f", threads, ops));
+            System.out.println(String.format("bytes/op   %.2f", client.getBytesWritten() / ops));
+            System.out.println(String.format("writes/op  %.4f", client.getWriteCount() / ops));
+            System.out.println(String.format("ops/s      %.0f", ops / seconds));
+            client.shutdown();
+        }
+    }
+
+    /**
+     * Sendet einen Befehl und wartet kurz, falls der Schreibpuffer gerade voll ist.
+     */
+    private static void sendWithRetry(TelnetClient client, String command) throws IOException, InterruptedException {
+        while (true) {
+            try {
+                client.sendCommand(command);
+                return;
+            } catch (final IOException e) {
+                if (!client.isAlive()) {
+                    throw e;
+                }
+                Thread.sleep(0, 100000);
+            }
+        }
+    }
+}